@@ -0,0 +1,115 @@
+package org.pankratzlab;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Load test client for {@link AnnotationServer}. Sends the given request paths round robin from a
+ * number of concurrent clients and reports throughput and latency percentiles. Built with the
+ * benchmarks, run it from their jar with
+ * {@code java -cp target/GeneInfoReader-benchmarks.jar org.pankratzlab.AnnotationLoadTest}.
+ */
+public class AnnotationLoadTest {
+  public static void main(String[] args) throws Exception {
+    // @formatter:off
+    String usage = "\n" + "AnnotationLoadTest usage: \n"
+                   + "port=... port the server is listening on (required)\n"
+                   + "path=... request path, e.g. /region?q=chr7:55000000-55300000 (required, can "
+                   + "be repeated)\n"
+                   + "requests=100000 total number of requests (optional)\n"
+                   + "clients=16 number of concurrent clients (optional)\n";
+    // @formatter:on
+
+    int port = -1;
+    List<String> paths = new ArrayList<>();
+    int requests = 100000;
+    int clients = 16;
+    for (String arg : args) {
+      if (arg.startsWith("port=")) {
+        port = Integer.parseInt(arg.split("=")[1]);
+      } else if (arg.startsWith("path=")) {
+        paths.add(arg.substring("path=".length()));
+      } else if (arg.startsWith("requests=")) {
+        requests = Integer.parseInt(arg.split("=")[1]);
+      } else if (arg.startsWith("clients=")) {
+        clients = Integer.parseInt(arg.split("=")[1]);
+      } else {
+        System.out.println(usage);
+        System.exit(1);
+      }
+    }
+    if (port < 0 || paths.isEmpty()) {
+      System.out.println(usage);
+      System.exit(1);
+    }
+
+    // the JDK server doesn't speak HTTP/2, skip the upgrade attempt on every connection
+    HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1)
+                                  .executor(Executors.newFixedThreadPool(clients)).build();
+    List<URI> uris = new ArrayList<>();
+    for (String path : paths) {
+      uris.add(URI.create("http://127.0.0.1:" + port + path));
+    }
+
+    long[] latencies = new long[requests];
+    AtomicInteger next = new AtomicInteger();
+    AtomicInteger failures = new AtomicInteger();
+    ExecutorService pool = Executors.newFixedThreadPool(clients);
+    List<Future<?>> workers = new ArrayList<>();
+    long started = System.nanoTime();
+    for (int c = 0; c < clients; c++) {
+      workers.add(pool.submit(() -> {
+        int i;
+        while ((i = next.getAndIncrement()) < latencies.length) {
+          HttpRequest request = HttpRequest.newBuilder(uris.get(i % uris.size())).GET().build();
+          long sent = System.nanoTime();
+          try {
+            HttpResponse<String> response = client.send(request,
+                                                        HttpResponse.BodyHandlers.ofString());
+            if (response.statusCode() != 200) {
+              failures.incrementAndGet();
+            }
+          } catch (Exception e) {
+            failures.incrementAndGet();
+          }
+          latencies[i] = System.nanoTime() - sent;
+        }
+        return null;
+      }));
+    }
+    for (Future<?> worker : workers) {
+      worker.get();
+    }
+    double seconds = (System.nanoTime() - started) / 1e9;
+    pool.shutdown();
+
+    Arrays.sort(latencies);
+    System.out.println(requests + " requests from " + clients + " clients in "
+                       + String.format("%.2f", seconds) + "s ("
+                       + String.format("%.0f", requests / seconds) + " requests/s), "
+                       + failures.get() + " failed");
+    System.out.println("p50 " + micros(percentile(latencies, 50)) + "us, p90 "
+                       + micros(percentile(latencies, 90)) + "us, p99 "
+                       + micros(percentile(latencies, 99)) + "us, max "
+                       + micros(latencies[latencies.length - 1]) + "us");
+    System.exit(0);
+  }
+
+  private static long percentile(long[] sorted, int percent) {
+    int index = (int) Math.ceil(percent / 100.0 * sorted.length) - 1;
+    return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+  }
+
+  private static long micros(long nanos) {
+    return nanos / 1000;
+  }
+}
@@ -0,0 +1,77 @@
+package org.pankratzlab;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Setup shared by the benchmarks: a scratch directory with a {@link GffGenerator} file in it, and
+ * the annotation parsed from it. Inputs only depend on their size, so every run and every machine
+ * benchmarks the same file.
+ */
+class BenchmarkInputs {
+  final Path dir;
+  final Path gff;
+  final long features;
+  final int genes;
+  final int contigLength;
+
+  /**
+   * @param genes main contig genes, spread over chr 1-24, with another 5% as alt contig copies
+   */
+  BenchmarkInputs(int genes, int transcriptsPerGene, int exonsPerTranscript) throws IOException {
+    this(new GffGenerator().genesPerContig((genes + 23) / 24)
+                           .transcriptsPerGene(transcriptsPerGene)
+                           .exonsPerTranscript(exonsPerTranscript), "synthetic.gff");
+  }
+
+  BenchmarkInputs(GffGenerator generator, String fileName) throws IOException {
+    this.dir = Files.createTempDirectory("geneinfo-bench");
+    this.gff = dir.resolve(fileName);
+    this.features = generator.write(gff);
+    this.genes = generator.contigs * generator.genesPerContig;
+    this.contigLength = generator.contigLength();
+  }
+
+  /**
+   * Parses with the fast reader, which is quickest, since setup time isn't what's measured
+   */
+  Aggregator parse(FeatureProjection projection) {
+    return new Aggregator(gff, dir, new ParseOptions().projection(projection).fastParse(true),
+                          null);
+  }
+
+  /**
+   * Copies of the genes with their exons and nothing derived yet, so every invocation pays for
+   * the exon and intron derivation that {@link BasicFeature} otherwise caches
+   */
+  static List<BasicFeature> freshCopies(Collection<BasicFeature> genes) {
+    List<BasicFeature> copies = new ArrayList<>(genes.size());
+    for (BasicFeature gene : genes) {
+      BasicFeature copy = copy(gene);
+      for (BasicFeature exon : gene.getDescendantExons()) {
+        copy.addChild(copy(exon));
+      }
+      copies.add(copy);
+    }
+    return copies;
+  }
+
+  private static BasicFeature copy(BasicFeature feat) {
+    return new BasicFeature(feat.id, feat.parentId, feat.type, feat.start, feat.end, feat.name,
+                            feat.contig, feat.strand, feat.xRefGeneId);
+  }
+
+  void delete() throws IOException {
+    try (Stream<Path> paths = Files.walk(dir)) {
+      for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+        Files.delete(path);
+      }
+    }
+  }
+}
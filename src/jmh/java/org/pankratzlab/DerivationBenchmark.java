@@ -0,0 +1,88 @@
+package org.pankratzlab;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Deriving each gene's exons and introns and turning them into bed lines. {@link BasicFeature}
+ * caches all of these, so every invocation starts from fresh copies of the genes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class DerivationBenchmark {
+  @Param({"20000"})
+  int genes;
+
+  private BenchmarkInputs inputs;
+  private Aggregator aggregator;
+  private List<BasicFeature> fresh;
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    inputs = new BenchmarkInputs(genes, 3, 8);
+    aggregator = inputs.parse(FeatureProjection.forOutputs(false, false, false, true));
+    aggregator.findGenesAndExons();
+  }
+
+  @Setup(Level.Invocation)
+  public void copyGenes() {
+    fresh = BenchmarkInputs.freshCopies(aggregator.genes);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    inputs.delete();
+  }
+
+  @Benchmark
+  public void sortedDistinctExons(ThroughputCounters counters, Blackhole blackhole) {
+    for (BasicFeature gene : fresh) {
+      blackhole.consume(gene.getSortedDistinctExons());
+    }
+    counters.genes += fresh.size();
+  }
+
+  @Benchmark
+  public void exonModel(ThroughputCounters counters, Blackhole blackhole) {
+    for (BasicFeature gene : fresh) {
+      blackhole.consume(gene.getExonModel());
+    }
+    counters.genes += fresh.size();
+  }
+
+  @Benchmark
+  public void bedLines(ThroughputCounters counters, Blackhole blackhole) {
+    for (BasicFeature gene : fresh) {
+      blackhole.consume(gene.toBedLines(true, true));
+    }
+    counters.genes += fresh.size();
+  }
+
+  @Benchmark
+  public void geneData(ThroughputCounters counters, Blackhole blackhole) {
+    for (BasicFeature gene : fresh) {
+      blackhole.consume(gene.toGeneData());
+    }
+    counters.genes += fresh.size();
+  }
+}
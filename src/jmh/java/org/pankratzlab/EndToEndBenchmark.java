@@ -0,0 +1,77 @@
+package org.pankratzlab;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A whole {@link Main} run for each combination of outputs, with and without QC output. Each run
+ * is timed once, like a user would run it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class EndToEndBenchmark {
+  @Param({"20000"})
+  int genes;
+
+  @Param({"-genesXln", "-bedExons", "-bedIntrons", "-bedExons -bedIntrons", "-bedAll",
+          "-geneTrack", "-genesXln -bedAll -geneTrack"})
+  String outputs;
+
+  @Param({"true", "false"})
+  boolean qc;
+
+  @Param({"", "-fastParse"})
+  String parser;
+
+  private BenchmarkInputs inputs;
+  private String[] args;
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    inputs = new BenchmarkInputs(genes, 3, 8);
+    List<String> argList = new ArrayList<>();
+    argList.add("inputFile=" + inputs.gff);
+    argList.add("out=" + inputs.dir);
+    argList.addAll(Arrays.asList(outputs.split(" ")));
+    if (!qc) {
+      argList.add("-noqc");
+    }
+    if (!parser.isEmpty()) {
+      argList.add(parser);
+    }
+    args = argList.toArray(new String[0]);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    inputs.delete();
+  }
+
+  @Benchmark
+  public void run(ThroughputCounters counters) {
+    Main.main(args);
+    counters.features += inputs.features;
+    counters.genes += inputs.genes;
+  }
+}
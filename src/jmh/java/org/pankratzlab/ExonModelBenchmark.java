@@ -0,0 +1,115 @@
+package org.pankratzlab;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Time and allocation per gene of deriving its distinct exons and introns, with
+ * {@link ExonModel} and with the location string deduplication and intron features it replaced,
+ * which are kept here as the baseline. Every operation is one gene, so the GC profiler's
+ * gc.alloc.rate.norm is bytes per gene.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ExonModelBenchmark {
+  private static final int GENES = 20000;
+
+  private BenchmarkInputs inputs;
+  private Aggregator aggregator;
+  private List<BasicFeature> fresh;
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    inputs = new BenchmarkInputs(GENES, 3, 8);
+    aggregator = inputs.parse(FeatureProjection.forOutputs(false, false, false, true));
+    aggregator.findGenesAndExons();
+  }
+
+  /**
+   * The exons are found here, so only deriving from them is measured
+   */
+  @Setup(Level.Invocation)
+  public void copyGenes() {
+    fresh = BenchmarkInputs.freshCopies(aggregator.genes);
+    fresh.forEach(BasicFeature::getDescendantExons);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    inputs.delete();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(GENES)
+  public void exonModel(Blackhole blackhole) {
+    for (BasicFeature gene : fresh) {
+      blackhole.consume(gene.getExonModel());
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(GENES)
+  public void exonModelBedLines(Blackhole blackhole) {
+    for (BasicFeature gene : fresh) {
+      blackhole.consume(gene.toBedLines(true, true));
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(GENES)
+  public void locationStringBaseline(Blackhole blackhole) {
+    for (BasicFeature gene : fresh) {
+      List<BasicFeature> exons = sortedDistinct(gene.getDescendantExons());
+      blackhole.consume(exons);
+      blackhole.consume(sortedDistinct(baselineIntrons(gene, exons)));
+    }
+  }
+
+  private static List<BasicFeature> sortedDistinct(Set<BasicFeature> features) {
+    Set<Object> seen = ConcurrentHashMap.newKeySet();
+    return features.stream().filter(feature -> seen.add(feature.getPositionAsString()))
+                   .sorted(BasicFeature::compareLocation).collect(Collectors.toList());
+  }
+
+  private static Set<BasicFeature> baselineIntrons(BasicFeature gene, List<BasicFeature> exons) {
+    Set<BasicFeature> introns = new HashSet<>();
+    int prevEnd = gene.start;
+    for (BasicFeature exon : exons) {
+      if (exon.start > prevEnd) {
+        String id = gene.id + "_intron_" + gene.start + "_" + gene.end;
+        introns.add(new BasicFeature(id, null, "intron", prevEnd, exon.start - 1, id, gene.contig,
+                                     gene.strand, gene.xRefGeneId));
+      }
+      prevEnd = exon.end + 1;
+    }
+    if (gene.end > prevEnd) {
+      introns.add(new BasicFeature(gene.id, null, "intron", prevEnd, gene.end, gene.id,
+                                   gene.contig, gene.strand, gene.xRefGeneId));
+    }
+    return introns;
+  }
+}
@@ -0,0 +1,116 @@
+package org.pankratzlab;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link Aggregator#computeXRefMap} and the location sort the writers do over its groupings, at
+ * roughly the gene count of a RefSeq release and at a few times that. The grouping it replaced,
+ * which scanned every gene for each new xRefGeneId, is kept here as the baseline. That one is
+ * quadratic and takes seconds an operation already at 20000 genes, so it is only run up to there,
+ * and the two compare at that size.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class GroupingBenchmark {
+  @State(Scope.Benchmark)
+  public static class Genes {
+    @Param({"20000", "60000", "200000"})
+    int genes;
+
+    BenchmarkInputs inputs;
+    Aggregator aggregator;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+      inputs = new BenchmarkInputs(genes, 1, 1);
+      aggregator = parse(inputs);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+      inputs.delete();
+    }
+  }
+
+  @State(Scope.Benchmark)
+  public static class BaselineGenes {
+    @Param({"5000", "20000"})
+    int baselineGenes;
+
+    BenchmarkInputs inputs;
+    Aggregator aggregator;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+      inputs = new BenchmarkInputs(baselineGenes, 1, 1);
+      aggregator = parse(inputs);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+      inputs.delete();
+    }
+  }
+
+  private static Aggregator parse(BenchmarkInputs inputs) {
+    Aggregator aggregator = inputs.parse(FeatureProjection.forOutputs(false, false, true, false));
+    aggregator.findGenesAndExons();
+    return aggregator;
+  }
+
+  @Benchmark
+  public List<GeneGrouping> computeXRefMap(Genes genes, ThroughputCounters counters) {
+    Aggregator aggregator = genes.aggregator;
+    aggregator.computeXRefMap();
+    counters.genes += aggregator.genes.size();
+    return aggregator.getSortedGeneGroupings();
+  }
+
+  @Benchmark
+  public Object sortedXRefGeneIdView(Genes genes, ThroughputCounters counters) {
+    Aggregator aggregator = genes.aggregator;
+    aggregator.computeXRefMap();
+    counters.genes += aggregator.genes.size();
+    return aggregator.getGeneGroupingsByXRefGeneId();
+  }
+
+  @Benchmark
+  public List<GeneGrouping> computeXRefMapBaseline(BaselineGenes baselineGenes,
+                                                   ThroughputCounters counters) {
+    Set<BasicFeature> genes = baselineGenes.aggregator.genes;
+    Map<String, GeneGrouping> groupings = new TreeMap<>();
+    for (BasicFeature gene : genes) {
+      groupings.computeIfAbsent(gene.xRefGeneId, xRefId -> {
+        Set<BasicFeature> group = genes.parallelStream().filter(g -> g.xRefGeneId.equals(xRefId))
+                                       .collect(Collectors.toSet());
+        return new GeneGrouping(xRefId, group);
+      });
+    }
+    counters.genes += genes.size();
+    return groupings.values().stream().sorted(GeneGrouping::compareTo)
+                    .collect(Collectors.toList());
+  }
+}
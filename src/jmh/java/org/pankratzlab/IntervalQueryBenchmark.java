@@ -0,0 +1,85 @@
+package org.pankratzlab;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * A million random overlap and nearest gene queries against an {@link IntervalIndex} of genes,
+ * exons and introns. Scores are per query.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class IntervalQueryBenchmark {
+  private static final int QUERIES = 1_000_000;
+
+  @Param({"20000"})
+  int genes;
+
+  private BenchmarkInputs inputs;
+  private IntervalIndex index;
+  private final int[] chrs = new int[QUERIES];
+  private final int[] starts = new int[QUERIES];
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    inputs = new BenchmarkInputs(genes, 3, 8);
+    Aggregator aggregator = inputs.parse(FeatureProjection.forOutputs(false, false, false, true));
+    aggregator.findGenesAndIntrons();
+    index = aggregator.buildIntervalIndex();
+
+    Random random = new Random(42);
+    for (int i = 0; i < QUERIES; i++) {
+      chrs[i] = 1 + random.nextInt(24);
+      starts[i] = 1 + random.nextInt(inputs.contigLength);
+    }
+  }
+
+  @State(Scope.Benchmark)
+  public static class Queries {
+    @Param({"1", "10000", "1000000"})
+    int queryLength;
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    inputs.delete();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(QUERIES)
+  public void overlapping(Queries queries, Blackhole blackhole) {
+    int length = queries.queryLength;
+    for (int i = 0; i < QUERIES; i++) {
+      blackhole.consume(index.overlapping(chrs[i], starts[i], starts[i] + length - 1));
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(QUERIES)
+  public void nearestGene(Blackhole blackhole) {
+    for (int i = 0; i < QUERIES; i++) {
+      blackhole.consume(index.nearestGene(chrs[i], starts[i]));
+    }
+  }
+}
@@ -0,0 +1,150 @@
+package org.pankratzlab;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.pankratzlab.common.filesys.GeneTrack;
+
+/**
+ * Writing the outputs of an already grouped annotation, with exons and introns derived up front
+ * so only the writing is measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class OutputBenchmark {
+  @Param({"20000"})
+  int genes;
+
+  private BenchmarkInputs inputs;
+  private Aggregator aggregator;
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    inputs = new BenchmarkInputs(genes, 3, 8);
+    aggregator = inputs.parse(FeatureProjection.ALL);
+    aggregator.findGenesAndExons();
+    aggregator.findGenesAndIntrons();
+    aggregator.computeXRefMap();
+    aggregator.genes.forEach(BasicFeature::getSortedDistinctIntrons);
+    // for the load benchmarks
+    aggregator.writeSerializedGeneTrack();
+    writeGeneTrackFile();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    inputs.delete();
+  }
+
+  @Benchmark
+  public void bedFiles(ThroughputCounters counters) throws IOException {
+    aggregator.writeSortedOutputs(true, true, true, false);
+    counters.genes += aggregator.genes.size();
+  }
+
+  /**
+   * The three bed files at once on every core as plain text, to compare with
+   * {@link #bedFilesBgzip}
+   */
+  @Benchmark
+  public void bedFilesConcurrent(ThroughputCounters counters) throws IOException {
+    writeBedFiles(false);
+    counters.genes += aggregator.genes.size();
+  }
+
+  @Benchmark
+  public void bedFilesBgzip(ThroughputCounters counters) throws IOException {
+    writeBedFiles(true);
+    counters.genes += aggregator.genes.size();
+  }
+
+  private void writeBedFiles(boolean bgzip) throws IOException {
+    try (OutputWriters writers = new OutputWriters(Runtime.getRuntime().availableProcessors(),
+                                                   RunMetrics.DISABLED)) {
+      aggregator.submitSortedOutputs(writers, true, true, true, false, bgzip);
+      writers.awaitAll();
+    }
+  }
+
+  @Benchmark
+  public void genesXln(ThroughputCounters counters) throws IOException {
+    aggregator.writeSortedOutputs(false, false, false, true);
+    counters.genes += aggregator.genes.size();
+  }
+
+  /**
+   * genes.arrow, exons.arrow and introns.arrow, to compare with {@link #bedFilesConcurrent} and
+   * {@link #genesXln}
+   */
+  @Benchmark
+  public void arrowFiles(ThroughputCounters counters) throws IOException {
+    try (OutputWriters writers = new OutputWriters(Runtime.getRuntime().availableProcessors(),
+                                                   RunMetrics.DISABLED)) {
+      aggregator.submitArrowOutputs(writers);
+      writers.awaitAll();
+    }
+    counters.genes += aggregator.genes.size();
+  }
+
+  /**
+   * geneset.ser, read back by GeneTrack and serialized again as GeneTrack.ser
+   */
+  @Benchmark
+  public void geneTrackSerialized(ThroughputCounters counters) {
+    aggregator.writeSerializedGeneTrack();
+    counters.genes += aggregator.genes.size();
+  }
+
+  /**
+   * GeneTrack.bin, to compare with {@link #geneTrackSerialized}
+   */
+  @Benchmark
+  public void geneTrackBinary(ThroughputCounters counters) throws IOException {
+    writeGeneTrackFile();
+    counters.genes += aggregator.genes.size();
+  }
+
+  private void writeGeneTrackFile() throws IOException {
+    try (OutputWriters writers = new OutputWriters(1, RunMetrics.DISABLED)) {
+      aggregator.submitGeneTrackFile(writers);
+      writers.awaitAll();
+    }
+  }
+
+  @Benchmark
+  public void loadGeneTrackSerialized(ThroughputCounters counters, Blackhole blackhole) {
+    blackhole.consume(GeneTrack.load(aggregator.outputDir.resolve("GeneTrack.ser").toString()));
+    counters.genes += aggregator.genes.size();
+  }
+
+  @Benchmark
+  public void loadGeneTrackBinary(ThroughputCounters counters,
+                                  Blackhole blackhole) throws IOException {
+    blackhole.consume(GeneTrackFile.load(aggregator.outputDir.resolve(GeneTrackFile.FILE_NAME)));
+    counters.genes += aggregator.genes.size();
+  }
+
+  @Benchmark
+  public void qcOutput(ThroughputCounters counters) throws IOException {
+    aggregator.writeQcOutput();
+    counters.genes += aggregator.genes.size();
+  }
+}
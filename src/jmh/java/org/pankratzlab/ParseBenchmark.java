@@ -0,0 +1,66 @@
+package org.pankratzlab;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing the whole input into an {@link Aggregator}, with each parser and with the projection of
+ * the cheapest and the most demanding output.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ParseBenchmark {
+  @Param({"10000"})
+  int genes;
+
+  @Param({"htsjdk", "parallel", "fast"})
+  String parser;
+
+  @Param({"all", "genesXln"})
+  String projection;
+
+  private BenchmarkInputs inputs;
+  private ParseOptions options;
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    inputs = new BenchmarkInputs(genes, 3, 8);
+    int threads = parser.equals("parallel") ? Runtime.getRuntime().availableProcessors() : 1;
+    FeatureProjection kept = projection.equals("all") ? FeatureProjection.ALL
+                                                      : FeatureProjection.forOutputs(false, false,
+                                                                                     true, false);
+    options = new ParseOptions().fastParse(parser.equals("fast")).threads(threads)
+                                .projection(kept);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    inputs.delete();
+  }
+
+  @Benchmark
+  public Aggregator parse(ThroughputCounters counters) {
+    Aggregator aggregator = new Aggregator(inputs.gff, inputs.dir, options, null);
+    counters.features += inputs.features;
+    counters.genes += inputs.genes;
+    return aggregator;
+  }
+}
@@ -0,0 +1,100 @@
+package org.pankratzlab;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Whole {@link Main} runs on {@link GffGenerator} inputs at 1, 4 and 16 times the size of a human
+ * RefSeq release (about 60k genes, 4M features at 1x), with duplicate ids and children before
+ * their parents mixed in, reporting time and peak heap for each. Forked with a large heap so 16x
+ * fits; pass -jvmArgs to change it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgsAppend = "-Xmx32g")
+public class ScalingBenchmark {
+  private static final int GENES_PER_CONTIG_AT_1X = 2500;
+
+  @Param({"1", "4", "16"})
+  int scale;
+
+  @Param({"", "-fastParse"})
+  String parser;
+
+  @Param({"-bedAll -genesXln -noqc", "-bedAll -genesXln"})
+  String outputs;
+
+  private BenchmarkInputs inputs;
+  private String[] args;
+
+  /**
+   * Peak heap of the run, summed over the heap pools' own peaks, so an upper bound
+   */
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  @State(Scope.Thread)
+  public static class PeakHeap {
+    public long peakHeapMb;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+      System.gc();
+      ManagementFactory.getMemoryPoolMXBeans().forEach(MemoryPoolMXBean::resetPeakUsage);
+      peakHeapMb = 0;
+    }
+
+    void record() {
+      long bytes = 0;
+      for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+        if (pool.getType() == MemoryType.HEAP) {
+          bytes += pool.getPeakUsage().getUsed();
+        }
+      }
+      peakHeapMb = bytes >> 20;
+    }
+  }
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    GffGenerator generator = new GffGenerator().genesPerContig(GENES_PER_CONTIG_AT_1X * scale)
+                                               .transcriptsPerGene(3).exonsPerTranscript(10)
+                                               .duplicateIdFraction(0.001)
+                                               .outOfOrderFraction(0.01);
+    inputs = new BenchmarkInputs(generator, "synthetic.gff.gz");
+    args = (("inputFile=" + inputs.gff + " out=" + inputs.dir + " " + outputs + " "
+             + parser).trim()).split(" ");
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    inputs.delete();
+  }
+
+  @Benchmark
+  public void run(ThroughputCounters counters, PeakHeap heap) {
+    Main.main(args);
+    heap.record();
+    counters.features += inputs.features;
+    counters.genes += inputs.genes;
+  }
+}
@@ -0,0 +1,24 @@
+package org.pankratzlab;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Extra throughput columns next to the ops/s of a benchmark: features/s and genes/s, counted by
+ * whatever the benchmark processed.
+ */
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+@State(Scope.Thread)
+public class ThroughputCounters {
+  public long features;
+  public long genes;
+
+  @Setup(Level.Iteration)
+  public void reset() {
+    features = 0;
+    genes = 0;
+  }
+}
@@ -1,20 +1,25 @@
 package org.pankratzlab;
 
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.Writer;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.NoSuchElementException;
 import java.util.Set;
-import java.util.StringJoiner;
 import java.util.TreeMap;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 import org.pankratzlab.common.filesys.GeneData;
@@ -25,10 +30,6 @@ import htsjdk.tribble.gff.Gff3BaseData;
 import htsjdk.tribble.gff.Gff3Feature;
 
 public class Aggregator {
-  final GffParser parser;
-
-  // if no working directory is provided, write all output to /tmp
-  private Path dir = Paths.get("/tmp/");
 
   final Map<String, BasicFeature> featureMap = new HashMap<>();
   final Set<BasicFeature> genes = new HashSet<>();
@@ -36,40 +37,351 @@ public class Aggregator {
   final Set<String> duplicateIds = new HashSet<>();
   final Path outputDir;
   final static String BAD_OR_MISSING = "BAD_OR_MISSING";
-  Map<String, GeneGrouping> geneGroupingsByXRefGeneId = new TreeMap<>();
+  GeneGroupIndex geneGroupIndex = new GeneGroupIndex();
+  // ordered view of geneGroupIndex, only built once a writer asks for it
+  private Map<String, GeneGrouping> geneGroupingsByXRefGeneId = null;
+  private List<GeneGrouping> sortedGeneGroupings = null;
+
+  // children seen before their parent, keyed by the parent id they are waiting for
+  final Map<String, List<BasicFeature>> pendingChildren = new HashMap<>();
+
+  private final FeatureProjection projection;
+  // for the work done a chr at a time once parsed, see ChrPartitions
+  private final int threads;
+  // id to parent id of features the projection dropped but that sit between kept features
+  final Map<String, String> parentLinks = new HashMap<>();
+  // replaces featureMap when parsing into a compact store, released once the genes are found
+  private FeatureStore compactStore;
+
+  // only used in streaming mode, where finished gene subtrees are handed off and released
+  private final Consumer<BasicFeature> completedGeneConsumer;
+  private final List<BasicFeature> openRoots = new ArrayList<>();
+  private String currentContig = null;
+  private int releasedFeatures = 0;
+  // ids released without a ### directive to vouch for them, to the gene they were written with, so
+  // a child that still turns up for one fails the run instead of going missing from the output.
+  // Only the latest releases are remembered, which keeps this to a few genes' worth of ids.
+  private static final int UNVOUCHED_RELEASES_KEPT = 8;
+  private final Deque<Map<String, String>> releasedUnvouched = new ArrayDeque<>();
+  private final Set<String> genesWithLateChildren = new LinkedHashSet<>();
+  // the most released ids remembered at once
+  int peakReleasedIds = 0;
+  // features parsed, or streamed in streaming mode
+  int featureCount = 0;
 
   public Aggregator(Path gffFilename, Path outputDir) {
+    this(gffFilename, outputDir, new ParseOptions(), null);
+  }
+
+  /**
+   * @param completedGeneConsumer if not null, parse in streaming mode: each gene is passed to this
+   *          consumer as soon as its subtree is complete, and the subtree is then dropped from
+   *          {@link #featureMap}. {@link #genes} and the gene groupings are not populated in this
+   *          mode. The input is read in file order with {@link FastGffReader}, whatever the options
+   *          ask for. GFF3 only promises a subtree is complete at a ### directive, but a subtree is
+   *          taken to be complete at the next top-level gene or contig as well, and an
+   *          {@link IllegalStateException} naming the genes is thrown if that turns out wrong.
+   */
+  public Aggregator(Path gffFilename, Path outputDir, ParseOptions options,
+                    Consumer<BasicFeature> completedGeneConsumer) {
     this.outputDir = outputDir;
-    this.parser = new GffParser(gffFilename.toString(), this::add);
-    System.out.println("Finished loading " + featureMap.size() + " features");
+    this.projection = options.projection;
+    this.threads = options.threads;
+    this.completedGeneConsumer = completedGeneConsumer;
+    if (options.compact && isStreaming()) {
+      throw new IllegalArgumentException("A compact store can't be used in streaming mode");
+    }
+    this.compactStore = options.compact ? new FeatureStore() : null;
+
+    boolean useSnapshot = options.snapshot && !isStreaming();
+    Path snapshotFile = AnnotationSnapshot.snapshotFileFor(gffFilename, outputDir);
+    byte coverage = AnnotationSnapshot.coverageOf(projection);
+    if (useSnapshot) {
+      AnnotationSnapshot snapshot = AnnotationSnapshot.load(snapshotFile, gffFilename, coverage);
+      if (snapshot != null) {
+        this.genes.addAll(snapshot.genes);
+        this.duplicateIds.addAll(snapshot.duplicateIds);
+        this.genesFound = true;
+        this.featureCount = snapshot.featureCount;
+        RunMetrics.progress("Loaded " + genes.size() + " genes (of " + snapshot.featureCount
+                            + " features) from " + snapshotFile);
+        return;
+      }
+    }
+
+    // streaming needs the features in file order and the ### directives, which only the fast
+    // readers report
+    boolean fastParse = options.fastParse || isStreaming();
+    if (PipelinedGffReader.handles(gffFilename, options.threads, fastParse)) {
+      if (fastParse) {
+        new PipelinedGffReader(gffFilename.toString(), options.threads, projection, this::add,
+                               (contig, id, parentId, type) -> addLink(id, parentId, type),
+                               this::flushDirective);
+      } else {
+        new PipelinedGffReader(gffFilename.toString(), options.threads, this::add);
+      }
+    } else if (fastParse) {
+      new FastGffReader(gffFilename.toString(), projection, this::add,
+                        (contig, id, parentId, type) -> addLink(id, parentId, type),
+                        this::flushDirective);
+    } else if (options.threads > 1) {
+      new ParallelGffParser(gffFilename.toString(), options.threads, this::add);
+    } else {
+      new GffParser(gffFilename.toString(), this::add);
+    }
+    int orphans = pendingChildren.values().stream().mapToInt(List::size).sum();
+    featureCount = featureMap.size();
+    if (isStreaming()) {
+      flushOpenSubtrees(true);
+      featureCount = releasedFeatures;
+      RunMetrics.progress("Finished streaming " + releasedFeatures + " features");
+      if (!genesWithLateChildren.isEmpty()) {
+        throw new IllegalStateException("Features came after the next gene or contig for genes "
+                                        + "that were already written: "
+                                        + describe(genesWithLateChildren)
+                                        + ". Run without -stream");
+      }
+    } else if (compactStore != null) {
+      orphans = compactStore.countPendingChildren();
+      featureCount = compactStore.distinctIds();
+      RunMetrics.progress("Finished loading " + featureCount + " features");
+    } else {
+      RunMetrics.progress("Finished loading " + featureCount + " features");
+    }
+    if (orphans > 0) {
+      RunMetrics.progress(orphans + " features reference a parent that was never found"
+                          + (isStreaming() ? ", or was written several genes before them" : ""));
+    }
+
+    if (useSnapshot) {
+      findGenesAndExons();
+      RunMetrics.progress("Writing snapshot " + snapshotFile + "...");
+      try {
+        AnnotationSnapshot.write(snapshotFile, gffFilename, coverage, genes, duplicateIds,
+                                 featureCount);
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  /**
+   * An empty aggregator, for features read from somewhere other than a GFF3 file to be added to one
+   * at a time, see {@link OutOfCoreLoader}
+   */
+  Aggregator(Path outputDir, ParseOptions options) {
+    this.outputDir = outputDir;
+    this.projection = options.projection;
+    this.threads = options.threads;
+    this.completedGeneConsumer = null;
+    this.compactStore = null;
   }
 
-  private void add(BasicFeature feat, Gff3BaseData baseData) {
+  /**
+   * An aggregator of genes found by others, ready to be grouped and written
+   */
+  Aggregator(Path outputDir, ParseOptions options, Collection<BasicFeature> genes,
+             int featureCount) {
+    this(outputDir, options);
+    this.genes.addAll(genes);
+    this.genesFound = true;
+    this.featureCount = featureCount;
+  }
+
+  boolean isStreaming() {
+    return completedGeneConsumer != null;
+  }
+
+  void add(BasicFeature feat) {
+    if (!projection.keepsType(feat.type)) {
+      addLink(feat.id, feat.parentId, feat.type);
+      return;
+    }
+    if (compactStore != null) {
+      if (!compactStore.add(feat)) {
+        duplicateIds.add(feat.id);
+      }
+      return;
+    }
+    if (isStreaming() && feat.parentId == null) {
+      // a new top-level gene or a new contig is taken to mean every open subtree is finished, so
+      // genes are released as they close even where ### directives are few and far between
+      if (feat.isGene() || !feat.contig.equals(currentContig)) {
+        flushOpenSubtrees(false);
+      }
+      currentContig = feat.contig;
+      openRoots.add(feat);
+    }
+
     if (featureMap.containsKey(feat.id)) {
       duplicateIds.add(feat.id);
     }
     this.featureMap.put(feat.id, feat);
-    try {
-      String parentId = baseData.getAttribute("Parent").get(0);
-      feat.parent = this.featureMap.get(parentId);
-      feat.parent.children.add(feat);
-    } catch (IndexOutOfBoundsException e) {
-      feat.parent = null;
+    if (feat.parentId != null && projection.needsParents()) {
+      attachToParent(feat, feat.parentId);
+    }
+    List<BasicFeature> waitingChildren = pendingChildren.remove(feat.id);
+    if (waitingChildren != null) {
+      for (BasicFeature child : waitingChildren) {
+        child.parent = feat;
+        feat.addChild(child);
+      }
+    }
+  }
+
+  /**
+   * Remember where a feature dropped by the projection would have hung in the tree, so its kept
+   * descendants can be attached to its nearest kept ancestor instead.
+   */
+  void addLink(String id, String parentId, String type) {
+    if (id == null || !projection.linksType(type)) {
+      return;
+    }
+    if (compactStore != null) {
+      compactStore.addLink(id, parentId);
+      return;
+    }
+    parentLinks.put(id, parentId);
+    List<BasicFeature> waitingChildren = pendingChildren.remove(id);
+    if (waitingChildren != null && parentId != null) {
+      for (BasicFeature child : waitingChildren) {
+        attachToParent(child, parentId);
+      }
+    }
+  }
+
+  private void attachToParent(BasicFeature feat, String parentId) {
+    while (!featureMap.containsKey(parentId) && parentLinks.containsKey(parentId)) {
+      parentId = parentLinks.get(parentId);
+      if (parentId == null) {
+        // the chain ends at a dropped top-level feature, which can't be a gene
+        return;
+      }
+    }
+    BasicFeature parent = this.featureMap.get(parentId);
+    String releasedGene = parent == null ? releasedGeneOf(parentId) : null;
+    if (releasedGene != null) {
+      genesWithLateChildren.add(releasedGene);
+    } else if (parent == null) {
+      pendingChildren.computeIfAbsent(parentId, k -> new ArrayList<>()).add(feat);
+    } else {
+      feat.parent = parent;
+      parent.addChild(feat);
     }
   }
 
   public void add(Gff3BaseData baseData) {
-    BasicFeature feat = new BasicFeature(baseData);
-    this.add(feat, baseData);
+    if (!projection.keepsType(baseData.getType())) {
+      addLink(baseData.getId(), BasicFeature.findParentId(baseData), baseData.getType());
+      return;
+    }
+    this.add(new BasicFeature(baseData));
   }
 
   public void add(Gff3Feature superFeature) {
-    BasicFeature feat = new BasicFeature(superFeature);
-    this.add(feat, superFeature.getBaseData());
+    this.add(superFeature.getBaseData());
+  }
+
+  /**
+   * Called for ### directives when the reader can see them: nothing after one refers to anything
+   * before it, so the open subtrees are complete
+   */
+  void flushDirective() {
+    flushOpenSubtrees(true);
+  }
+
+  /**
+   * Streaming mode only: hand every gene in the open subtrees to the consumer, then release the
+   * subtrees so they can be garbage collected.
+   *
+   * @param vouched whether nothing later can refer to the subtrees, at a ### directive or the end
+   *          of the input. Otherwise the released ids are remembered for the next few releases, to
+   *          catch a child that comes for one after all.
+   */
+  private void flushOpenSubtrees(boolean vouched) {
+    if (!isStreaming()) {
+      return;
+    }
+    Map<String, String> released = new HashMap<>();
+    if (vouched) {
+      releasedUnvouched.clear();
+    }
+    Deque<BasicFeature> toVisit = new ArrayDeque<>();
+    for (BasicFeature root : openRoots) {
+      toVisit.push(root);
+      while (!toVisit.isEmpty()) {
+        BasicFeature feat = toVisit.pop();
+        if (feat.isGene()) {
+          completedGeneConsumer.accept(feat);
+        }
+        feat.children.forEach(toVisit::push);
+        // a later duplicate may have replaced this feature in the map, leave that one alone
+        featureMap.remove(feat.id, feat);
+        releasedFeatures++;
+        if (!vouched) {
+          released.put(feat.id, owningGeneId(feat));
+        }
+      }
+    }
+    if (!vouched && !released.isEmpty()) {
+      // dropped features below a released one are released with it
+      for (String id : parentLinks.keySet()) {
+        String ancestor = parentLinks.get(id);
+        while (ancestor != null && !released.containsKey(ancestor)) {
+          ancestor = parentLinks.get(ancestor);
+        }
+        if (ancestor != null) {
+          released.put(id, released.get(ancestor));
+        }
+      }
+      releasedUnvouched.addFirst(released);
+      if (releasedUnvouched.size() > UNVOUCHED_RELEASES_KEPT) {
+        releasedUnvouched.removeLast();
+      }
+      peakReleasedIds = Math.max(peakReleasedIds, releasedUnvouched.stream()
+                                                                   .mapToInt(Map::size).sum());
+    }
+    openRoots.clear();
+    parentLinks.clear();
+  }
+
+  /**
+   * @return the id of the gene a feature was released with, if it was in one of the releases still
+   *         remembered, otherwise null
+   */
+  private String releasedGeneOf(String id) {
+    for (Map<String, String> released : releasedUnvouched) {
+      String gene = released.get(id);
+      if (gene != null) {
+        return gene;
+      }
+    }
+    return null;
+  }
+
+  private static String owningGeneId(BasicFeature feat) {
+    BasicFeature owner = feat;
+    while (!owner.isGene() && owner.parent != null) {
+      owner = owner.parent;
+    }
+    return owner.id;
+  }
+
+  private static String describe(Collection<String> ids) {
+    int shown = 10;
+    String listed = ids.stream().limit(shown).collect(Collectors.joining(", "));
+    return ids.size() > shown ? listed + " and " + (ids.size() - shown) + " more" : listed;
   }
 
   private void findGenes() {
-    System.out.println("Finding genes...");
+    RunMetrics.progress("Finding genes...");
+    if (compactStore != null) {
+      this.genes.addAll(compactStore.materializeGenes());
+      this.genesFound = true;
+      // the genes and their exons are all that is used from here on
+      compactStore = null;
+      return;
+    }
     for (BasicFeature feat : featureMap.values()) {
       if (feat.isGene()) {
         this.genes.add(feat);
@@ -82,7 +394,7 @@ public class Aggregator {
     if (!genesFound) {
       this.findGenes();
     }
-    System.out.println("Finding exons...");
+    RunMetrics.progress("Finding exons...");
     this.genes.forEach(BasicFeature::getDescendantExons);
   }
 
@@ -90,37 +402,98 @@ public class Aggregator {
     if (!genesFound) {
       this.findGenes();
     }
-    System.out.println("Finding introns...");
-    this.genes.forEach(BasicFeature::getDescendantIntrons);
+    RunMetrics.progress("Finding introns...");
+    this.genes.forEach(BasicFeature::getExonModel);
+  }
+
+  /**
+   * Finds the genes' exons, and introns if asked, and groups them by xRefGeneId, a chr at a time
+   * on as many threads as the input was parsed with, see {@link ChrPartitions}
+   */
+  void deriveAndGroupByChr(boolean introns) {
+    if (!genesFound) {
+      this.findGenes();
+    }
+    RunMetrics.progress("Finding exons" + (introns ? " and introns" : "")
+                        + " and grouping genes, a chr at a time...");
+    this.geneGroupIndex = ChrPartitions.deriveAndGroup(genes, introns, threads);
+    this.geneGroupingsByXRefGeneId = null;
+    this.sortedGeneGroupings = null;
+    RunMetrics.progress(geneGroupIndex.size() + " groups computed");
+  }
+
+  /**
+   * Builds every gene's exon model, its exons and introns as intervals, a chr at a time. Bed lines
+   * and GeneData are read from the models, so they are built before those are written.
+   */
+  void deriveExonModels() {
+    RunMetrics.progress("Finding introns, a chr at a time...");
+    ChrPartitions.deriveExonModels(genes, threads);
   }
 
   public void computeXRefMap() {
-    System.out.println("Computing gene groups based on xRefGeneId...");
-    for (BasicFeature gene : genes) {
-      geneGroupingsByXRefGeneId.computeIfAbsent(gene.xRefGeneId,
-                                                (String xRefId) -> new GeneGrouping(xRefId,
-                                                                                    genes.parallelStream()
-                                                                                         .filter(g -> g.xRefGeneId.equals(xRefId))
-                                                                                         .collect(Collectors.toSet()))
+    RunMetrics.progress("Computing gene groups based on xRefGeneId...");
+    this.geneGroupIndex = genes.parallelStream().collect(GeneGroupIndex::new, GeneGroupIndex::add,
+                                                         GeneGroupIndex::merge);
+    this.geneGroupingsByXRefGeneId = null;
+    this.sortedGeneGroupings = null;
+    RunMetrics.progress(geneGroupIndex.size() + " groups computed");
+  }
 
-      );
-      if (geneGroupingsByXRefGeneId.size() % 2000 == 0) {
-        System.out.println(geneGroupingsByXRefGeneId.size() + " groups computed");
-      }
+  Map<String, GeneGrouping> getGeneGroupingsByXRefGeneId() {
+    if (geneGroupingsByXRefGeneId == null) {
+      geneGroupingsByXRefGeneId = geneGroupIndex.toSortedMap();
     }
+    return geneGroupingsByXRefGeneId;
   }
 
   public void writeSerializedGeneTrack() {
+    try (OutputWriters writers = new OutputWriters(1, RunMetrics.DISABLED)) {
+      submitSerializedGeneTrack(writers);
+      writers.awaitAll();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  public void submitSerializedGeneTrack(OutputWriters writers) {
+    RunMetrics.progress("Creating GeneTrack...");
+    Collection<GeneGrouping> groupings = getGeneGroupingsByXRefGeneId().values();
+    writers.submit("GeneTrack.ser", () -> writeSerializedGeneTrack(outputDir, geneDatas(groupings)),
+                   outputDir.resolve("geneset.ser"), outputDir.resolve("GeneTrack.ser"));
+  }
+
+  /**
+   * Queues GeneTrack.bin, built straight from the GeneData, see {@link GeneTrackFile}
+   */
+  public void submitGeneTrackFile(OutputWriters writers) {
+    RunMetrics.progress("Creating binary GeneTrack...");
+    Collection<GeneGrouping> groupings = getGeneGroupingsByXRefGeneId().values();
+    Path file = outputDir.resolve(GeneTrackFile.FILE_NAME);
+    writers.submit(GeneTrackFile.FILE_NAME,
+                   () -> GeneTrackFile.write(file, GeneTrackFile.byChr(geneDatas(groupings))),
+                   file);
+  }
+
+  /**
+   * Builds the GeneData of every main contig gene ahead of the GeneTrack writers, which each
+   * read them
+   */
+  void deriveGeneData() {
+    for (GeneGrouping grouping : getGeneGroupingsByXRefGeneId().values()) {
+      grouping.getMainContigGenes().forEach(BasicFeature::toGeneData);
+    }
+  }
+
+  private static List<GeneData> geneDatas(Collection<GeneGrouping> groupings) {
+    return groupings.stream().map(GeneGrouping::getMainContigGenes).flatMap(Set::stream)
+                    .map(BasicFeature::toGeneData).collect(Collectors.toList());
+  }
+
+  static void writeSerializedGeneTrack(Path outputDir, List<GeneData> geneDatas) {
     Path geneSetFile = outputDir.resolve("geneset.ser");
     Path geneTrackFile = outputDir.resolve("GeneTrack.ser");
 
-    System.out.println("Creating GeneTrack...");
-    List<GeneData> geneDatas = geneGroupingsByXRefGeneId.values().stream()
-                                                        .map(GeneGrouping::getMainContigGenes)
-                                                        .flatMap((Set<BasicFeature> s) -> s.stream()
-                                                                                           .map(BasicFeature::toGeneData))
-                                                        .collect(Collectors.toList());
-
     GeneSet geneSet = new GeneSet(geneDatas);
     geneSet.serialize(geneSetFile.toString());
 
@@ -129,54 +502,391 @@ public class Aggregator {
   }
 
   public void writeBedFile(boolean includeExons, boolean includeIntrons) {
-    StringJoiner filename = new StringJoiner("_");
-    if (includeExons) filename.add("exons");
-    if (includeIntrons) filename.add("introns");
-    Path bedFile = outputDir.resolve(filename + ".bed");
-    PrintWriter writer = org.pankratzlab.common.Files.getAppropriateWriter(bedFile.toString());
-    geneGroupingsByXRefGeneId.values().stream().sorted(GeneGrouping::compareTo)
-        .forEachOrdered((GeneGrouping geneGrouping) -> {
-          try {
-            BasicFeature mainContigGene = geneGrouping.getMainContigGenes().stream().findFirst()
-                .get();
-            mainContigGene.toBedLines(includeExons, includeIntrons).forEach(writer::println);
-          } catch (NoSuchElementException e) {
-            System.out.println("No main contig gene found for group " + geneGrouping.geneId);
+    try {
+      writeSortedOutputs(includeExons && !includeIntrons, includeIntrons && !includeExons,
+                         includeExons && includeIntrons, false);
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  public void writeGenesXlnFile() throws IOException {
+    writeSortedOutputs(false, false, false, true);
+  }
+
+  /**
+   * Writes any combination of the three bed files and genes.xln, one after another
+   */
+  public void writeSortedOutputs(boolean exonsBed, boolean intronsBed, boolean exonsIntronsBed,
+                                 boolean genesXln) throws IOException {
+    try (OutputWriters writers = new OutputWriters(1, RunMetrics.DISABLED)) {
+      submitSortedOutputs(writers, exonsBed, intronsBed, exonsIntronsBed, genesXln, false);
+      writers.awaitAll();
+    }
+  }
+
+  /**
+   * Queues any combination of the three bed files and genes.xln, each a pass over the gene
+   * groupings in location order. The order and each gene's sorted, deduplicated exons and introns
+   * are worked out here, once, so the writers only read them.
+   *
+   * @param bgzip write the bed files block gzipped and tabix indexed, as .bed.gz and .bed.gz.tbi
+   */
+  public void submitSortedOutputs(OutputWriters writers, boolean exonsBed, boolean intronsBed,
+                                  boolean exonsIntronsBed, boolean genesXln, boolean bgzip) {
+    submitSortedOutputs(writers, getSortedGeneGroupings(), "", exonsBed, intronsBed,
+                        exonsIntronsBed, genesXln, bgzip);
+  }
+
+  /**
+   * Same as {@link #submitSortedOutputs}, but only for the given groupings, as exons.patch.bed,
+   * genes38.patch.xln and so on. Exons and introns are only derived for those groupings.
+   */
+  public void submitPatchOutputs(OutputWriters writers, Set<String> xRefGeneIds, boolean exonsBed,
+                                 boolean intronsBed, boolean exonsIntronsBed, boolean genesXln,
+                                 boolean bgzip) {
+    List<GeneGrouping> groupings = new ArrayList<>(xRefGeneIds.size());
+    for (GeneGrouping geneGrouping : getSortedGeneGroupings()) {
+      if (xRefGeneIds.contains(geneGrouping.geneId)) {
+        groupings.add(geneGrouping);
+      }
+    }
+    submitSortedOutputs(writers, groupings, ".patch", exonsBed, intronsBed, exonsIntronsBed,
+                        genesXln, bgzip);
+  }
+
+  private void submitSortedOutputs(OutputWriters writers, List<GeneGrouping> groupings,
+                                   String suffix, boolean exonsBed, boolean intronsBed,
+                                   boolean exonsIntronsBed, boolean genesXln, boolean bgzip) {
+    if (!(exonsBed || intronsBed || exonsIntronsBed || genesXln)) {
+      return;
+    }
+    boolean[] rendered = new boolean[FRAGMENT_FILES.length];
+    rendered[EXONS_BED] = exonsBed;
+    rendered[INTRONS_BED] = intronsBed;
+    rendered[EXONS_INTRONS_BED] = exonsIntronsBed;
+    rendered[GENES_XLN] = genesXln;
+    // each chr's part of every file is rendered on its own, while the writers copy out the parts
+    // that are done, in chr order
+    List<ForkJoinTask<List<List<String>>>> fragments;
+    fragments = ChrPartitions.renderByChr(groupings, threads,
+                                          run -> renderFragments(run, rendered, bgzip));
+
+    for (int file = 0; file < FRAGMENT_FILES.length; file++) {
+      if (!rendered[file]) {
+        continue;
+      }
+      int fileIndex = file;
+      // println's line ends for the bed files, like the PrintWriters they used to be written with
+      String lineSeparator = file == GENES_XLN ? "\n" : System.lineSeparator();
+      OutputWriters.FileContent content = out -> {
+        for (ForkJoinTask<List<List<String>>> fragment : fragments) {
+          List<List<String>> lines = fragment.join();
+          for (String line : lines.get(fileIndex)) {
+            out.write(line);
+            out.write(lineSeparator);
           }
+          // written, it's no use holding on to it
+          lines.set(fileIndex, null);
+        }
+      };
+      if (file == GENES_XLN) {
+        RunMetrics.progress("Writing genes.xln file...");
+        // todo: GeneID reference_name reference_chr reference_start reference_stop
+        // ------xref----name
+        writers.submit(prepareGenesXlnFile("genes38" + suffix + ".xln").toPath(), out -> {
+          out.write(String.join("\t", "id", "name", "chr", "start", "stop") + "\n");
+          content.write(out);
         });
-    writer.close();
+      } else if (bgzip) {
+        writers.submitTabixBed(outputDir.resolve(FRAGMENT_FILES[file] + suffix + ".bed.gz"),
+                               content);
+      } else {
+        writers.submit(outputDir.resolve(FRAGMENT_FILES[file] + suffix + ".bed"), content);
+      }
+    }
   }
 
-  public void writeGenesXlnFile() throws IOException {
-    System.out.println("Writing genes.xln file...");
-    // todo: GeneID reference_name reference_chr reference_start reference_stop
-    // ------xref----name
+  // the files rendered a chr at a time, indices into the fragments of each chr
+  private static final String[] FRAGMENT_FILES = {"exons", "introns", "exons_introns", "genes38"};
+  private static final int EXONS_BED = 0;
+  private static final int INTRONS_BED = 1;
+  private static final int EXONS_INTRONS_BED = 2;
+  private static final int GENES_XLN = 3;
+
+  /**
+   * @param groupings in location order, all on one chr
+   * @return the lines of each file for the groupings, null for files not rendered
+   */
+  private static List<List<String>> renderFragments(List<GeneGrouping> groupings,
+                                                    boolean[] rendered, boolean bgzip) {
+    List<List<String>> lines = new ArrayList<>(Collections.nCopies(FRAGMENT_FILES.length, null));
+    if (rendered[EXONS_BED] || rendered[INTRONS_BED] || rendered[EXONS_INTRONS_BED]) {
+      // the first main contig gene of each grouping that has one
+      List<BasicFeature> mainContigGenes = new ArrayList<>(groupings.size());
+      for (GeneGrouping geneGrouping : groupings) {
+        if (!geneGrouping.hasMainContigGene()) {
+          RunMetrics.progress("No main contig gene found for group " + geneGrouping.geneId);
+          continue;
+        }
+        mainContigGenes.add(geneGrouping.getMainContigGenes().iterator().next());
+      }
+      for (int file = EXONS_BED; file <= EXONS_INTRONS_BED; file++) {
+        if (rendered[file]) {
+          boolean includeExons = file != INTRONS_BED;
+          boolean includeIntrons = file != EXONS_BED;
+          lines.set(file, bgzip ? sortedBedLines(mainContigGenes, includeExons, includeIntrons)
+                                : bedLines(mainContigGenes, includeExons, includeIntrons));
+        }
+      }
+    }
+    if (rendered[GENES_XLN]) {
+      List<String> xlnLines = new ArrayList<>();
+      for (GeneGrouping geneGrouping : groupings) {
+        for (BasicFeature gene : geneGrouping.getGenes()) {
+          xlnLines.add(gene.toGenesXlnLine());
+        }
+      }
+      lines.set(GENES_XLN, xlnLines);
+    }
+    return lines;
+  }
+
+  private static List<String> bedLines(List<BasicFeature> genes, boolean includeExons,
+                                       boolean includeIntrons) {
+    List<String> lines = new ArrayList<>();
+    for (BasicFeature gene : genes) {
+      lines.addAll(gene.toBedLines(includeExons, includeIntrons));
+    }
+    return lines;
+  }
+
+  /**
+   * The bed lines of all the genes by chr and start, which tabix needs. Genes come in order of
+   * their own start, but exons and introns of genes that overlap each other are interleaved.
+   */
+  private static List<String> sortedBedLines(List<BasicFeature> genes, boolean includeExons,
+                                             boolean includeIntrons) {
+    List<BedLineKey> keys = new ArrayList<>();
+    for (BasicFeature gene : genes) {
+      for (String line : gene.toBedLines(includeExons, includeIntrons)) {
+        keys.add(new BedLineKey(gene.getChr(), line));
+      }
+    }
+    // stable, so lines that start together keep their gene's order
+    keys.sort(null);
+    List<String> lines = new ArrayList<>(keys.size());
+    for (BedLineKey key : keys) {
+      lines.add(key.line);
+    }
+    return lines;
+  }
+
+  private static final class BedLineKey implements Comparable<BedLineKey> {
+    final long chrAndStart;
+    final String line;
+
+    BedLineKey(int chr, String line) {
+      int startFrom = line.indexOf('\t') + 1;
+      int start = Integer.parseInt(line, startFrom, line.indexOf('\t', startFrom), 10);
+      this.chrAndStart = (long) chr << 32 | start;
+      this.line = line;
+    }
+
+    @Override
+    public int compareTo(BedLineKey other) {
+      return Long.compare(chrAndStart, other.chrAndStart);
+    }
+  }
+
+  // the tables written with -arrow, each with the same columns
+  private static final String[] ARROW_FILES = {"genes.arrow", "exons.arrow", "introns.arrow"};
+  private static final int ARROW_GENES = 0;
+  private static final int ARROW_EXONS = 1;
+  private static final int ARROW_INTRONS = 2;
+  static final List<ArrowIpcWriter.Column> ARROW_SCHEMA;
+  static {
+    ArrowIpcWriter.ColumnType int8 = ArrowIpcWriter.ColumnType.INT8;
+    ArrowIpcWriter.ColumnType int32 = ArrowIpcWriter.ColumnType.INT32;
+    ArrowIpcWriter.ColumnType utf8 = ArrowIpcWriter.ColumnType.UTF8;
+    ARROW_SCHEMA = List.of(new ArrowIpcWriter.Column("chr", int8),
+                           new ArrowIpcWriter.Column("start", int32),
+                           new ArrowIpcWriter.Column("end", int32),
+                           new ArrowIpcWriter.Column("strand", utf8),
+                           new ArrowIpcWriter.Column("name", utf8),
+                           new ArrowIpcWriter.Column("xRefGeneId", utf8),
+                           new ArrowIpcWriter.Column("parentGene", utf8));
+  }
+
+  /**
+   * Queues genes.arrow, exons.arrow and introns.arrow, Arrow IPC files for loading without
+   * parsing, see {@link ArrowIpcWriter}. genes.arrow has the genes of genes38.xln, the other two
+   * the exons and introns of the bed files, named like there, with the id of their gene as
+   * parentGene. Coordinates are 1-based and inclusive, chrs are numbered like in genes38.xln.
+   * <p>
+   * Each file has a record batch per chr. Its writer renders them a chr at a time, a few chrs
+   * ahead of what it has written (see {@link ChrPartitions#renderAhead}), so no table is held
+   * whole and a slow writer doesn't leave the batches of every chr waiting for it.
+   */
+  public void submitArrowOutputs(OutputWriters writers) {
+    RunMetrics.progress("Writing Arrow files...");
+    List<GeneGrouping> groupings = getSortedGeneGroupings();
+    for (int table = 0; table < ARROW_FILES.length; table++) {
+      int tableIndex = table;
+      Path file = outputDir.resolve(ARROW_FILES[table]);
+      // nothing is rendered until the writer starts iterating
+      Iterable<ArrowIpcWriter.Batch> batches;
+      batches = ChrPartitions.renderAhead(groupings, threads,
+                                          run -> renderArrowBatch(run, tableIndex));
+      writers.submit(ARROW_FILES[table], () -> {
+        try (ArrowIpcWriter out = new ArrowIpcWriter(file, ARROW_SCHEMA)) {
+          for (ArrowIpcWriter.Batch batch : batches) {
+            if (batch.rows() > 0) {
+              out.write(batch);
+            }
+          }
+        }
+      }, file);
+    }
+  }
 
-    String genesXlnFileName = "genes38.xln";
-    File genesXlnFile = dir.resolve(genesXlnFileName).toFile();
+  /**
+   * @param groupings in location order, all on one chr
+   * @return the record batch of the table for the groupings
+   */
+  private static ArrowIpcWriter.Batch renderArrowBatch(List<GeneGrouping> groupings, int table) {
+    ArrowIpcWriter.Batch batch = new ArrowIpcWriter.Batch(ARROW_SCHEMA);
+    for (GeneGrouping geneGrouping : groupings) {
+      if (table == ARROW_GENES) {
+        List<BasicFeature> genes = new ArrayList<>(geneGrouping.getGenes());
+        genes.sort(BasicFeature::compareLocation);
+        for (BasicFeature gene : genes) {
+          addArrowRow(batch, gene, gene.start, gene.end, gene.name, null);
+        }
+        continue;
+      }
+      // the bed files' gene, which has none on MT
+      if (!geneGrouping.hasMainContigGene()) {
+        continue;
+      }
+      BasicFeature gene = geneGrouping.getMainContigGenes().iterator().next();
+      if (ContigDictionary.active().isMitochondrion(gene.getChr())) {
+        continue;
+      }
+      ExonModel model = gene.getExonModel();
+      int from = table == ARROW_EXONS ? 0 : model.exonCount();
+      int to = table == ARROW_EXONS ? model.exonCount() : model.size();
+      for (int i = from; i < to; i++) {
+        String name = table == ARROW_EXONS ? gene.name + "_e_" + i
+                                           : gene.name + "_i_" + (i - model.exonCount());
+        addArrowRow(batch, gene, model.start(i), model.end(i), name, gene.id);
+      }
+    }
+    return batch;
+  }
+
+  private static void addArrowRow(ArrowIpcWriter.Batch table, BasicFeature gene, int start,
+                                  int end, String name, String parentGene) {
+    String strand = ".";
+    if (gene.strand == GeneData.PLUS_STRAND) {
+      strand = "+";
+    } else if (gene.strand == GeneData.MINUS_STRAND) {
+      strand = "-";
+    }
+    table.addByte(0, gene.getChr()).addInt(1, start).addInt(2, end).addString(3, strand)
+         .addString(4, name).addString(5, gene.xRefGeneId).addString(6, parentGene);
+  }
+
+  private File prepareGenesXlnFile(String genesXlnFileName) {
+    File genesXlnFile = outputDir.resolve(genesXlnFileName).toFile();
 
     if (genesXlnFile.isFile()) {
-      System.out.println("File " + genesXlnFile
-                         + " already exists. It will be deleted and recreated.");
+      RunMetrics.progress("File " + genesXlnFile
+                          + " already exists. It will be deleted and recreated.");
       boolean deleteSuccess = genesXlnFile.delete();
       if (!deleteSuccess) {
         throw new IllegalStateException("Delete was unsuccessful, cannot continue");
       }
     }
+    return genesXlnFile;
+  }
 
-    String header = String.join("\t", "id", "name", "chr", "start", "stop");
+  /**
+   * Gene groupings by chr, start and end of their representative gene, ties broken on geneId so the
+   * order matches a stable sort of the xRefGeneId-ordered view, see
+   * {@link ChrPartitions#sortByLocation}
+   */
+  List<GeneGrouping> getSortedGeneGroupings() {
+    if (sortedGeneGroupings == null) {
+      sortedGeneGroupings = ChrPartitions.sortByLocation(geneGroupIndex.getGroupings(), threads);
+    }
+    return sortedGeneGroupings;
+  }
 
-    try (FileWriter writer = new FileWriter(genesXlnFile)) {
-      writer.write(header + "\n");
-      for (BasicFeature gene : genes) {
-        writer.write(gene.toGenesXlnLine() + "\n");
+  IntervalIndex buildIntervalIndex() {
+    RunMetrics.progress("Building interval index...");
+    return new IntervalIndex(genes, true, true);
+  }
+
+  /**
+   * Writes every gene, exon and intron overlapping each region to queryResults.tsv. A region
+   * without any overlapping gene gets its nearest gene instead.
+   *
+   * @param regions see {@link IntervalIndex#parseRegion}
+   */
+  public void writeRegionQueries(List<String> regions) throws IOException {
+    findGenesAndIntrons();
+    IntervalIndex index = buildIntervalIndex();
+    Path resultsFile = outputDir.resolve("queryResults.tsv");
+    RunMetrics.progress("Querying " + regions.size() + " regions...");
+    try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(resultsFile))) {
+      writer.println(QUERY_RESULTS_HEADER);
+      for (String region : regions) {
+        queryRegion(index, region).forEach(writer::println);
+      }
+    }
+    RunMetrics.progress("Query results written to " + resultsFile);
+  }
+
+  static final String QUERY_RESULTS_HEADER = String.join("\t", "region", "kind", "chr", "start",
+                                                         "end", "gene", "xRefGeneId");
+
+  /**
+   * @return a queryResults.tsv line for every match of the region
+   */
+  static List<String> queryRegion(IntervalIndex index, String region) {
+    int[] parsed = IntervalIndex.parseRegion(region);
+    List<String> lines = new ArrayList<>();
+    boolean geneFound = false;
+    for (IntervalIndex.Hit hit : index.overlapping(parsed[0], parsed[1], parsed[2])) {
+      lines.add(queryResultLine(region, hit.getKindName(), hit.feature, hit.gene));
+      geneFound |= hit.kind == IntervalIndex.GENE;
+    }
+    if (!geneFound) {
+      BasicFeature nearest = index.nearestGene(parsed[0], parsed[1]);
+      if (nearest != null) {
+        lines.add(queryResultLine(region, "nearest_gene", nearest, nearest));
       }
     }
+    return lines;
+  }
 
+  private static String queryResultLine(String region, String kind, BasicFeature feature,
+                                        BasicFeature gene) {
+    return String.join("\t", region, kind, String.valueOf(feature.getChr()),
+                       String.valueOf(feature.start), String.valueOf(feature.end), gene.name,
+                       gene.xRefGeneId);
   }
 
   void writeQcOutput() throws IOException {
-    System.out.println("Writing QC files...");
+    try (OutputWriters writers = new OutputWriters(1, RunMetrics.DISABLED)) {
+      submitQcOutput(writers);
+      writers.awaitAll();
+    }
+  }
+
+  void submitQcOutput(OutputWriters writers) throws IOException {
+    RunMetrics.progress("Writing QC files...");
     Path genesAndExonsFile = outputDir.resolve("geneinfo");
     Path chrGeneCountsFile = outputDir.resolve("chrGeneCounts.tsv");
     Path seqIdCountsFile = outputDir.resolve("seqIdCounts.tsv");
@@ -193,25 +903,24 @@ public class Aggregator {
       File f = fileName.toFile();
       boolean result = Files.deleteIfExists(f.toPath());
       if (result) {
-        System.out.println("deleted " + fileName);
+        RunMetrics.progress("deleted " + fileName);
       }
     }
 
-    FileWriter genesAndExonsWriter = new FileWriter(genesAndExonsFile.toFile());
-    for (GeneGrouping gg : geneGroupingsByXRefGeneId.values()) {
-      for (BasicFeature gene : gg.getMainContigGenes()) {
-        genesAndExonsWriter.write(gene.name + "  " + gene.start + "  " + gene.end + "\n");
-        for (BasicFeature exon : gene.getDescendantExons()) {
-          genesAndExonsWriter.write("   |" + exon.id + "  " + exon.start + "  " + exon.end + "\n");
+    Collection<GeneGrouping> groupings = getGeneGroupingsByXRefGeneId().values();
+    writers.submit(genesAndExonsFile, out -> {
+      for (GeneGrouping gg : groupings) {
+        for (BasicFeature gene : gg.getMainContigGenes()) {
+          writeRow(out, "  ", gene.name, String.valueOf(gene.start), String.valueOf(gene.end));
+          for (BasicFeature exon : gene.getDescendantExons()) {
+            out.write("   |");
+            writeRow(out, "  ", exon.id, String.valueOf(exon.start), String.valueOf(exon.end));
+          }
         }
       }
-    }
-    genesAndExonsWriter.close();
+    });
 
-    FileWriter geneCountsWriter = new FileWriter(chrGeneCountsFile.toFile());
-    FileWriter seqIdCountsWriter = new FileWriter(seqIdCountsFile.toFile());
-
-    int[] chrGeneCounts = new int[27];
+    int[] chrGeneCounts = new int[ContigDictionary.active().maxChr() + 1];
     Map<String, Integer> seqIdCounts = new TreeMap<>();
     Map<String, Integer> seqIdTochrMapping = new TreeMap<>();
 
@@ -225,56 +934,67 @@ public class Aggregator {
         seqIdTochrMapping.put(gene.contig, (int) gene.getChr());
       }
     }
-    geneCountsWriter.write("chr\tgeneCount\n");
-    for (int i = 0; i < chrGeneCounts.length; i++) {
-      geneCountsWriter.write(i + "\t" + chrGeneCounts[i] + "\n");
-    }
-    geneCountsWriter.close();
-
-    seqIdCountsWriter.write("seqId\tgeneCount\tchrMapping\n");
-    for (Map.Entry<String, Integer> entry : seqIdCounts.entrySet()) {
-      String contig = entry.getKey();
-      Integer count = entry.getValue();
-      Integer chrMapping = seqIdTochrMapping.get(contig);
-      seqIdCountsWriter.write(contig + "\t" + count + "\t" + chrMapping + "\n");
-    }
-    seqIdCountsWriter.close();
-
-    FileWriter duplicateIdsWriter = new FileWriter(duplicateIdsFile.toFile());
-    duplicateIdsWriter.write("id\tinGenes\tinExons\n");
-
-    Set<String> geneIds = genes.stream().map(gene -> gene.id).collect(Collectors.toSet());
-    Set<String> exonIds = genes.stream().flatMap(gene -> gene.descendantExons.stream())
-                               .map(exon -> exon.id).collect(Collectors.toSet());
+    writers.submit(chrGeneCountsFile, out -> {
+      writeRow(out, "\t", "chr", "geneCount");
+      for (int i = 0; i < chrGeneCounts.length; i++) {
+        writeRow(out, "\t", String.valueOf(i), String.valueOf(chrGeneCounts[i]));
+      }
+    });
+
+    writers.submit(seqIdCountsFile, out -> {
+      writeRow(out, "\t", "seqId", "geneCount", "chrMapping");
+      for (Map.Entry<String, Integer> entry : seqIdCounts.entrySet()) {
+        String contig = entry.getKey();
+        writeRow(out, "\t", contig, String.valueOf(entry.getValue()),
+                 String.valueOf(seqIdTochrMapping.get(contig)));
+      }
+    });
+
+    writers.submit(duplicateIdsFile, out -> {
+      writeRow(out, "\t", "id", "inGenes", "inExons");
+      Set<String> geneIds = genes.stream().map(gene -> gene.id).collect(Collectors.toSet());
+      Set<String> exonIds = genes.stream().flatMap(gene -> gene.getDescendantExons().stream())
+                                 .map(exon -> exon.id).collect(Collectors.toSet());
+      for (String id : duplicateIds) {
+        writeRow(out, "\t", id, geneIds.contains(id) ? "1" : "0", exonIds.contains(id) ? "1" : "0");
+      }
+    });
 
-    for (String id : duplicateIds) {
-      int duplicateGene = geneIds.contains(id) ? 1 : 0;
-      int duplicateExon = exonIds.contains(id) ? 1 : 0;
-      duplicateIdsWriter.write(id + "\t" + duplicateGene + "\t" + duplicateExon + "\n");
-    }
-    duplicateIdsWriter.close();
+    writers.submit(genesContigsFile, out -> {
+      writeRow(out, "\t", "id", "contig", "chrMapping");
+      for (BasicFeature gene : genes) {
+        writeRow(out, "\t", gene.id, gene.contig,
+                 String.valueOf(seqIdTochrMapping.get(gene.contig)));
+      }
+    });
 
-    FileWriter geneContigWriter = new FileWriter(genesContigsFile.toFile());
-    geneContigWriter.write("id\tcontig\tchrMapping\n");
-    for (BasicFeature gene : genes) {
-      geneContigWriter.write(gene.id + "\t" + gene.contig + "\t"
-                             + seqIdTochrMapping.get(gene.contig) + "\n");
-    }
-    geneContigWriter.close();
+    writers.submit(geneIdMappingFile, out -> {
+      writeRow(out, "\t", "id", "xRefGeneId", "onMainContig");
+      for (BasicFeature gene : genes) {
+        writeRow(out, "\t", gene.id, gene.xRefGeneId, String.valueOf(gene.onMainContig));
+      }
+    });
 
-    FileWriter geneIdMappingWriter = new FileWriter(geneIdMappingFile.toFile());
-    geneIdMappingWriter.write("id\txRefGeneId\tonMainContig\n");
-    for (BasicFeature gene : genes) {
-      geneIdMappingWriter.write(gene.id + "\t" + gene.xRefGeneId + "\t" + gene.onMainContig + "\n");
-    }
-    geneIdMappingWriter.close();
+    writers.submit(geneGroupingsFile, out -> {
+      writeRow(out, "\t", "xRefGeneId", "totalGenes", "mainContigGenes");
+      for (GeneGrouping gg : groupings) {
+        writeRow(out, "\t", gg.geneId, String.valueOf(gg.countTotalGenes()),
+                 String.valueOf(gg.countMainContigGenes()));
+      }
+    });
+  }
 
-    FileWriter geneGroupingsWriter = new FileWriter(geneGroupingsFile.toFile());
-    geneGroupingsWriter.write("xRefGeneId\ttotalGenes\tmainContigGenes\n");
-    for (GeneGrouping gg : this.geneGroupingsByXRefGeneId.values()) {
-      geneGroupingsWriter.write(gg.geneId + "\t" + gg.countTotalGenes() + "\t"
-                                + gg.countMainContigGenes() + "\n");
+  /**
+   * Writes the fields and a newline without building the line first. Nulls come out as "null",
+   * like they did when these lines were concatenated.
+   */
+  private static void writeRow(Writer out, String separator, String... fields) throws IOException {
+    for (int i = 0; i < fields.length; i++) {
+      if (i > 0) {
+        out.write(separator);
+      }
+      out.write(fields[i] == null ? "null" : fields[i]);
     }
-    geneGroupingsWriter.close();
+    out.write('\n');
   }
 }
@@ -0,0 +1,199 @@
+package org.pankratzlab;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves lookups against an already loaded annotation over HTTP on the loopback interface, so
+ * pipeline steps don't pay for JVM startup and parsing on every call. Everything a request can
+ * touch is derived up front, after that the model is only read, so requests run concurrently
+ * without locking. Endpoints, all GET, all answering tab separated text:
+ *
+ * <pre>
+ * /gene?id=gene-EGFR       genes.xln lines for a gene id, a gene name (name=) or an xRefGeneId (xref=)
+ * /region?q=chr7:1-2000    queryResults.tsv lines, q can be repeated
+ * /bed?genes=EGFR,TP53     bed lines for the named genes, add exons=false or introns=false to drop either
+ * /xln?genes=EGFR,TP53     genes.xln lines for the named genes
+ * </pre>
+ *
+ * Headers and body go out as separate small writes, so unless the JVM runs with
+ * sun.net.httpserver.nodelay=true every response waits out a delayed ack. {@link Main} sets it
+ * before it creates the server. The JDK reads it once, when the first server in the JVM is
+ * created, so anything else starting one should set it before then.
+ */
+public class AnnotationServer {
+  private final Map<String, BasicFeature> genesById = new HashMap<>();
+  private final Map<String, List<BasicFeature>> genesByName = new HashMap<>();
+  private final Map<String, List<BasicFeature>> genesByXRefGeneId = new HashMap<>();
+  private final IntervalIndex index;
+
+  private final HttpServer server;
+  private final ExecutorService executor;
+
+  public AnnotationServer(Aggregator aggregator, int port, int threads) throws IOException {
+    RunMetrics.progress("Preparing annotation for serving...");
+    aggregator.findGenesAndIntrons();
+    for (BasicFeature gene : aggregator.genes) {
+      // derive everything lazily cached now, so serving never writes to the model
+      gene.getSortedDistinctExons();
+      gene.getSortedDistinctIntrons();
+      genesById.put(gene.id, gene);
+      genesByName.computeIfAbsent(gene.name, k -> new ArrayList<>()).add(gene);
+      genesByXRefGeneId.computeIfAbsent(gene.xRefGeneId, k -> new ArrayList<>()).add(gene);
+    }
+    this.index = aggregator.buildIntervalIndex();
+
+    this.executor = Executors.newFixedThreadPool(threads);
+    this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port),
+                                    0);
+    server.setExecutor(executor);
+    server.createContext("/gene", exchange -> respond(exchange, this::geneLines));
+    server.createContext("/region", exchange -> respond(exchange, this::regionLines));
+    server.createContext("/bed", exchange -> respond(exchange, this::bedLines));
+    server.createContext("/xln", exchange -> respond(exchange, this::xlnLines));
+  }
+
+  public void start() {
+    server.start();
+    System.out.println("Serving " + genesById.size() + " genes on http://"
+                       + server.getAddress().getHostString() + ":" + server.getAddress().getPort());
+  }
+
+  public void stop() {
+    server.stop(0);
+    executor.shutdown();
+  }
+
+  private interface Handler {
+    List<String> lines(Map<String, List<String>> params);
+  }
+
+  private static void respond(HttpExchange exchange, Handler handler) throws IOException {
+    int status = 200;
+    String body;
+    try {
+      body = String.join("\n", handler.lines(parseQuery(exchange.getRequestURI().getRawQuery())))
+             + "\n";
+    } catch (IllegalArgumentException e) {
+      status = 400;
+      body = e.getMessage() + "\n";
+    } catch (RuntimeException e) {
+      status = 500;
+      body = e + "\n";
+    }
+    byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "text/tab-separated-values; charset=utf-8");
+    exchange.sendResponseHeaders(status, bytes.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(bytes);
+    }
+  }
+
+  private static Map<String, List<String>> parseQuery(String rawQuery) {
+    Map<String, List<String>> params = new HashMap<>();
+    if (rawQuery == null || rawQuery.isEmpty()) {
+      return params;
+    }
+    for (String pair : rawQuery.split("&")) {
+      int equals = pair.indexOf('=');
+      String key = URLDecoder.decode(equals < 0 ? pair : pair.substring(0, equals),
+                                     StandardCharsets.UTF_8);
+      String value = equals < 0 ? ""
+                                : URLDecoder.decode(pair.substring(equals + 1),
+                                                    StandardCharsets.UTF_8);
+      params.computeIfAbsent(key, k -> new ArrayList<>()).add(value);
+    }
+    return params;
+  }
+
+  private static List<String> param(Map<String, List<String>> params, String key) {
+    return params.getOrDefault(key, Collections.emptyList());
+  }
+
+  private static boolean flag(Map<String, List<String>> params, String key) {
+    List<String> values = param(params, key);
+    return values.isEmpty() || Boolean.parseBoolean(values.get(0));
+  }
+
+  /**
+   * @param names comma separated gene names
+   */
+  private Collection<BasicFeature> genesNamed(List<String> names) {
+    if (names.isEmpty()) {
+      throw new IllegalArgumentException("No genes given, use genes=NAME1,NAME2");
+    }
+    Set<BasicFeature> genes = new LinkedHashSet<>();
+    for (String list : names) {
+      for (String name : list.split(",")) {
+        genes.addAll(genesByName.getOrDefault(name, Collections.emptyList()));
+      }
+    }
+    return genes;
+  }
+
+  private List<String> geneLines(Map<String, List<String>> params) {
+    List<String> lines = new ArrayList<>();
+    for (String id : param(params, "id")) {
+      BasicFeature gene = genesById.get(id);
+      if (gene != null) {
+        lines.add(gene.toGenesXlnLine());
+      }
+    }
+    for (String name : param(params, "name")) {
+      genesByName.getOrDefault(name, Collections.emptyList())
+                 .forEach(gene -> lines.add(gene.toGenesXlnLine()));
+    }
+    for (String xRefGeneId : param(params, "xref")) {
+      genesByXRefGeneId.getOrDefault(xRefGeneId, Collections.emptyList())
+                       .forEach(gene -> lines.add(gene.toGenesXlnLine()));
+    }
+    return lines;
+  }
+
+  private List<String> regionLines(Map<String, List<String>> params) {
+    List<String> regions = param(params, "q");
+    if (regions.isEmpty()) {
+      throw new IllegalArgumentException("No region given, use q=chr:start-end");
+    }
+    List<String> lines = new ArrayList<>();
+    for (String region : regions) {
+      lines.addAll(Aggregator.queryRegion(index, region));
+    }
+    return lines;
+  }
+
+  private List<String> bedLines(Map<String, List<String>> params) {
+    boolean exons = flag(params, "exons");
+    boolean introns = flag(params, "introns");
+    List<String> lines = new ArrayList<>();
+    for (BasicFeature gene : genesNamed(param(params, "genes"))) {
+      if (gene.onMainContig) {
+        lines.addAll(gene.toBedLines(exons, introns));
+      }
+    }
+    return lines;
+  }
+
+  private List<String> xlnLines(Map<String, List<String>> params) {
+    List<String> lines = new ArrayList<>();
+    genesNamed(param(params, "genes")).forEach(gene -> lines.add(gene.toGenesXlnLine()));
+    return lines;
+  }
+}
@@ -0,0 +1,307 @@
+package org.pankratzlab;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32C;
+
+/**
+ * A binary dump of the genes (with their exons) and duplicate ids of a parsed input, so a later run
+ * on the same input can skip parsing. The snapshot is keyed on the input's size, modification time
+ * and a CRC32C of its content plus the format version, and is ignored if any of them changed.
+ * Introns and gene groupings aren't stored, both are rebuilt from the genes in a single pass.
+ * <p>
+ * A reload still reads the whole input once, to checksum it, but only if its size and modification
+ * time match; that's a sequential read at disk speed, a small part of what parsing costs. A
+ * snapshot that's truncated or corrupt is ignored like an outdated one and the input parsed again.
+ */
+public class AnnotationSnapshot {
+  private static final int MAGIC = 0x47495253; // GIRS
+  // bump whenever the layout below changes
+  private static final int FORMAT_VERSION = 1;
+
+  // how much of the input a snapshot covers, see FeatureProjection
+  static final byte GENES_ONLY = 0;
+  static final byte GENES_AND_EXONS = 1;
+  static final byte EVERYTHING = 2;
+
+  // magic, version, size, modification time and checksum of the input, and coverage
+  private static final int HEADER_SIZE = 2 * Integer.BYTES + 3 * Long.BYTES + 1;
+  // six string indexes, start and end, and strand
+  private static final int FEATURE_SIZE = 8 * Integer.BYTES + 1;
+
+  final List<BasicFeature> genes;
+  final Set<String> duplicateIds;
+  final int featureCount;
+
+  private AnnotationSnapshot(List<BasicFeature> genes, Set<String> duplicateIds,
+                             int featureCount) {
+    this.genes = genes;
+    this.duplicateIds = duplicateIds;
+    this.featureCount = featureCount;
+  }
+
+  static byte coverageOf(FeatureProjection projection) {
+    if (projection.keepsAll()) {
+      return EVERYTHING;
+    }
+    return projection.keepsType("exon") ? GENES_AND_EXONS : GENES_ONLY;
+  }
+
+  static Path snapshotFileFor(Path input, Path outputDir) {
+    return outputDir.resolve(input.getFileName() + ".snapshot");
+  }
+
+  /**
+   * @return the snapshot, or null if there isn't a usable one for this input
+   */
+  static AnnotationSnapshot load(Path snapshotFile, Path input, byte requiredCoverage) {
+    if (!Files.isRegularFile(snapshotFile)) {
+      return null;
+    }
+    try (FileChannel channel = FileChannel.open(snapshotFile, StandardOpenOption.READ)) {
+      ByteBuffer buffer = map(channel, snapshotFile);
+      if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+        RunMetrics.progress("Snapshot " + snapshotFile + " is from another version, ignoring it");
+        return null;
+      }
+      long size = buffer.getLong();
+      long modified = buffer.getLong();
+      long checksum = buffer.getLong();
+      byte coverage = buffer.get();
+      if (coverage < requiredCoverage) {
+        RunMetrics.progress("Snapshot " + snapshotFile + " doesn't cover the requested output");
+        return null;
+      }
+      if (size != Files.size(input) || modified != Files.getLastModifiedTime(input).toMillis()) {
+        RunMetrics.progress("Input has changed since snapshot " + snapshotFile + " was written");
+        return null;
+      }
+      // only read the whole input once the cheap checks pass
+      if (checksum != checksum(input)) {
+        RunMetrics.progress("Input content has changed since snapshot " + snapshotFile
+                            + " was written");
+        return null;
+      }
+      return readBody(buffer, snapshotFile);
+    } catch (IOException | RuntimeException e) {
+      // no worse than having no snapshot, the input is parsed instead
+      RunMetrics.progress("Couldn't read snapshot " + snapshotFile + ", ignoring it: " + e);
+      return null;
+    }
+  }
+
+  /**
+   * Loads a snapshot on its own, e.g. of a previous release whose input is gone, without checking
+   * it against an input
+   *
+   * @throws IllegalArgumentException if the file isn't a snapshot of this version, or doesn't
+   *           cover the requested output
+   * @throws IOException if it can't be read, or is truncated or corrupt
+   */
+  static AnnotationSnapshot load(Path snapshotFile, byte requiredCoverage) throws IOException {
+    try (FileChannel channel = FileChannel.open(snapshotFile, StandardOpenOption.READ)) {
+      ByteBuffer buffer = map(channel, snapshotFile);
+      if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+        throw new IllegalArgumentException(snapshotFile + " isn't a snapshot of this version");
+      }
+      // size, modification time and checksum of the input
+      buffer.position(buffer.position() + 3 * Long.BYTES);
+      if (buffer.get() < requiredCoverage) {
+        throw new IllegalArgumentException("Snapshot " + snapshotFile
+                                           + " doesn't cover the requested output");
+      }
+      return readBody(buffer, snapshotFile);
+    }
+  }
+
+  private static ByteBuffer map(FileChannel channel, Path snapshotFile) throws IOException {
+    long size = channel.size();
+    if (size < HEADER_SIZE || size > Integer.MAX_VALUE) {
+      throw new IOException("Snapshot " + snapshotFile + " is " + size
+                            + " bytes, too short or too long to be one");
+    }
+    return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+  }
+
+  /**
+   * @return true if the file starts like a snapshot, of any version
+   */
+  static boolean isSnapshot(Path file) throws IOException {
+    try (DataInputStream in = new DataInputStream(Files.newInputStream(file))) {
+      return in.readInt() == MAGIC;
+    } catch (EOFException e) {
+      return false;
+    }
+  }
+
+  private static AnnotationSnapshot readBody(ByteBuffer buffer, Path snapshotFile)
+      throws IOException {
+    try {
+      String[] strings = new String[count(buffer, Integer.BYTES)];
+      for (int i = 0; i < strings.length; i++) {
+        byte[] bytes = new byte[count(buffer, 1)];
+        buffer.get(bytes);
+        strings[i] = new String(bytes, StandardCharsets.UTF_8);
+      }
+      int featureCount = buffer.getInt();
+      Set<String> duplicateIds = new HashSet<>();
+      for (int i = count(buffer, Integer.BYTES); i > 0; i--) {
+        duplicateIds.add(string(strings, buffer.getInt()));
+      }
+      int geneCount = count(buffer, FEATURE_SIZE + Integer.BYTES);
+      List<BasicFeature> genes = new ArrayList<>(geneCount);
+      for (int i = 0; i < geneCount; i++) {
+        BasicFeature gene = readFeature(buffer, strings);
+        for (int exons = count(buffer, FEATURE_SIZE); exons > 0; exons--) {
+          gene.addChild(readFeature(buffer, strings));
+        }
+        genes.add(gene);
+      }
+      if (buffer.hasRemaining()) {
+        throw new IOException(buffer.remaining() + " bytes follow the last gene");
+      }
+      return new AnnotationSnapshot(genes, duplicateIds, featureCount);
+    } catch (IOException | BufferUnderflowException e) {
+      throw new IOException("Snapshot " + snapshotFile + " is truncated or corrupt", e);
+    }
+  }
+
+  /**
+   * @return the count at the buffer's position, of items of at least bytesEach bytes each
+   * @throws IOException if that many can't be in what's left of the buffer
+   */
+  private static int count(ByteBuffer buffer, int bytesEach) throws IOException {
+    int position = buffer.position();
+    int count = buffer.getInt();
+    if (count < 0 || count > buffer.remaining() / bytesEach) {
+      throw new IOException("Count of " + count + " at byte " + position + " doesn't fit in the "
+                            + buffer.remaining() + " bytes left");
+    }
+    return count;
+  }
+
+  static void write(Path snapshotFile, Path input, byte coverage, Collection<BasicFeature> genes,
+                    Set<String> duplicateIds, int featureCount) throws IOException {
+    Map<String, Integer> strings = new LinkedHashMap<>();
+    for (String id : duplicateIds) {
+      stringIndex(strings, id);
+    }
+    for (BasicFeature gene : genes) {
+      indexStrings(strings, gene);
+      gene.getDescendantExons().forEach(exon -> indexStrings(strings, exon));
+    }
+
+    Path tempFile = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile),
+                                                                              1 << 16))) {
+      out.writeInt(MAGIC);
+      out.writeInt(FORMAT_VERSION);
+      out.writeLong(Files.size(input));
+      out.writeLong(Files.getLastModifiedTime(input).toMillis());
+      out.writeLong(checksum(input));
+      out.writeByte(coverage);
+
+      out.writeInt(strings.size());
+      for (String s : strings.keySet()) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+      }
+      out.writeInt(featureCount);
+      out.writeInt(duplicateIds.size());
+      for (String id : duplicateIds) {
+        out.writeInt(stringIndex(strings, id));
+      }
+      out.writeInt(genes.size());
+      for (BasicFeature gene : genes) {
+        writeFeature(out, strings, gene);
+        Set<BasicFeature> exons = gene.getDescendantExons();
+        out.writeInt(exons.size());
+        for (BasicFeature exon : exons) {
+          writeFeature(out, strings, exon);
+        }
+      }
+    }
+    // only replace the old snapshot once the new one is complete
+    Files.move(tempFile, snapshotFile, StandardCopyOption.REPLACE_EXISTING,
+               StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private static void indexStrings(Map<String, Integer> strings, BasicFeature feat) {
+    stringIndex(strings, feat.id);
+    stringIndex(strings, feat.parentId);
+    stringIndex(strings, feat.type);
+    stringIndex(strings, feat.name);
+    stringIndex(strings, feat.contig);
+    stringIndex(strings, feat.xRefGeneId);
+  }
+
+  private static int stringIndex(Map<String, Integer> strings, String s) {
+    return s == null ? -1 : strings.computeIfAbsent(s, k -> strings.size());
+  }
+
+  private static String string(String[] strings, int index) throws IOException {
+    if (index < -1 || index >= strings.length) {
+      throw new IOException("String index " + index + " is out of range");
+    }
+    return index < 0 ? null : strings[index];
+  }
+
+  private static void writeFeature(DataOutputStream out, Map<String, Integer> strings,
+                                   BasicFeature feat) throws IOException {
+    out.writeInt(stringIndex(strings, feat.id));
+    out.writeInt(stringIndex(strings, feat.parentId));
+    out.writeInt(stringIndex(strings, feat.type));
+    out.writeInt(stringIndex(strings, feat.name));
+    out.writeInt(stringIndex(strings, feat.contig));
+    out.writeInt(stringIndex(strings, feat.xRefGeneId));
+    out.writeInt(feat.start);
+    out.writeInt(feat.end);
+    out.writeByte(feat.strand);
+  }
+
+  private static BasicFeature readFeature(ByteBuffer buffer, String[] strings)
+      throws IOException {
+    String id = string(strings, buffer.getInt());
+    String parentId = string(strings, buffer.getInt());
+    String type = string(strings, buffer.getInt());
+    String name = string(strings, buffer.getInt());
+    String contig = string(strings, buffer.getInt());
+    String xRefGeneId = string(strings, buffer.getInt());
+    int start = buffer.getInt();
+    int end = buffer.getInt();
+    byte strand = buffer.get();
+    return new BasicFeature(id, parentId, type, start, end, name, contig, strand, xRefGeneId);
+  }
+
+  private static long checksum(Path input) throws IOException {
+    CRC32C crc = new CRC32C();
+    ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+    try (FileChannel channel = FileChannel.open(input, StandardOpenOption.READ)) {
+      while (channel.read(buffer) != -1) {
+        buffer.flip();
+        crc.update(buffer);
+        buffer.clear();
+      }
+    }
+    return crc.getValue();
+  }
+}
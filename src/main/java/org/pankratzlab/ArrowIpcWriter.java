@@ -0,0 +1,548 @@
+package org.pankratzlab;
+
+import java.io.OutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Writes an Apache Arrow IPC file (the random access format, .arrow), one record batch at a time,
+ * so a table is never held whole. Readers like pyarrow, arrow-java or DuckDB can memory map the
+ * file and use the columns where they lie, with nothing to parse.
+ * <p>
+ * Only what the gene tables need is supported: non-nullable int8 and int32 columns and nullable
+ * utf8 columns, uncompressed, little endian, no dictionaries. The Flatbuffers metadata of the
+ * format (Schema.fbs, Message.fbs and File.fbs) is encoded here by hand, which is small for these
+ * few tables and keeps the Arrow libraries, and the JVM flags their memory allocator needs, out of
+ * the main build. The tests read the files back with arrow-java.
+ */
+public class ArrowIpcWriter implements AutoCloseable {
+  private static final byte[] MAGIC = "ARROW1".getBytes(StandardCharsets.US_ASCII);
+  private static final short METADATA_V5 = 4;
+  private static final int CONTINUATION = 0xffffffff;
+
+  // MessageHeader and Type union members
+  private static final byte HEADER_SCHEMA = 1;
+  private static final byte HEADER_RECORD_BATCH = 3;
+  private static final byte TYPE_INT = 2;
+  private static final byte TYPE_UTF8 = 5;
+
+  public enum ColumnType {
+    INT8, INT32, UTF8
+  }
+
+  public static final class Column {
+    final String name;
+    final ColumnType type;
+
+    public Column(String name, ColumnType type) {
+      this.name = name;
+      this.type = type;
+    }
+  }
+
+  /**
+   * The rows of one record batch, built a column at a time. Every column has to be given a value
+   * for every row before the batch is written. Batches are independent of the writer, so they
+   * can be built on other threads and written in order.
+   */
+  public static final class Batch {
+    private final List<Column> schema;
+    private final ColumnBuilder[] columns;
+
+    public Batch(List<Column> schema) {
+      this.schema = schema;
+      this.columns = new ColumnBuilder[schema.size()];
+      for (int i = 0; i < columns.length; i++) {
+        columns[i] = new ColumnBuilder(schema.get(i).type);
+      }
+    }
+
+    public Batch addByte(int column, byte value) {
+      columns[column].addByte(value);
+      return this;
+    }
+
+    public Batch addInt(int column, int value) {
+      columns[column].addInt(value);
+      return this;
+    }
+
+    /**
+     * @param value null for a null
+     */
+    public Batch addString(int column, String value) {
+      columns[column].addString(value);
+      return this;
+    }
+
+    public int rows() {
+      return columns.length == 0 ? 0 : columns[0].length;
+    }
+  }
+
+  private static final class ColumnBuilder {
+    final ColumnType type;
+    int length = 0;
+    int nullCount = 0;
+    // INT8 and INT32 values, or UTF8 bytes
+    byte[] data = new byte[64];
+    int dataSize = 0;
+    // UTF8 only
+    int[] offsets;
+    byte[] validity;
+
+    ColumnBuilder(ColumnType type) {
+      this.type = type;
+      if (type == ColumnType.UTF8) {
+        offsets = new int[16];
+        validity = new byte[2];
+      }
+    }
+
+    void addByte(byte value) {
+      checkType(ColumnType.INT8);
+      ensureData(1);
+      data[dataSize++] = value;
+      length++;
+    }
+
+    void addInt(int value) {
+      checkType(ColumnType.INT32);
+      ensureData(4);
+      putInt(data, dataSize, value);
+      dataSize += 4;
+      length++;
+    }
+
+    void addString(String value) {
+      checkType(ColumnType.UTF8);
+      if (length + 2 > offsets.length) {
+        offsets = Arrays.copyOf(offsets, offsets.length * 2);
+      }
+      if (length / 8 + 1 > validity.length) {
+        validity = Arrays.copyOf(validity, validity.length * 2);
+      }
+      if (value == null) {
+        nullCount++;
+      } else {
+        validity[length / 8] |= 1 << (length % 8);
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        ensureData(bytes.length);
+        System.arraycopy(bytes, 0, data, dataSize, bytes.length);
+        dataSize += bytes.length;
+      }
+      length++;
+      offsets[length] = dataSize;
+    }
+
+    private void checkType(ColumnType expected) {
+      if (type != expected) {
+        throw new IllegalArgumentException("Column is " + type + ", not " + expected);
+      }
+    }
+
+    private void ensureData(int more) {
+      if (dataSize + more > data.length) {
+        data = Arrays.copyOf(data, Math.max(data.length * 2, dataSize + more));
+      }
+    }
+
+    /**
+     * @return the column's buffers in the order the format lays them out, empty for a validity
+     *         bitmap that isn't needed
+     */
+    List<byte[]> buffers() {
+      List<byte[]> buffers = new ArrayList<>(3);
+      buffers.add(nullCount == 0 ? new byte[0] : Arrays.copyOf(validity, (length + 7) / 8));
+      if (type == ColumnType.UTF8) {
+        byte[] offsetBytes = new byte[(length + 1) * 4];
+        for (int i = 0; i <= length; i++) {
+          putInt(offsetBytes, i * 4, offsets[i]);
+        }
+        buffers.add(offsetBytes);
+      }
+      buffers.add(Arrays.copyOf(data, dataSize));
+      return buffers;
+    }
+  }
+
+  // where each record batch starts, for the footer
+  private static final class Block {
+    final long offset;
+    final int metadataLength;
+    final long bodyLength;
+
+    Block(long offset, int metadataLength, long bodyLength) {
+      this.offset = offset;
+      this.metadataLength = metadataLength;
+      this.bodyLength = bodyLength;
+    }
+  }
+
+  private final List<Column> schema;
+  private final OutputStream out;
+  private final List<Block> blocks = new ArrayList<>();
+  private long position = 0;
+
+  public ArrowIpcWriter(Path file, List<Column> schema) throws IOException {
+    this.schema = schema;
+    this.out = OutputWriters.openStream(file);
+    write(MAGIC);
+    write(new byte[2]);
+    Table message = new Table().addShort(0, METADATA_V5).addByte(1, HEADER_SCHEMA)
+                               .addRef(2, schemaTable()).addLong(3, 0);
+    writeMessage(message.finish(), new byte[0]);
+  }
+
+  public void write(Batch batch) throws IOException {
+    if (batch.schema != schema) {
+      throw new IllegalArgumentException("Batch isn't of this file's schema");
+    }
+    int rows = batch.rows();
+    ByteSink body = new ByteSink();
+    ByteSink nodes = new ByteSink();
+    ByteSink buffers = new ByteSink();
+    for (ColumnBuilder column : batch.columns) {
+      if (column.length != rows) {
+        throw new IllegalStateException("Columns of a batch have different lengths");
+      }
+      nodes.putLong(column.length);
+      nodes.putLong(column.nullCount);
+      for (byte[] buffer : column.buffers()) {
+        buffers.putLong(body.size());
+        buffers.putLong(buffer.length);
+        body.put(buffer);
+        body.padTo(8);
+      }
+    }
+    Table recordBatch = new Table().addLong(0, rows)
+                                   .addRef(1, new StructVector(batch.columns.length,
+                                                               nodes.toByteArray()))
+                                   .addRef(2, new StructVector(buffers.size() / 16,
+                                                               buffers.toByteArray()));
+    Table message = new Table().addShort(0, METADATA_V5).addByte(1, HEADER_RECORD_BATCH)
+                               .addRef(2, recordBatch).addLong(3, body.size());
+    long offset = position;
+    int metadataLength = writeMessage(message.finish(), body.toByteArray());
+    blocks.add(new Block(offset, metadataLength, body.size()));
+  }
+
+  /**
+   * Ends the stream and writes the footer, which indexes the record batches
+   */
+  @Override
+  public void close() throws IOException {
+    try {
+      // end of stream marker
+      writeInt(CONTINUATION);
+      writeInt(0);
+      ByteSink blockBytes = new ByteSink();
+      for (Block block : blocks) {
+        blockBytes.putLong(block.offset);
+        blockBytes.putInt(block.metadataLength);
+        blockBytes.putInt(0);
+        blockBytes.putLong(block.bodyLength);
+      }
+      Table footer = new Table().addShort(0, METADATA_V5).addRef(1, schemaTable())
+                                .addRef(2, new StructVector(0, new byte[0]))
+                                .addRef(3, new StructVector(blocks.size(),
+                                                            blockBytes.toByteArray()));
+      byte[] footerBytes = footer.finish();
+      write(footerBytes);
+      writeInt(footerBytes.length);
+      write(MAGIC);
+    } finally {
+      out.close();
+    }
+  }
+
+  private Table schemaTable() {
+    List<Table> fields = new ArrayList<>(schema.size());
+    for (Column column : schema) {
+      Table type = new Table();
+      if (column.type != ColumnType.UTF8) {
+        type.addInt(0, column.type == ColumnType.INT8 ? 8 : 32).addByte(1, (byte) 1);
+      }
+      fields.add(new Table().addRef(0, new StringNode(column.name))
+                            .addByte(1, (byte) (column.type == ColumnType.UTF8 ? 1 : 0))
+                            .addByte(2, column.type == ColumnType.UTF8 ? TYPE_UTF8 : TYPE_INT)
+                            .addRef(3, type).addRef(5, new TableVector(List.of())));
+    }
+    // little endian is the default, 0
+    return new Table().addShort(0, (short) 0).addRef(1, new TableVector(fields));
+  }
+
+  /**
+   * Writes an encapsulated message: a continuation marker, the metadata's length, the metadata
+   * padded to 8 bytes, then the body
+   *
+   * @return the length of everything before the body
+   */
+  private int writeMessage(byte[] metadata, byte[] body) throws IOException {
+    int padded = (metadata.length + 8 + 7) / 8 * 8 - 8;
+    writeInt(CONTINUATION);
+    writeInt(padded);
+    write(metadata);
+    write(new byte[padded - metadata.length]);
+    write(body);
+    return padded + 8;
+  }
+
+  private void writeInt(int value) throws IOException {
+    byte[] bytes = new byte[4];
+    putInt(bytes, 0, value);
+    write(bytes);
+  }
+
+  private void write(byte[] bytes) throws IOException {
+    out.write(bytes);
+    position += bytes.length;
+  }
+
+  private static void putInt(byte[] bytes, int offset, int value) {
+    bytes[offset] = (byte) value;
+    bytes[offset + 1] = (byte) (value >>> 8);
+    bytes[offset + 2] = (byte) (value >>> 16);
+    bytes[offset + 3] = (byte) (value >>> 24);
+  }
+
+  /**
+   * A growable little endian byte buffer
+   */
+  private static final class ByteSink {
+    private byte[] bytes = new byte[64];
+    private int size = 0;
+
+    int size() {
+      return size;
+    }
+
+    void put(byte[] values) {
+      ensure(values.length);
+      System.arraycopy(values, 0, bytes, size, values.length);
+      size += values.length;
+    }
+
+    void putByte(int value) {
+      ensure(1);
+      bytes[size++] = (byte) value;
+    }
+
+    void putShort(int value) {
+      putByte(value);
+      putByte(value >>> 8);
+    }
+
+    void putInt(int value) {
+      ensure(4);
+      ArrowIpcWriter.putInt(bytes, size, value);
+      size += 4;
+    }
+
+    void putLong(long value) {
+      putInt((int) value);
+      putInt((int) (value >>> 32));
+    }
+
+    void setInt(int offset, int value) {
+      ArrowIpcWriter.putInt(bytes, offset, value);
+    }
+
+    void padTo(int alignment) {
+      while (size % alignment != 0) {
+        putByte(0);
+      }
+    }
+
+    private void ensure(int more) {
+      if (size + more > bytes.length) {
+        bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + more));
+      }
+    }
+
+    byte[] toByteArray() {
+      return Arrays.copyOf(bytes, size);
+    }
+  }
+
+  /*
+   * A minimal Flatbuffers encoder. The buffer is written front to back: a table comes before
+   * what it refers to, since references are unsigned offsets forward from where they are stored,
+   * and each table's vtable comes right before it. 8 byte fields are kept 8 byte aligned by
+   * starting every table 4 bytes past a multiple of 8 and laying out its fields largest first.
+   */
+
+  private abstract static class Node {
+    /**
+     * @return where the node starts in the buffer
+     */
+    abstract int write(ByteSink buffer);
+  }
+
+  private static final class Table extends Node {
+    // field id, size and value, or a reference
+    private final List<long[]> scalars = new ArrayList<>();
+    private final List<Object[]> refs = new ArrayList<>();
+    private int fieldCount = 0;
+
+    Table addByte(int id, byte value) {
+      return addScalar(id, 1, value);
+    }
+
+    Table addShort(int id, short value) {
+      return addScalar(id, 2, value);
+    }
+
+    Table addInt(int id, int value) {
+      return addScalar(id, 4, value);
+    }
+
+    Table addLong(int id, long value) {
+      return addScalar(id, 8, value);
+    }
+
+    Table addRef(int id, Node node) {
+      refs.add(new Object[] {id, node});
+      fieldCount = Math.max(fieldCount, id + 1);
+      return this;
+    }
+
+    private Table addScalar(int id, int size, long value) {
+      scalars.add(new long[] {id, size, value});
+      fieldCount = Math.max(fieldCount, id + 1);
+      return this;
+    }
+
+    /**
+     * @return a buffer with this table as its root
+     */
+    byte[] finish() {
+      ByteSink buffer = new ByteSink();
+      buffer.putInt(0);
+      buffer.setInt(0, write(buffer));
+      return buffer.toByteArray();
+    }
+
+    @Override
+    int write(ByteSink buffer) {
+      // field offsets from the start of the table, after its vtable offset
+      short[] fieldOffsets = new short[fieldCount];
+      int inlineSize = 4;
+      for (int size = 8; size >= 1; size /= 2) {
+        for (long[] scalar : scalars) {
+          if (scalar[1] == size) {
+            fieldOffsets[(int) scalar[0]] = (short) inlineSize;
+            inlineSize += size;
+          }
+        }
+        if (size == 4) {
+          for (Object[] ref : refs) {
+            fieldOffsets[(Integer) ref[0]] = (short) inlineSize;
+            inlineSize += 4;
+          }
+        }
+      }
+
+      buffer.padTo(2);
+      int vtable = buffer.size();
+      buffer.putShort(4 + 2 * fieldCount);
+      buffer.putShort(inlineSize);
+      for (short fieldOffset : fieldOffsets) {
+        buffer.putShort(fieldOffset);
+      }
+      while (buffer.size() % 8 != 4) {
+        buffer.putByte(0);
+      }
+      int table = buffer.size();
+      buffer.putInt(table - vtable);
+      for (int size = 8; size >= 1; size /= 2) {
+        for (long[] scalar : scalars) {
+          if (scalar[1] == size) {
+            for (int i = 0; i < size; i++) {
+              buffer.putByte((int) (scalar[2] >>> (8 * i)));
+            }
+          }
+        }
+        if (size == 4) {
+          for (int i = 0; i < refs.size(); i++) {
+            buffer.putInt(0);
+          }
+        }
+      }
+      for (Object[] ref : refs) {
+        int slot = table + fieldOffsets[(Integer) ref[0]];
+        buffer.setInt(slot, ((Node) ref[1]).write(buffer) - slot);
+      }
+      return table;
+    }
+  }
+
+  private static final class TableVector extends Node {
+    private final List<Table> tables;
+
+    TableVector(List<Table> tables) {
+      this.tables = tables;
+    }
+
+    @Override
+    int write(ByteSink buffer) {
+      buffer.padTo(4);
+      int vector = buffer.size();
+      buffer.putInt(tables.size());
+      for (int i = 0; i < tables.size(); i++) {
+        buffer.putInt(0);
+      }
+      for (int i = 0; i < tables.size(); i++) {
+        int slot = vector + 4 + 4 * i;
+        buffer.setInt(slot, tables.get(i).write(buffer) - slot);
+      }
+      return vector;
+    }
+  }
+
+  /**
+   * A vector of structs, all of whose fields the format aligns to 8 bytes
+   */
+  private static final class StructVector extends Node {
+    private final int length;
+    private final byte[] structs;
+
+    StructVector(int length, byte[] structs) {
+      this.length = length;
+      this.structs = structs;
+    }
+
+    @Override
+    int write(ByteSink buffer) {
+      while (buffer.size() % 8 != 4) {
+        buffer.putByte(0);
+      }
+      int vector = buffer.size();
+      buffer.putInt(length);
+      buffer.put(structs);
+      return vector;
+    }
+  }
+
+  private static final class StringNode extends Node {
+    private final byte[] bytes;
+
+    StringNode(String s) {
+      this.bytes = s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    int write(ByteSink buffer) {
+      buffer.padTo(4);
+      int string = buffer.size();
+      buffer.putInt(bytes.length);
+      buffer.put(bytes);
+      buffer.putByte(0);
+      return string;
+    }
+  }
+}
@@ -1,14 +1,10 @@
 package org.pankratzlab;
 
-import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.function.Predicate;
-import java.util.stream.Collectors;
 
 import org.pankratzlab.common.filesys.GeneData;
 
@@ -21,76 +17,67 @@ import htsjdk.tribble.gff.Gff3BaseData;
 import htsjdk.tribble.gff.Gff3Feature;
 
 public class BasicFeature {
-  // @format:off
-  private static final Map<String, Integer> contigToChrMapping = Map.ofEntries(
-      new AbstractMap.SimpleEntry<>("NC_000001.11", 1),
-      new AbstractMap.SimpleEntry<>("NC_000002.12", 2),
-      new AbstractMap.SimpleEntry<>("NC_000003.12", 3),
-      new AbstractMap.SimpleEntry<>("NC_000004.12", 4),
-      new AbstractMap.SimpleEntry<>("NC_000005.10", 5),
-      new AbstractMap.SimpleEntry<>("NC_000006.12", 6),
-      new AbstractMap.SimpleEntry<>("NC_000007.14", 7),
-      new AbstractMap.SimpleEntry<>("NC_000008.11", 8),
-      new AbstractMap.SimpleEntry<>("NC_000009.12", 9),
-      new AbstractMap.SimpleEntry<>("NC_000010.11", 10),
-      new AbstractMap.SimpleEntry<>("NC_000011.10", 11),
-      new AbstractMap.SimpleEntry<>("NC_000012.12", 12),
-      new AbstractMap.SimpleEntry<>("NC_000013.11", 13),
-      new AbstractMap.SimpleEntry<>("NC_000014.9", 14),
-      new AbstractMap.SimpleEntry<>("NC_000015.10", 15),
-      new AbstractMap.SimpleEntry<>("NC_000016.10", 16),
-      new AbstractMap.SimpleEntry<>("NC_000017.11", 17),
-      new AbstractMap.SimpleEntry<>("NC_000018.10", 18),
-      new AbstractMap.SimpleEntry<>("NC_000019.10", 19),
-      new AbstractMap.SimpleEntry<>("NC_000020.11", 20),
-      new AbstractMap.SimpleEntry<>("NC_000021.9", 21),
-      new AbstractMap.SimpleEntry<>("NC_000022.11", 22),
-      new AbstractMap.SimpleEntry<>("NC_000023.11", 23),
-      new AbstractMap.SimpleEntry<>("NC_000024.10", 24),
-      new AbstractMap.SimpleEntry<>("NC_012920.1", 26));
-  // @format:on
-
   final String id, type;
+  final String parentId;
   BasicFeature parent;
-  final Set<BasicFeature> children = new HashSet<>();
-
-  boolean exonsFound = false;
-  Set<BasicFeature> descendantExons = new HashSet<>();
-
-  boolean intronsFound = false;
-  Set<BasicFeature> descendantIntrons = new HashSet<>();
+  // most features are leaves, so these stay shared empty sets until something is added
+  Set<BasicFeature> children = Collections.emptySet();
 
   final int start, end;
   final String name;
   final String contig;
+  // from the ContigDictionary, 0 off the main contigs
+  final byte chr;
   final byte strand;
 
   final boolean onMainContig;
   final String xRefGeneId;
-
-  private int[][] descendantExonBoundaries;
-  private GeneData geneData;
-
-  private BasicFeature(String id, String type, int start, int end, String name, String contig,
-                       byte strand, String xRefGeneId) {
+  // numeric part of a "GeneID:NNN" xRefGeneId, or NO_XREF_GENE_ID_NUM
+  final int xRefGeneIdNum;
+  static final int NO_XREF_GENE_ID_NUM = -1;
+
+  // Derived on first use and kept. Genes are derived on several threads at once, so these are
+  // volatile and only ever assigned complete: a thread either sees nothing yet and derives its own
+  // copy, which comes out the same, or sees one fully built.
+  private volatile Set<BasicFeature> descendantExons;
+  private volatile ExonModel exonModel;
+  // descendant exons/introns without location duplicates, in location order
+  private volatile List<BasicFeature> sortedDistinctExons;
+  private volatile List<BasicFeature> sortedDistinctIntrons;
+
+  private volatile int[][] descendantExonBoundaries;
+  private volatile GeneData geneData;
+
+  BasicFeature(String id, String parentId, String type, int start, int end, String name,
+               String contig, byte strand, String xRefGeneId) {
     this.type = type;
     this.id = id;
+    this.parentId = parentId;
     this.start = start;
     this.end = end;
     this.name = name;
-    this.contig = contig;
-    this.onMainContig = contigToChrMapping.containsKey(this.contig);
+    ContigDictionary.Contig dictionaryContig = ContigDictionary.active().lookup(contig);
+    this.contig = dictionaryContig.name;
+    this.chr = dictionaryContig.chr;
+    this.onMainContig = chr != 0;
     this.strand = strand;
     this.xRefGeneId = xRefGeneId;
+    this.xRefGeneIdNum = parseXRefGeneIdNum(xRefGeneId);
   }
 
   public BasicFeature(Gff3BaseData baseData) {
-    this.type = baseData.getType();
+    // there are only a few distinct types, don't keep a copy per feature
+    this.type = baseData.getType().intern();
     this.id = baseData.getId();
+    this.parentId = findParentId(baseData);
     this.start = baseData.getStart();
     this.end = baseData.getEnd();
     this.name = baseData.getName();
-    this.contig = baseData.getContig();
+    // the dictionary interns the contig name too
+    ContigDictionary.Contig dictionaryContig = ContigDictionary.active()
+                                                               .lookup(baseData.getContig());
+    this.contig = dictionaryContig.name;
+    this.chr = dictionaryContig.chr;
 
     byte tempStrand = -1;
     switch (baseData.getStrand().encodeAsChar()) {
@@ -104,8 +91,9 @@ public class BasicFeature {
         tempStrand = GeneData.BOTH_STRANDS;
     }
     this.strand = tempStrand;
-    this.onMainContig = contigToChrMapping.containsKey(this.contig);
+    this.onMainContig = chr != 0;
     this.xRefGeneId = findXRefGeneId(baseData);
+    this.xRefGeneIdNum = parseXRefGeneIdNum(this.xRefGeneId);
   }
 
   public BasicFeature(Gff3Feature feature) {
@@ -122,9 +110,37 @@ public class BasicFeature {
     return Aggregator.BAD_OR_MISSING;
   }
 
+  static String findParentId(Gff3BaseData baseData) {
+    List<String> parentIds = baseData.getAttribute("Parent");
+    return parentIds.isEmpty() ? null : parentIds.get(0);
+  }
+
+  static int parseXRefGeneIdNum(String xRefGeneId) {
+    if (!xRefGeneId.startsWith("GeneID:")) {
+      return NO_XREF_GENE_ID_NUM;
+    }
+    int num = 0;
+    for (int i = "GeneID:".length(); i < xRefGeneId.length(); i++) {
+      char c = xRefGeneId.charAt(i);
+      if (c < '0' || c > '9' || num > (Integer.MAX_VALUE - 9) / 10) {
+        return NO_XREF_GENE_ID_NUM;
+      }
+      num = num * 10 + (c - '0');
+    }
+    return xRefGeneId.length() > "GeneID:".length() ? num : NO_XREF_GENE_ID_NUM;
+  }
+
+  void addChild(BasicFeature child) {
+    if (this.children.isEmpty()) {
+      this.children = new HashSet<>();
+    }
+    this.children.add(child);
+  }
+
   public Set<BasicFeature> getDescendantExons() {
-    if (this.exonsFound) {
-      return this.descendantExons;
+    Set<BasicFeature> found = this.descendantExons;
+    if (found != null) {
+      return found;
     }
     Set<BasicFeature> exons = new HashSet<>();
     for (BasicFeature child : this.children) {
@@ -140,51 +156,74 @@ public class BasicFeature {
     }
 
     this.descendantExons = exons;
-    this.exonsFound = true;
     return exons;
   }
 
-  public Set<BasicFeature> getDescendantIntrons() {
-    if (this.intronsFound) {
-      return this.descendantIntrons;
+  /**
+   * The exons and introns as primitive intervals, see {@link ExonModel}. Built on first use and
+   * kept, so everything derived from them shares one copy.
+   */
+  public ExonModel getExonModel() {
+    ExonModel model = exonModel;
+    if (model == null) {
+      model = new ExonModel(this, this.getDescendantExons());
+      exonModel = model;
     }
-    if (!this.exonsFound) {
-      this.getDescendantExons();
-    }
-    Set<BasicFeature> introns = new HashSet<>();
-
-    List<BasicFeature> orderedExons = this.descendantExons.stream().filter(distinctByLocation()).sorted(BasicFeature::compareLocation)
-        .collect(Collectors.toList());
-
-    // Introns are everything in the gene that's not an exon
-    // start by looking between the start of the gene and start of the first exon
-    int prevEnd = this.start;
-    for (BasicFeature exon : orderedExons) {
-      if (exon.start > prevEnd) {
-        // new thing
-        String id = this.id + "_intron_" + start + "_" + end;
-        // we've already made sure that prevEnd is outside an exon
-        int intronStart = prevEnd;
-        // the intron and exon don't share a base pair
-        int intronEnd = exon.start - 1;
-        BasicFeature intron = new BasicFeature(id, "intron", intronStart, intronEnd, id, this.contig, this.strand, this.xRefGeneId);
-        introns.add(intron);
+    return model;
+  }
+
+  /**
+   * Derives the exon model, then lets go of the children and exons it came from, so the gene only
+   * holds its own fields and the model's arrays. {@link #getDescendantExons()} is empty from then
+   * on, so this is only for genes whose outputs all come from the model, see
+   * {@link OutOfCoreLoader}.
+   */
+  void releaseExons() {
+    this.getExonModel();
+    this.children = Collections.emptySet();
+    this.descendantExons = Collections.emptySet();
+    this.sortedDistinctExons = null;
+  }
+
+  public List<BasicFeature> getSortedDistinctExons() {
+    List<BasicFeature> sorted = sortedDistinctExons;
+    if (sorted == null) {
+      List<BasicFeature> exons = new ArrayList<>(this.getDescendantExons());
+      exons.sort(BasicFeature::compareLocation);
+      // duplicates are next to each other now, keep the first of each
+      int distinct = 0;
+      for (BasicFeature exon : exons) {
+        if (distinct == 0 || exon.compareLocation(exons.get(distinct - 1)) != 0) {
+          exons.set(distinct++, exon);
+        }
       }
-      prevEnd = exon.end + 1;
-    }
-    if (this.end > prevEnd) {
-      // one more intron between the last exon and the end of the gene
-      BasicFeature intron = new BasicFeature(id, "intron", prevEnd, this.end, id, this.contig, this.strand, this.xRefGeneId);
-      introns.add(intron);
+      sorted = new ArrayList<>(exons.subList(0, distinct));
+      sortedDistinctExons = sorted;
     }
+    return sorted;
+  }
 
-    this.descendantIntrons = introns;
-    this.intronsFound = true;
+  /**
+   * The introns as features, for the interval index. Bed lines and GeneData come straight from
+   * {@link #getExonModel()}, without these.
+   */
+  public List<BasicFeature> getSortedDistinctIntrons() {
+    List<BasicFeature> introns = sortedDistinctIntrons;
+    if (introns == null) {
+      ExonModel model = this.getExonModel();
+      introns = new ArrayList<>(model.intronCount());
+      for (int i = model.exonCount(); i < model.size(); i++) {
+        String id = this.id + "_intron_" + model.start(i) + "_" + model.end(i);
+        introns.add(new BasicFeature(id, this.id, "intron", model.start(i), model.end(i), id,
+                                     this.contig, this.strand, this.xRefGeneId));
+      }
+      sortedDistinctIntrons = introns;
+    }
     return introns;
   }
 
   public byte getChr() {
-    return contigToChrMapping.getOrDefault(this.contig, 0).byteValue();
+    return chr;
   }
 
   public int[] getBoundariesAsArray() {
@@ -196,29 +235,28 @@ public class BasicFeature {
   }
 
   public int[][] getDescendantExonBoundariesAsArray() {
-    if (descendantExonBoundaries == null) {
-      this.getDescendantExons();
-      descendantExonBoundaries = new int[descendantExons.size()][];
-      List<BasicFeature> exonsList = new ArrayList<>(descendantExons);
-      for (int i = 0; i < exonsList.size(); i++) {
-        descendantExonBoundaries[i] = exonsList.get(i).getBoundariesAsArray();
-      }
+    int[][] boundaries = descendantExonBoundaries;
+    if (boundaries == null) {
+      boundaries = this.getExonModel().exonBoundaries();
+      descendantExonBoundaries = boundaries;
     }
-    return descendantExonBoundaries;
+    return boundaries;
   }
 
   public GeneData toGeneData() {
-    if (geneData == null) {
+    GeneData data = geneData;
+    if (data == null) {
       if (!this.isGene()) {
         throw new UnsupportedOperationException("GeneData should only be created on genes");
       }
       // todo: ncbi numbers
       String[] ncbiAssessionNums = new String[0];
       // todo: positionFinalized, multiLoc, collapsedIsoFormGene still need to be done correctly
-      geneData = new GeneData(name, ncbiAssessionNums, this.getChr(), true, strand, start, end,
-                              this.getDescendantExonBoundariesAsArray(), (byte) 0, false);
+      data = new GeneData(name, ncbiAssessionNums, this.getChr(), true, strand, start, end,
+                          this.getDescendantExonBoundariesAsArray(), (byte) 0, false);
+      geneData = data;
     }
-    return geneData;
+    return data;
   }
 
   public String toGenesXlnLine() {
@@ -257,39 +295,34 @@ public class BasicFeature {
     if (!this.isGene()) {
       throw new RuntimeException("I'm not a gene and I don't want to be turned into bed lines!");
     }
-    if (getChr() == 26) {
+    ContigDictionary dictionary = ContigDictionary.active();
+    if (dictionary.isMitochondrion(getChr())) {
       return List.of();
     }
-    List<BasicFeature> children = new ArrayList<>();
-    if (includeExons) {
-      children.addAll(this.descendantExons.stream().filter(distinctByLocation()).collect(Collectors.toList()));
-    }
-    if (includeIntrons) {
-      children.addAll(this.descendantIntrons.stream().filter(distinctByLocation()).distinct().collect(Collectors.toList()));
-    }
-
-    children.sort(BasicFeature::compareLocation);
-    List<String> lines =  new ArrayList<>();
-    for (int i = 0; i < children.size(); i++) {
-      BasicFeature child = children.get(i);
-
-      String name = String.join("_", this.name, child.type.substring(0,1), String.valueOf(i));
-
-      String chrstr = String.valueOf(child.getChr());
-      if (child.getChr() == 23) chrstr = "X";
-      if (child.getChr() == 24) chrstr = "Y";
-
-      lines.add(String.join("\t",
-                            "chr" + chrstr,
-                            String.valueOf(child.start),
-                            String.valueOf(child.end),
-                            name));
+    ExonModel model = this.getExonModel();
+    int exons = includeExons ? model.exonCount() : 0;
+    int introns = includeIntrons ? model.intronCount() : 0;
+    // off the main contigs is chr0, as it always was
+    String chrstr = onMainContig ? dictionary.molecule(getChr()) : "0";
+
+    List<String> lines = new ArrayList<>(exons + introns);
+    StringBuilder line = new StringBuilder();
+    int e = 0;
+    int n = 0;
+    // exons and introns merged by location, an exon first on ties
+    while (e < exons || n < introns) {
+      int intron = model.exonCount() + n;
+      boolean exon = n == introns || (e < exons && !model.precedes(intron, e));
+      int i = exon ? e++ : intron;
+      if (!exon) {
+        n++;
+      }
+      line.setLength(0);
+      line.append("chr").append(chrstr).append('\t').append(model.start(i)).append('\t')
+          .append(model.end(i)).append('\t').append(this.name).append(exon ? "_e_" : "_i_")
+          .append(lines.size());
+      lines.add(line.toString());
     }
     return lines;
   }
-
-  public static Predicate<BasicFeature> distinctByLocation() {
-    Set<Object> seen = ConcurrentHashMap.newKeySet();
-    return t -> seen.add(t.getPositionAsString());
-  }
 }
@@ -0,0 +1,258 @@
+package org.pankratzlab;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Runs {@link Main} over every input of a manifest, several at once on a work stealing pool.
+ * Before it starts, each input reserves an estimate of the heap its {@link Aggregator} will need
+ * out of a shared budget, so only as many inputs are held at once as fit, and the biggest are
+ * started first so none is left running alone at the end. The contig to chr mapping and the
+ * type and contig names are JVM wide, so every input shares them rather than keeping its own.
+ * <p>
+ * One input failing doesn't stop the others. The outcome of every input, with the time, CPU,
+ * allocations and peak heap of the whole batch, goes to batchReport.json and batchReport.tsv.
+ */
+public class BatchRunner {
+  // heap held per byte of plain text input while every output is written, from RefSeq style input
+  private static final int HEAP_PER_INPUT_BYTE = 6;
+  // about how much gzip shrinks GFF3
+  private static final int GZIP_RATIO = 10;
+  // streaming only holds the genes that aren't complete yet
+  private static final long STREAMING_HEAP = 64L << 20;
+
+  public static class Entry {
+    public final Path inputFile;
+    public final Path outputDir;
+    long estimatedHeap;
+    boolean succeeded = false;
+    String error = null;
+    int features = -1;
+    // -1 when streaming, which doesn't keep the genes
+    int genes = -1;
+    long waitNanos = 0;
+    long wallNanos = 0;
+
+    public Entry(Path inputFile, Path outputDir) {
+      this.inputFile = inputFile;
+      this.outputDir = outputDir;
+    }
+  }
+
+  private final ParseOptions options;
+  private final OutputOptions outputs;
+  private final boolean stream;
+  private final int threads;
+  private final int budgetMb;
+  private final Semaphore memory;
+  private final RunMetrics metrics = RunMetrics.enabled();
+  private final List<Entry> entries = new ArrayList<>();
+
+  /**
+   * @param memoryBudget bytes of heap the inputs being processed may use between them
+   */
+  public BatchRunner(ParseOptions options, OutputOptions outputs, boolean stream, int threads,
+                     long memoryBudget) {
+    this.options = options;
+    this.outputs = outputs;
+    this.stream = stream;
+    this.threads = Math.max(1, threads);
+    this.budgetMb = (int) Math.max(1, Math.min(Integer.MAX_VALUE, memoryBudget >> 20));
+    this.memory = new Semaphore(budgetMb, true);
+  }
+
+  /**
+   * Reads a manifest of one input file and output directory per line, separated by a tab. Blank
+   * lines and lines starting with # are skipped.
+   */
+  public static List<Entry> readManifest(Path manifest) throws IOException {
+    List<Entry> entries = new ArrayList<>();
+    List<String> lines = Files.readAllLines(manifest);
+    for (int i = 0; i < lines.size(); i++) {
+      String line = lines.get(i).strip();
+      if (line.isEmpty() || line.startsWith("#")) {
+        continue;
+      }
+      String[] fields = line.split("\t");
+      if (fields.length != 2) {
+        throw new IllegalArgumentException("Line " + (i + 1) + " of " + manifest
+                                           + " should be an input file and an output directory"
+                                           + " separated by a tab");
+      }
+      entries.add(new Entry(Path.of(fields[0].strip()), Path.of(fields[1].strip())));
+    }
+    return entries;
+  }
+
+  /**
+   * Processes the entries and waits for all of them to finish
+   */
+  public void run(List<Entry> batch) throws IOException {
+    for (Entry entry : batch) {
+      entry.estimatedHeap = estimateHeap(entry.inputFile);
+    }
+    entries.addAll(batch);
+    List<Entry> largestFirst = new ArrayList<>(batch);
+    largestFirst.sort(Comparator.comparingLong((Entry entry) -> entry.estimatedHeap).reversed());
+
+    ExecutorService pool = Executors.newWorkStealingPool(threads);
+    try (RunMetrics.Stage stage = metrics.stage("batch")) {
+      List<Future<?>> pending = new ArrayList<>();
+      for (Entry entry : largestFirst) {
+        pending.add(pool.submit(() -> process(entry)));
+      }
+      for (Future<?> future : pending) {
+        future.get();
+      }
+      stage.items(batch.size());
+    } catch (ExecutionException e) {
+      throw new IllegalStateException(e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for the batch", e);
+    } finally {
+      pool.shutdown();
+    }
+    long failed = batch.stream().filter(entry -> !entry.succeeded).count();
+    RunMetrics.progress("Processed " + batch.size() + " inputs, " + failed + " failed");
+  }
+
+  private void process(Entry entry) {
+    int permits = (int) Math.max(1, Math.min(budgetMb, entry.estimatedHeap >> 20));
+    long queued = System.nanoTime();
+    memory.acquireUninterruptibly(permits);
+    long start = System.nanoTime();
+    entry.waitNanos = start - queued;
+    try {
+      Files.createDirectories(entry.outputDir);
+      if (stream) {
+        entry.features = Main.stream(entry.inputFile, entry.outputDir, options, outputs,
+                                     RunMetrics.DISABLED);
+      } else {
+        Aggregator aggregator = Main.parse(entry.inputFile, entry.outputDir, options,
+                                           RunMetrics.DISABLED);
+        entry.features = aggregator.featureCount;
+        Main.writeOutputs(aggregator, outputs, RunMetrics.DISABLED);
+        entry.genes = aggregator.genes.size();
+      }
+      entry.succeeded = true;
+    } catch (Exception | OutOfMemoryError e) {
+      entry.error = e.toString();
+      System.err.println("Failed to process " + entry.inputFile);
+      e.printStackTrace();
+    } finally {
+      entry.wallNanos = System.nanoTime() - start;
+      memory.release(permits);
+    }
+    RunMetrics.progress((entry.succeeded ? "Finished " : "Gave up on ") + entry.inputFile + " in "
+                        + entry.wallNanos / 1_000_000 + " ms");
+  }
+
+  /**
+   * A rough upper bound on the heap an input will need, from its size on disk
+   */
+  long estimateHeap(Path inputFile) {
+    if (stream) {
+      return STREAMING_HEAP;
+    }
+    try {
+      long size = Files.size(inputFile);
+      return size * HEAP_PER_INPUT_BYTE * (isGzipped(inputFile) ? GZIP_RATIO : 1);
+    } catch (IOException e) {
+      // it will fail as soon as it starts, it doesn't need any memory for that
+      return 0;
+    }
+  }
+
+  private static boolean isGzipped(Path file) throws IOException {
+    try (InputStream in = Files.newInputStream(file)) {
+      return (in.read() | in.read() << 8) == GZIPInputStream.GZIP_MAGIC;
+    }
+  }
+
+  private static final String[] COLUMNS = {"input", "outputDir", "status", "features", "genes",
+                                           "estimatedHeapMb", "waitMs", "wallMs", "error"};
+
+  private static String[] values(Entry entry) {
+    return new String[] {entry.inputFile.toString(), entry.outputDir.toString(),
+                         entry.succeeded ? "ok" : "failed", String.valueOf(entry.features),
+                         String.valueOf(entry.genes), String.valueOf(entry.estimatedHeap >> 20),
+                         millis(entry.waitNanos), millis(entry.wallNanos),
+                         entry.error == null ? "" : entry.error};
+  }
+
+  private static String millis(long nanos) {
+    return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+  }
+
+  /**
+   * Writes batchReport.json and batchReport.tsv to the directory
+   */
+  public void writeReport(Path dir) throws IOException {
+    Files.createDirectories(dir);
+    Path tsvFile = dir.resolve("batchReport.tsv");
+    try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(tsvFile))) {
+      writer.println(String.join("\t", COLUMNS));
+      for (Entry entry : entries) {
+        String[] values = values(entry);
+        // no tabs or line breaks inside a field
+        values[values.length - 1] = values[values.length - 1].replaceAll("\\s", " ");
+        writer.println(String.join("\t", values));
+      }
+    }
+
+    Path jsonFile = dir.resolve("batchReport.json");
+    RunMetrics.StageMetrics batch = metrics.getStages().get(0);
+    try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(jsonFile))) {
+      writer.println("{");
+      writer.println("  \"inputs\": [");
+      for (int i = 0; i < entries.size(); i++) {
+        String[] values = values(entries.get(i));
+        StringBuilder line = new StringBuilder("    {");
+        for (int c = 0; c < COLUMNS.length; c++) {
+          line.append(c == 0 ? "" : ", ").append('"').append(COLUMNS[c]).append("\": ");
+          boolean number = c >= 3 && c <= 7;
+          line.append(number ? values[c] : jsonString(values[c]));
+        }
+        writer.println(line.append(i < entries.size() - 1 ? "}," : "}"));
+      }
+      writer.println("  ],");
+      long failed = entries.stream().filter(entry -> !entry.succeeded).count();
+      writer.println("  \"succeeded\": " + (entries.size() - failed) + ",");
+      writer.println("  \"failed\": " + failed + ",");
+      writer.println("  \"wallMs\": " + millis(batch.wallNanos) + ",");
+      writer.println("  \"cpuMs\": " + (batch.cpuNanos < 0 ? "-1" : millis(batch.cpuNanos)) + ",");
+      writer.println("  \"allocatedBytes\": " + batch.allocatedBytes + ",");
+      writer.println("  \"peakHeapBytes\": " + batch.peakHeapBytes);
+      writer.println("}");
+    }
+    RunMetrics.progress("Wrote batch report to " + jsonFile + " and " + tsvFile);
+  }
+
+  private static String jsonString(String value) {
+    StringBuilder quoted = new StringBuilder("\"");
+    for (char c : value.toCharArray()) {
+      if (c == '"' || c == '\\') {
+        quoted.append('\\').append(c);
+      } else if (c < 0x20) {
+        quoted.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+      } else {
+        quoted.append(c);
+      }
+    }
+    return quoted.append('"').toString();
+  }
+}
@@ -0,0 +1,251 @@
+package org.pankratzlab;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Function;
+import java.util.function.IntConsumer;
+
+/**
+ * Runs the work after parsing one chr at a time, each chr a fork join task of its own: finding
+ * its genes' exons and introns and grouping them, then sorting the groupings on it and rendering
+ * its part of each sorted output. The parts are put back together in chr order, the order the
+ * outputs have always been sorted in, so they come out the same as from one pass over the genome.
+ * Genes off the main contigs are chr 0 and go first, as they sort.
+ * <p>
+ * Grouping by xRefGeneId is the one step that crosses chrs, since a GeneID can have genes on
+ * several of them (the pseudoautosomal genes on X and Y, alt contig copies). Each chr groups its
+ * own genes and the {@link GeneGroupIndex}es are merged in between, which is cheap next to the
+ * rest.
+ * <p>
+ * The tasks run on one fork join pool per thread count, shared by every call. Stages that run at
+ * once (see {@link StagePlanner}) then split their chrs over the same threads=N threads, instead
+ * of each starting N of its own.
+ */
+public class ChrPartitions {
+  private static final Map<Integer, ForkJoinPool> POOLS = new ConcurrentHashMap<>();
+  private static final int RENDERED_AHEAD_PER_THREAD = 2;
+
+  private ChrPartitions() {}
+
+  /**
+   * @return the pool shared by everything split by chr on this many threads. Its threads are
+   *         daemons and end once they have been idle for a while, so it is never shut down.
+   */
+  static ForkJoinPool pool(int threads) {
+    return POOLS.computeIfAbsent(Math.max(1, threads), ForkJoinPool::new);
+  }
+
+  /**
+   * @return the genes split by chr, in chr order, chrs without genes left out
+   */
+  static List<List<BasicFeature>> genesByChr(Collection<BasicFeature> genes) {
+    List<List<BasicFeature>> byChr = new ArrayList<>();
+    for (int chr = 0; chr <= Byte.MAX_VALUE; chr++) {
+      byChr.add(new ArrayList<>());
+    }
+    for (BasicFeature gene : genes) {
+      byChr.get(gene.getChr()).add(gene);
+    }
+    byChr.removeIf(List::isEmpty);
+    return byChr;
+  }
+
+  /**
+   * Finds every gene's exons, and introns if asked, and groups the genes by xRefGeneId, a fork join
+   * task per chr
+   */
+  static GeneGroupIndex deriveAndGroup(Collection<BasicFeature> genes, boolean introns,
+                                       int threads) {
+    List<List<BasicFeature>> byChr = genesByChr(genes);
+    GeneGroupIndex[] indices = new GeneGroupIndex[byChr.size()];
+    forEachChr(byChr, threads, partition -> {
+      indices[partition] = deriveAndGroup(byChr.get(partition), introns);
+    });
+    GeneGroupIndex merged = new GeneGroupIndex();
+    for (GeneGroupIndex index : indices) {
+      merged.merge(index);
+    }
+    return merged;
+  }
+
+  /**
+   * Builds every gene's {@link ExonModel}, its exons and introns as intervals, a fork join task
+   * per chr
+   */
+  static void deriveExonModels(Collection<BasicFeature> genes, int threads) {
+    List<List<BasicFeature>> byChr = genesByChr(genes);
+    forEachChr(byChr, threads, partition -> byChr.get(partition)
+                                                 .forEach(BasicFeature::getExonModel));
+  }
+
+  private static void forEachChr(List<List<BasicFeature>> byChr, int threads,
+                                 IntConsumer work) {
+    pool(threads).invoke(new RecursiveAction() {
+      @Override
+      protected void compute() {
+        List<RecursiveAction> tasks = new ArrayList<>(byChr.size());
+        for (int i = 0; i < byChr.size(); i++) {
+          int partition = i;
+          tasks.add(new RecursiveAction() {
+            @Override
+            protected void compute() {
+              work.accept(partition);
+            }
+          });
+        }
+        invokeAll(tasks);
+      }
+    });
+  }
+
+  private static GeneGroupIndex deriveAndGroup(List<BasicFeature> genes, boolean introns) {
+    GeneGroupIndex index = new GeneGroupIndex();
+    for (BasicFeature gene : genes) {
+      gene.getDescendantExons();
+      if (introns) {
+        gene.getExonModel();
+      }
+      index.add(gene);
+    }
+    return index;
+  }
+
+  /**
+   * Sorts groupings by chr, start and end of their representative gene, then geneId, each chr on
+   * its own fork join task. The sort keys are computed once per grouping rather than on every
+   * comparison.
+   */
+  static List<GeneGrouping> sortByLocation(Collection<GeneGrouping> groupings, int threads) {
+    List<List<SortKey>> byChr = new ArrayList<>();
+    for (int chr = 0; chr <= Byte.MAX_VALUE; chr++) {
+      byChr.add(new ArrayList<>());
+    }
+    for (GeneGrouping grouping : groupings) {
+      SortKey key = new SortKey(grouping);
+      byChr.get(grouping.getChr()).add(key);
+    }
+    byChr.removeIf(List::isEmpty);
+    SortKey[][] sorted = new SortKey[byChr.size()][];
+    pool(threads).invoke(new RecursiveAction() {
+      @Override
+      protected void compute() {
+        List<RecursiveAction> tasks = new ArrayList<>(sorted.length);
+        for (int i = 0; i < sorted.length; i++) {
+          int partition = i;
+          tasks.add(new RecursiveAction() {
+            @Override
+            protected void compute() {
+              SortKey[] keys = byChr.get(partition).toArray(new SortKey[0]);
+              Arrays.sort(keys);
+              sorted[partition] = keys;
+            }
+          });
+        }
+        invokeAll(tasks);
+      }
+    });
+    List<GeneGrouping> result = new ArrayList<>(groupings.size());
+    for (SortKey[] keys : sorted) {
+      for (SortKey key : keys) {
+        result.add(key.grouping);
+      }
+    }
+    return result;
+  }
+
+  private static final class SortKey implements Comparable<SortKey> {
+    final int start;
+    final int end;
+    final GeneGrouping grouping;
+
+    SortKey(GeneGrouping grouping) {
+      this.start = grouping.getStart();
+      this.end = grouping.getEnd();
+      this.grouping = grouping;
+    }
+
+    // only ever compared within a chr
+    @Override
+    public int compareTo(SortKey other) {
+      if (start != other.start) {
+        return Integer.compare(start, other.start);
+      }
+      if (end != other.end) {
+        return Integer.compare(end, other.end);
+      }
+      return grouping.geneId.compareTo(other.grouping.geneId);
+    }
+  }
+
+  /**
+   * Starts a fork join task per chr on groupings sorted by chr, each given that chr's run of them.
+   * Join the tasks in order to put the results back together in chr order.
+   */
+  static <T> List<ForkJoinTask<T>> renderByChr(List<GeneGrouping> sorted, int threads,
+                                               Function<List<GeneGrouping>, T> render) {
+    List<ForkJoinTask<T>> tasks = new ArrayList<>();
+    ForkJoinPool pool = pool(threads);
+    for (List<GeneGrouping> run : chrRuns(sorted)) {
+      tasks.add(pool.submit(ForkJoinTask.adapt(() -> render.apply(run))));
+    }
+    return tasks;
+  }
+
+  /**
+   * Like {@link #renderByChr}, but each iteration renders the chrs as it goes, at most a couple of
+   * chrs per thread ahead of the one it is at, so a writer that is slower than the rendering only
+   * ever has those few chrs' results waiting for it
+   */
+  static <T> Iterable<T> renderAhead(List<GeneGrouping> sorted, int threads,
+                                     Function<List<GeneGrouping>, T> render) {
+    List<List<GeneGrouping>> runs = chrRuns(sorted);
+    int window = RENDERED_AHEAD_PER_THREAD * Math.max(1, threads);
+    return () -> new Iterator<T>() {
+      private final Deque<ForkJoinTask<T>> rendering = new ArrayDeque<>();
+      private int submitted = 0;
+
+      @Override
+      public boolean hasNext() {
+        return submitted < runs.size() || !rendering.isEmpty();
+      }
+
+      @Override
+      public T next() {
+        while (submitted < runs.size() && rendering.size() < window) {
+          List<GeneGrouping> run = runs.get(submitted++);
+          rendering.add(pool(threads).submit(ForkJoinTask.adapt(() -> render.apply(run))));
+        }
+        if (rendering.isEmpty()) {
+          throw new NoSuchElementException();
+        }
+        return rendering.poll().join();
+      }
+    };
+  }
+
+  /**
+   * @return the runs of groupings sorted by chr that are on the same chr
+   */
+  private static List<List<GeneGrouping>> chrRuns(List<GeneGrouping> sorted) {
+    List<List<GeneGrouping>> runs = new ArrayList<>();
+    int runStart = 0;
+    for (int i = 1; i <= sorted.size(); i++) {
+      if (i == sorted.size() || sorted.get(i).getChr() != sorted.get(runStart).getChr()) {
+        runs.add(sorted.subList(runStart, i));
+        runStart = i;
+      }
+    }
+    return runs;
+  }
+}
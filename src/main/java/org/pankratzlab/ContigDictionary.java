@@ -0,0 +1,292 @@
+package org.pankratzlab;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Which chr each contig (GFF3 seqid) of an assembly is. Contigs that aren't listed, such as alt
+ * loci and unplaced scaffolds, are chr 0 and off the main contigs. Every contig a feature is on is
+ * looked up once, when the feature is created, so its chr is a field from then on.
+ * <p>
+ * The mapping of GRCh38's RefSeq accessions is built in. Others load from an NCBI assembly report
+ * (the *_assembly_report.txt next to an assembly's sequences), where every name of each
+ * assembled-molecule maps to its molecule, or from a file of one contig and molecule per line,
+ * separated by a tab.
+ * <p>
+ * Chrs are numbered by the dictionary from its molecules. Numbered molecules keep their number.
+ * The others take their Genvisis number, X 23, Y 24, XY 25 and MT 26, unless an autosome already
+ * has it, as X would for dog or horse, and otherwise the next number after the highest one taken,
+ * in the order they are listed. So human assemblies come out in Genvisis numbering, and chicken W
+ * and Z or chimpanzee 2A and 2B get a chr of their own. Bed lines name the molecule, and the
+ * mitochondrion, the molecule MT or M, has no bed lines.
+ */
+public class ContigDictionary {
+  /**
+   * A contig, its name interned so every feature on it shares one copy
+   */
+  public static final class Contig {
+    public final String name;
+    public final byte chr;
+
+    private Contig(String name, byte chr) {
+      this.name = name;
+      this.chr = chr;
+    }
+  }
+
+  private static final String MITOCHONDRION = "MT";
+  private static final Map<String, Integer> GENVISIS_CHRS = Map.of("X", 23, "Y", 24, "XY", 25,
+                                                                   MITOCHONDRION, 26);
+
+  // @format:off
+  private static final String[][] GRCH38 = {
+      {"NC_000001.11", "1"}, {"NC_000002.12", "2"}, {"NC_000003.12", "3"},
+      {"NC_000004.12", "4"}, {"NC_000005.10", "5"}, {"NC_000006.12", "6"},
+      {"NC_000007.14", "7"}, {"NC_000008.11", "8"}, {"NC_000009.12", "9"},
+      {"NC_000010.11", "10"}, {"NC_000011.10", "11"}, {"NC_000012.12", "12"},
+      {"NC_000013.11", "13"}, {"NC_000014.9", "14"}, {"NC_000015.10", "15"},
+      {"NC_000016.10", "16"}, {"NC_000017.11", "17"}, {"NC_000018.10", "18"},
+      {"NC_000019.10", "19"}, {"NC_000020.11", "20"}, {"NC_000021.9", "21"},
+      {"NC_000022.11", "22"}, {"NC_000023.11", "X"}, {"NC_000024.10", "Y"},
+      {"NC_012920.1", "MT"}};
+  // @format:on
+
+  // assembly report columns
+  private static final int SEQUENCE_NAME = 0;
+  private static final int SEQUENCE_ROLE = 1;
+  private static final int ASSIGNED_MOLECULE = 2;
+  private static final int MOLECULE_TYPE = 3;
+  private static final int GENBANK_ACCESSION = 4;
+  private static final int REFSEQ_ACCESSION = 6;
+  private static final int UCSC_NAME = 9;
+  private static final int[] NAME_COLUMNS = {SEQUENCE_NAME, GENBANK_ACCESSION, REFSEQ_ACCESSION,
+                                             UCSC_NAME};
+
+  private static volatile ContigDictionary active = grch38();
+
+  private final String source;
+  private final Map<String, Byte> chrs;
+  // molecule of each chr, null for numbers no molecule has
+  private final String[] molecules;
+  private final Map<String, Byte> chrsByMolecule;
+  // every contig seen so far, listed or not
+  private final ConcurrentHashMap<String, Contig> contigs = new ConcurrentHashMap<>();
+
+  /**
+   * @param moleculesByContig the molecule of each contig, in the order they were listed
+   */
+  private ContigDictionary(String source, Map<String, String> moleculesByContig) {
+    this.source = source;
+    this.chrsByMolecule = numberMolecules(new LinkedHashSet<>(moleculesByContig.values()));
+    byte max = 0;
+    for (byte chr : chrsByMolecule.values()) {
+      max = (byte) Math.max(max, chr);
+    }
+    this.molecules = new String[max + 1];
+    chrsByMolecule.forEach((molecule, chr) -> molecules[chr] = molecule);
+    this.chrs = new HashMap<>();
+    moleculesByContig.forEach((contig, molecule) -> chrs.put(contig,
+                                                             chrsByMolecule.get(molecule)));
+  }
+
+  private static Map<String, Byte> numberMolecules(Collection<String> molecules) {
+    Map<String, Byte> chrs = new LinkedHashMap<>();
+    Set<Integer> taken = new HashSet<>();
+    int highest = 0;
+    for (String molecule : molecules) {
+      if (isNumber(molecule)) {
+        int chr = Integer.parseInt(molecule);
+        if (chr < 1 || chr > Byte.MAX_VALUE) {
+          throw new IllegalArgumentException("chr " + molecule + " is out of range");
+        }
+        chrs.put(molecule, (byte) chr);
+        taken.add(chr);
+        highest = Math.max(highest, chr);
+      }
+    }
+    List<String> unnumbered = new ArrayList<>();
+    for (String molecule : molecules) {
+      Integer genvisis = GENVISIS_CHRS.get(molecule);
+      if (genvisis != null && taken.add(genvisis)) {
+        chrs.put(molecule, genvisis.byteValue());
+        highest = Math.max(highest, genvisis);
+      } else if (!isNumber(molecule)) {
+        unnumbered.add(molecule);
+      }
+    }
+    for (String molecule : unnumbered) {
+      if (++highest > Byte.MAX_VALUE) {
+        throw new IllegalArgumentException("More than " + Byte.MAX_VALUE + " molecules");
+      }
+      chrs.put(molecule, (byte) highest);
+    }
+    return chrs;
+  }
+
+  private static boolean isNumber(String molecule) {
+    return !molecule.isEmpty() && molecule.chars().allMatch(c -> c >= '0' && c <= '9');
+  }
+
+  public static ContigDictionary grch38() {
+    Map<String, String> molecules = new LinkedHashMap<>();
+    for (String[] entry : GRCH38) {
+      molecules.put(entry[0], entry[1]);
+    }
+    return new ContigDictionary("GRCh38 (built in)", molecules);
+  }
+
+  /**
+   * Reads an NCBI assembly report or a tab separated file of contig and molecule. Molecules can be
+   * given with or without "chr", M is taken as MT. Lines starting with # are skipped.
+   */
+  public static ContigDictionary load(Path file) throws IOException {
+    Map<String, String> molecules = new LinkedHashMap<>();
+    List<String> lines = Files.readAllLines(file);
+    for (int i = 0; i < lines.size(); i++) {
+      String line = lines.get(i);
+      if (line.isBlank() || line.startsWith("#")) {
+        continue;
+      }
+      String[] fields = line.split("\t");
+      try {
+        if (fields.length == 2) {
+          put(molecules, fields[0].strip(), normalizeMolecule(fields[1]));
+        } else if (fields.length > UCSC_NAME) {
+          // everything else is scaffolds, patches and alt loci
+          if (fields[SEQUENCE_ROLE].equals("assembled-molecule")) {
+            String molecule = fields[MOLECULE_TYPE].equals("Mitochondrion")
+                ? MITOCHONDRION
+                : normalizeMolecule(fields[ASSIGNED_MOLECULE]);
+            for (int column : NAME_COLUMNS) {
+              put(molecules, fields[column].strip(), molecule);
+            }
+          }
+        } else {
+          throw new IllegalArgumentException("expected a contig and a chr separated by a tab, or"
+                                             + " the columns of an NCBI assembly report");
+        }
+      } catch (IllegalArgumentException e) {
+        throw new IllegalArgumentException("Line " + (i + 1) + " of " + file + ": "
+                                           + e.getMessage(), e);
+      }
+    }
+    if (molecules.isEmpty()) {
+      throw new IllegalArgumentException("No contigs mapped to a chr in " + file);
+    }
+    return new ContigDictionary(file.toString(), molecules);
+  }
+
+  private static void put(Map<String, String> molecules, String contig, String molecule) {
+    // assembly reports fill columns without a value with "na"
+    if (contig.isEmpty() || contig.equals("na")) {
+      return;
+    }
+    String previous = molecules.putIfAbsent(contig, molecule);
+    if (previous != null && !previous.equals(molecule)) {
+      throw new IllegalArgumentException(contig + " is mapped to both chr " + previous + " and "
+                                         + molecule);
+    }
+  }
+
+  /**
+   * @return the molecule without "chr", upper case, leading zeros dropped and M as MT
+   */
+  private static String normalizeMolecule(String name) {
+    String molecule = name.strip();
+    if (molecule.regionMatches(true, 0, "chr", 0, 3)) {
+      molecule = molecule.substring(3);
+    }
+    molecule = molecule.toUpperCase(Locale.ROOT);
+    if (molecule.isEmpty() || molecule.equals("NA")) {
+      throw new IllegalArgumentException("Not a chr: " + name);
+    }
+    if (isNumber(molecule)) {
+      molecule = String.valueOf(Integer.parseInt(molecule));
+    }
+    return molecule.equals("M") ? MITOCHONDRION : molecule;
+  }
+
+  /**
+   * The dictionary features are created with. Set it before anything is parsed, features that
+   * already exist keep the chr they were created with.
+   */
+  public static ContigDictionary active() {
+    return active;
+  }
+
+  public static void use(ContigDictionary dictionary) {
+    active = dictionary;
+  }
+
+  /**
+   * @return the contig, created on first lookup
+   */
+  public Contig lookup(String name) {
+    Contig contig = contigs.get(name);
+    if (contig == null) {
+      contig = contigs.computeIfAbsent(name, key -> new Contig(key.intern(),
+                                                               chrs.getOrDefault(key, (byte) 0)));
+    }
+    return contig;
+  }
+
+  /**
+   * @return the highest chr of any contig, the length an array indexed by chr needs, minus one
+   */
+  public int maxChr() {
+    return molecules.length - 1;
+  }
+
+  /**
+   * @return the molecule numbered chr, such as "7", "X" or "2A", or null if there is none
+   */
+  public String molecule(int chr) {
+    return chr > 0 && chr < molecules.length ? molecules[chr] : null;
+  }
+
+  public boolean isMitochondrion(int chr) {
+    return MITOCHONDRION.equals(molecule(chr));
+  }
+
+  /**
+   * @param name a molecule, such as "chr7", "X" or "chrM", or a chr number
+   * @return its chr
+   * @throws IllegalArgumentException if the dictionary has no such molecule or number
+   */
+  public byte chr(String name) {
+    String molecule = normalizeMolecule(name);
+    Byte chr = chrsByMolecule.get(molecule);
+    if (chr != null) {
+      return chr;
+    }
+    // or the chr's number itself, 23 for X in human assemblies
+    if (isNumber(molecule) && molecule(Integer.parseInt(molecule)) != null) {
+      return (byte) Integer.parseInt(molecule);
+    }
+    throw new IllegalArgumentException("No chr " + name + " in " + source);
+  }
+
+  /**
+   * @return how many contig names map to a chr
+   */
+  public int size() {
+    return chrs.size();
+  }
+
+  @Override
+  public String toString() {
+    return source;
+  }
+}
@@ -0,0 +1,141 @@
+package org.pankratzlab;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * A gene's exons and the introns between them as sorted primitive intervals, derived once per gene
+ * by {@link BasicFeature#getExonModel()} and shared by its bed lines, GeneData and release
+ * fingerprint. The exons are those of every transcript, sorted by start and then end, with exact
+ * duplicates dropped. Exons that only overlap are all kept, since the bed files and GeneData list
+ * each transcript's exons. One sweep over them merges the exons that overlap or touch into blocks,
+ * and the gaps between the blocks within the gene are the introns. The introns go into the same
+ * arrays right after the exons, then the blocks.
+ */
+public class ExonModel {
+  // 1-based and inclusive, exons at [0, exonCount), then introns at [exonCount, size()), then
+  // blocks from blockOffset
+  private final int[] starts;
+  private final int[] ends;
+  private final int exonCount;
+  private final int intronCount;
+  private final int blockOffset;
+  private final int blockCount;
+
+  ExonModel(BasicFeature gene, Collection<BasicFeature> exons) {
+    // start in the high half and end in the low one, so sorting the longs sorts by start, then
+    // end, with no comparator or boxing
+    long[] keys = new long[exons.size()];
+    int n = 0;
+    for (BasicFeature exon : exons) {
+      keys[n++] = (long) exon.start << 32 | (exon.end & 0xffffffffL);
+    }
+    Arrays.sort(keys);
+    int distinct = 0;
+    for (int i = 0; i < n; i++) {
+      if (distinct == 0 || keys[i] != keys[distinct - 1]) {
+        keys[distinct++] = keys[i];
+      }
+    }
+
+    // there is at most one intron before each exon, one after the last, and a block per exon
+    starts = new int[3 * distinct + 1];
+    ends = new int[3 * distinct + 1];
+    int size = 0;
+    for (int i = 0; i < distinct; i++) {
+      starts[size] = (int) (keys[i] >>> 32);
+      ends[size] = (int) keys[i];
+      size++;
+    }
+    exonCount = distinct;
+
+    blockOffset = 2 * distinct + 1;
+    int block = blockOffset - 1;
+    // the first base not yet covered by a block or an intron
+    int covered = gene.start;
+    for (int i = 0; i < exonCount; i++) {
+      if (block >= blockOffset && starts[i] <= ends[block] + 1) {
+        // an exon inside an earlier, longer one doesn't move the block's end back
+        ends[block] = Math.max(ends[block], ends[i]);
+      } else {
+        if (starts[i] > covered) {
+          starts[size] = covered;
+          ends[size] = starts[i] - 1;
+          size++;
+        }
+        block++;
+        starts[block] = starts[i];
+        ends[block] = ends[i];
+      }
+      covered = Math.max(covered, ends[block] + 1);
+    }
+    blockCount = block - blockOffset + 1;
+    if (gene.end >= covered) {
+      starts[size] = covered;
+      ends[size] = gene.end;
+      size++;
+    }
+    intronCount = size - exonCount;
+  }
+
+  public int exonCount() {
+    return exonCount;
+  }
+
+  public int intronCount() {
+    return intronCount;
+  }
+
+  /**
+   * @return exonCount() + intronCount(), the exons are indices [0, exonCount()) and the introns
+   *         the rest
+   */
+  public int size() {
+    return exonCount + intronCount;
+  }
+
+  /**
+   * @return how many runs of overlapping or adjacent exons there are, with no intron between them
+   */
+  public int blockCount() {
+    return blockCount;
+  }
+
+  public int blockStart(int block) {
+    return starts[blockOffset + block];
+  }
+
+  public int blockEnd(int block) {
+    return ends[blockOffset + block];
+  }
+
+  public int start(int i) {
+    return starts[i];
+  }
+
+  public int end(int i) {
+    return ends[i];
+  }
+
+  public boolean isExon(int i) {
+    return i < exonCount;
+  }
+
+  /**
+   * @return whether interval i comes strictly before interval j in location order
+   */
+  boolean precedes(int i, int j) {
+    return starts[i] != starts[j] ? starts[i] < starts[j] : ends[i] < ends[j];
+  }
+
+  /**
+   * @return {start, end} of every exon, in order, as GeneData takes them
+   */
+  public int[][] exonBoundaries() {
+    int[][] boundaries = new int[exonCount][];
+    for (int i = 0; i < exonCount; i++) {
+      boundaries[i] = new int[] {starts[i], ends[i]};
+    }
+    return boundaries;
+  }
+}
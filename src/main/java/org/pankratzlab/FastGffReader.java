@@ -0,0 +1,377 @@
+package org.pankratzlab;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.zip.GZIPInputStream;
+
+import org.pankratzlab.common.filesys.GeneData;
+
+/**
+ * An alternative to {@link GffParser} that skips htsjdk's attribute maps. Lines are tokenized
+ * where they lie in a memory mapped file, without copying them anywhere first (or in the inflated
+ * bytes of a gzipped one), the coordinates are parsed without creating strings, and only the
+ * attributes {@link BasicFeature} uses (ID, Parent, Name and Dbxref) are turned into strings.
+ * Lines of a type the {@link FeatureProjection} doesn't keep are skipped as soon as the type is
+ * known, or reported as a bare id to parent id link if the projection needs one.
+ */
+public class FastGffReader {
+  private static final int BUFFER_SIZE = 1 << 20;
+  private static final long MAX_MAPPING_SIZE = 1L << 30;
+
+  private static final byte[] ID = "ID".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] PARENT = "Parent".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] NAME = "Name".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] DBXREF = "Dbxref".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] GENE_ID = "GeneID".getBytes(StandardCharsets.US_ASCII);
+
+  private final FeatureProjection projection;
+  private final Consumer<BasicFeature> featureConsumer;
+  private final LinkConsumer linkConsumer;
+  private final Runnable flushDirectiveListener;
+
+  // what the lines are tokenized from: a mapping of the file, or the buffer of inflated bytes
+  private ByteBuffer data;
+  private byte[] buffer;
+  // values are copied out of data here on their way to a string
+  private byte[] scratch = new byte[256];
+  private final int[] tabs = new int[8];
+  private long lineNumber = 0;
+  private boolean reachedFasta = false;
+
+  // contigs come in long runs and there are only a handful of types, so reuse their strings
+  private final List<byte[]> knownTypeBytes = new ArrayList<>();
+  private final List<String> knownTypes = new ArrayList<>();
+  private byte[] lastContigBytes = new byte[0];
+  private String lastContig = null;
+
+  @FunctionalInterface
+  public interface LinkConsumer {
+    void accept(String contig, String id, String parentId, String type);
+  }
+
+  /**
+   * @param linkConsumer receives the links for features the projection drops but needs links for
+   * @param flushDirectiveListener called for every ### directive, may be null
+   */
+  public FastGffReader(String filename, FeatureProjection projection,
+                       Consumer<BasicFeature> featureConsumer, LinkConsumer linkConsumer,
+                       Runnable flushDirectiveListener) {
+    File inputFile = new File(filename);
+    if (!inputFile.exists()) {
+      throw new IllegalArgumentException("Input file does not exist: " + filename);
+    }
+    this.projection = projection;
+    this.featureConsumer = featureConsumer;
+    this.linkConsumer = linkConsumer;
+    this.flushDirectiveListener = flushDirectiveListener;
+
+    try {
+      if (isGzipped(inputFile)) {
+        try (InputStream in = new GZIPInputStream(new FileInputStream(inputFile), BUFFER_SIZE)) {
+          readStream(in);
+        }
+      } else {
+        readMapped(inputFile);
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * A reader for line aligned batches of a file handed over one at a time with
+   * {@link #parseBatch}, see {@link PipelinedGffReader}
+   */
+  FastGffReader(FeatureProjection projection, Consumer<BasicFeature> featureConsumer,
+                LinkConsumer linkConsumer, Runnable flushDirectiveListener) {
+    this.projection = projection;
+    this.featureConsumer = featureConsumer;
+    this.linkConsumer = linkConsumer;
+    this.flushDirectiveListener = flushDirectiveListener;
+  }
+
+  /**
+   * Parses every line of the batch, which has to end at the end of a line
+   *
+   * @param firstLine line number of the batch's first line in the file, for error messages
+   * @return false if the batch had a ##FASTA directive, after which nothing is parsed
+   */
+  boolean parseBatch(byte[] batch, int length, long firstLine) {
+    data = ByteBuffer.wrap(batch);
+    lineNumber = firstLine - 1;
+    consumeLines(length, true);
+    return !reachedFasta;
+  }
+
+  private static boolean isGzipped(File file) throws IOException {
+    try (InputStream in = new FileInputStream(file)) {
+      return in.read() == 0x1f && in.read() == 0x8b;
+    }
+  }
+
+  private void readStream(InputStream in) throws IOException {
+    buffer = new byte[BUFFER_SIZE];
+    data = ByteBuffer.wrap(buffer);
+    int filled = 0;
+    int read;
+    while (!reachedFasta && (read = in.read(buffer, filled, buffer.length - filled)) != -1) {
+      filled += read;
+      int leftover = filled - consumeLines(filled, false);
+      if (leftover == buffer.length) {
+        // a single line is longer than the buffer
+        buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        data = ByteBuffer.wrap(buffer);
+      } else {
+        System.arraycopy(buffer, filled - leftover, buffer, 0, leftover);
+      }
+      filled = leftover;
+    }
+    consumeLines(filled, true);
+  }
+
+  private void readMapped(File file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      long size = channel.size();
+      long mappingStart = 0;
+      while (!reachedFasta && mappingStart < size) {
+        int mappingSize = (int) Math.min(MAX_MAPPING_SIZE, size - mappingStart);
+        boolean lastMapping = mappingStart + mappingSize == size;
+        data = channel.map(FileChannel.MapMode.READ_ONLY, mappingStart, mappingSize);
+        int leftoverStart = consumeLines(mappingSize, lastMapping);
+        if (lastMapping) {
+          break;
+        } else if (leftoverStart == 0) {
+          throw new IOException("Line " + (lineNumber + 1) + " is longer than "
+                                + MAX_MAPPING_SIZE + " bytes");
+        }
+        // the next mapping starts with the line this one ends inside of
+        mappingStart += leftoverStart;
+      }
+    }
+  }
+
+  /**
+   * Parses every complete line in the first {@code limit} bytes of {@link #data}
+   *
+   * @param endOfInput if true, a trailing line without a newline is parsed too
+   * @return where the leftover partial line starts
+   */
+  private int consumeLines(int limit, boolean endOfInput) {
+    int lineStart = 0;
+    for (int i = 0; i < limit && !reachedFasta; i++) {
+      if (data.get(i) == '\n') {
+        parseLine(lineStart, i);
+        lineStart = i + 1;
+      }
+    }
+    if (endOfInput && lineStart < limit && !reachedFasta) {
+      parseLine(lineStart, limit);
+      lineStart = limit;
+    }
+    return lineStart;
+  }
+
+  private void parseLine(int start, int end) {
+    lineNumber++;
+    if (end > start && data.get(end - 1) == '\r') {
+      end--;
+    }
+    if (end == start) {
+      return;
+    }
+    if (data.get(start) == '#') {
+      if (startsWith(start, end, "##FASTA")) {
+        reachedFasta = true;
+      } else if (end - start == 3 && data.get(start + 1) == '#' && data.get(start + 2) == '#'
+                 && flushDirectiveListener != null) {
+        flushDirectiveListener.run();
+      }
+      return;
+    }
+
+    int found = 0;
+    for (int i = start; i < end && found < tabs.length; i++) {
+      if (data.get(i) == '\t') {
+        tabs[found++] = i;
+      }
+    }
+    if (found < tabs.length) {
+      throw new IllegalArgumentException("Line " + lineNumber + " does not have 9 columns");
+    }
+
+    String type = type(tabs[1] + 1, tabs[2]);
+    boolean kept = projection.keepsType(type);
+    if (!kept && !projection.linksType(type)) {
+      return;
+    }
+    String contig = contig(start, tabs[0]);
+    int featureStart = parseInt(tabs[2] + 1, tabs[3]);
+    int featureEnd = parseInt(tabs[3] + 1, tabs[4]);
+    byte strand = strand(tabs[5] + 1, tabs[6]);
+
+    String id = null;
+    String parentId = null;
+    String name = null;
+    String xRefGeneId = Aggregator.BAD_OR_MISSING;
+    int attributeStart = tabs[7] + 1;
+    while (attributeStart < end) {
+      int attributeEnd = indexOf(';', attributeStart, end);
+      int equals = indexOf('=', attributeStart, attributeEnd);
+      if (equals < attributeEnd) {
+        if (regionEquals(attributeStart, equals, ID)) {
+          id = firstValue(equals + 1, attributeEnd);
+        } else if (regionEquals(attributeStart, equals, PARENT)) {
+          parentId = firstValue(equals + 1, attributeEnd);
+        } else if (kept && regionEquals(attributeStart, equals, NAME)) {
+          name = firstValue(equals + 1, attributeEnd);
+        } else if (kept && regionEquals(attributeStart, equals, DBXREF)) {
+          xRefGeneId = geneIdValue(equals + 1, attributeEnd);
+        }
+      }
+      attributeStart = attributeEnd + 1;
+    }
+
+    if (!kept) {
+      linkConsumer.accept(contig, id, parentId, type);
+      return;
+    }
+    featureConsumer.accept(new BasicFeature(id, parentId, type, featureStart, featureEnd, name,
+                                            contig, strand, xRefGeneId));
+  }
+
+  private String contig(int start, int end) {
+    if (!regionEquals(start, end, lastContigBytes)) {
+      lastContigBytes = copy(start, end);
+      // interned like ContigDictionary does, so every reader in the JVM shares one copy
+      lastContig = decode(start, end).intern();
+    }
+    return lastContig;
+  }
+
+  private String type(int start, int end) {
+    for (int i = 0; i < knownTypeBytes.size(); i++) {
+      if (regionEquals(start, end, knownTypeBytes.get(i))) {
+        return knownTypes.get(i);
+      }
+    }
+    knownTypeBytes.add(copy(start, end));
+    knownTypes.add(decode(start, end).intern());
+    return knownTypes.get(knownTypes.size() - 1);
+  }
+
+  private byte strand(int start, int end) {
+    if (end - start == 1) {
+      switch (data.get(start)) {
+        case '+':
+          return GeneData.PLUS_STRAND;
+        case '-':
+          return GeneData.MINUS_STRAND;
+        case '.':
+          return GeneData.BOTH_STRANDS;
+      }
+    }
+    return -1;
+  }
+
+  private int parseInt(int start, int end) {
+    if (start == end) {
+      throw new IllegalArgumentException("Line " + lineNumber + " is missing a coordinate");
+    }
+    int value = 0;
+    for (int i = start; i < end; i++) {
+      int digit = data.get(i) - '0';
+      if (digit < 0 || digit > 9 || value > (Integer.MAX_VALUE - digit) / 10) {
+        throw new IllegalArgumentException("Line " + lineNumber + " has a bad coordinate: "
+                                           + decode(start, end));
+      }
+      value = value * 10 + digit;
+    }
+    return value;
+  }
+
+  private String firstValue(int start, int end) {
+    return decode(start, indexOf(',', start, end));
+  }
+
+  private String geneIdValue(int start, int end) {
+    while (start < end) {
+      int valueEnd = indexOf(',', start, end);
+      if (valueEnd - start >= GENE_ID.length
+          && regionEquals(start, start + GENE_ID.length, GENE_ID)) {
+        return decode(start, valueEnd);
+      }
+      start = valueEnd + 1;
+    }
+    return Aggregator.BAD_OR_MISSING;
+  }
+
+  private int indexOf(char c, int start, int end) {
+    for (int i = start; i < end; i++) {
+      if (data.get(i) == c) {
+        return i;
+      }
+    }
+    return end;
+  }
+
+  private boolean regionEquals(int start, int end, byte[] expected) {
+    if (end - start != expected.length) {
+      return false;
+    }
+    for (int i = 0; i < expected.length; i++) {
+      if (data.get(start + i) != expected[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private boolean startsWith(int start, int end, String prefix) {
+    return end - start >= prefix.length()
+           && regionEquals(start, start + prefix.length(),
+                           prefix.getBytes(StandardCharsets.US_ASCII));
+  }
+
+  private byte[] copy(int start, int end) {
+    byte[] copy = new byte[end - start];
+    for (int i = start; i < end; i++) {
+      copy[i - start] = data.get(i);
+    }
+    return copy;
+  }
+
+  /**
+   * GFF3 percent encodes reserved characters in column values, e.g. %2C for a comma
+   */
+  private String decode(int start, int end) {
+    if (scratch.length < end - start) {
+      scratch = new byte[Math.max(end - start, scratch.length * 2)];
+    }
+    int length = 0;
+    for (int i = start; i < end; i++) {
+      byte b = data.get(i);
+      if (b == '%' && i + 2 < end && isHex(data.get(i + 1)) && isHex(data.get(i + 2))) {
+        scratch[length++] = (byte) (Character.digit(data.get(i + 1), 16) << 4
+                                    | Character.digit(data.get(i + 2), 16));
+        i += 2;
+      } else {
+        scratch[length++] = b;
+      }
+    }
+    return new String(scratch, 0, length, StandardCharsets.UTF_8);
+  }
+
+  private static boolean isHex(byte b) {
+    return Character.digit(b, 16) >= 0;
+  }
+}
@@ -0,0 +1,61 @@
+package org.pankratzlab;
+
+import java.util.Set;
+
+/**
+ * Which features the requested outputs actually need, so everything else can be dropped while
+ * parsing instead of becoming a {@link BasicFeature}. When exons are needed, the features between
+ * an exon and its gene (mRNA, transcript, primary_transcript...) are only remembered as an id to
+ * parent id link, which is enough for {@link Aggregator} to hang the exon directly off the gene.
+ */
+public class FeatureProjection {
+  public static final FeatureProjection ALL = new FeatureProjection(null, false);
+
+  // never the parent of anything we keep, so not even a link is needed
+  private static final Set<String> LEAF_TYPES = Set.of("CDS", "cDNA_match", "match", "region");
+
+  private final Set<String> keptTypes;
+  private final boolean keepLinks;
+
+  private FeatureProjection(Set<String> keptTypes, boolean keepLinks) {
+    this.keptTypes = keptTypes;
+    this.keepLinks = keepLinks;
+  }
+
+  /**
+   * QC output reports duplicate ids across every feature, so it needs everything. Bed files
+   * (introns are derived from exons) and the GeneTrack need genes and exons, genes.xln only genes.
+   */
+  public static FeatureProjection forOutputs(boolean qc, boolean geneTrack, boolean genesXln,
+                                             boolean bed) {
+    if (qc) {
+      return ALL;
+    }
+    if (geneTrack || bed) {
+      return new FeatureProjection(Set.of("gene", "exon"), true);
+    }
+    return new FeatureProjection(Set.of("gene"), false);
+  }
+
+  public boolean keepsAll() {
+    return keptTypes == null;
+  }
+
+  public boolean keepsType(String type) {
+    return keptTypes == null || keptTypes.contains(type);
+  }
+
+  /**
+   * @return true if a feature of this type that isn't kept still needs its parent link recorded
+   */
+  public boolean linksType(String type) {
+    return keepLinks && !keepsType(type) && !LEAF_TYPES.contains(type);
+  }
+
+  /**
+   * @return true if kept features need to be attached to their parents at all
+   */
+  public boolean needsParents() {
+    return keptTypes == null || keepLinks;
+  }
+}
@@ -0,0 +1,250 @@
+package org.pankratzlab;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Holds parsed features as parallel primitive arrays instead of one {@link BasicFeature} with its
+ * own sets per feature. The tree is kept as parent / first child / next sibling indices, types and
+ * contigs are dictionary codes, and names and xRefGeneIds come from shared pools. Only the genes
+ * and their exons are turned back into {@link BasicFeature}s, once parsing is done, for the
+ * writers.
+ */
+public class FeatureStore {
+  static final int NONE = -1;
+  private static final int INITIAL_CAPACITY = 1 << 16;
+
+  private int size = 0;
+  private int distinctIds = 0;
+  private String[] ids = new String[INITIAL_CAPACITY];
+  private int[] starts = new int[INITIAL_CAPACITY];
+  private int[] ends = new int[INITIAL_CAPACITY];
+  private byte[] strands = new byte[INITIAL_CAPACITY];
+  private short[] typeCodes = new short[INITIAL_CAPACITY];
+  private int[] contigCodes = new int[INITIAL_CAPACITY];
+  private int[] nameCodes = new int[INITIAL_CAPACITY];
+  private int[] xRefGeneIdCodes = new int[INITIAL_CAPACITY];
+  private int[] parents = new int[INITIAL_CAPACITY];
+  private int[] firstChildren = new int[INITIAL_CAPACITY];
+  private int[] nextSiblings = new int[INITIAL_CAPACITY];
+
+  private final StringPool types = new StringPool();
+  private final StringPool contigs = new StringPool();
+  private final StringPool names = new StringPool();
+  private final StringPool xRefGeneIds = new StringPool();
+
+  // open addressing index from id to feature index + 1, the ids themselves are the keys
+  private int[] indexById = new int[INITIAL_CAPACITY * 2];
+  // see Aggregator.parentLinks and Aggregator.pendingChildren
+  private final Map<String, String> parentLinks = new HashMap<>();
+  private final Map<String, List<Integer>> pendingChildren = new HashMap<>();
+
+  /**
+   * @return false if a feature with this id was already stored
+   */
+  public boolean add(BasicFeature feat) {
+    if (size == ids.length) {
+      grow();
+    }
+    int index = size++;
+    ids[index] = feat.id;
+    starts[index] = feat.start;
+    ends[index] = feat.end;
+    strands[index] = feat.strand;
+    typeCodes[index] = (short) types.code(feat.type);
+    contigCodes[index] = contigs.code(feat.contig);
+    nameCodes[index] = names.code(feat.name);
+    xRefGeneIdCodes[index] = xRefGeneIds.code(feat.xRefGeneId);
+    parents[index] = NONE;
+    firstChildren[index] = NONE;
+    nextSiblings[index] = NONE;
+
+    boolean isNew = putIndex(index);
+    if (isNew) {
+      distinctIds++;
+    }
+    if (feat.parentId != null) {
+      attachToParent(index, feat.parentId);
+    }
+    List<Integer> waitingChildren = pendingChildren.remove(feat.id);
+    if (waitingChildren != null) {
+      waitingChildren.forEach(child -> link(child, index));
+    }
+    return isNew;
+  }
+
+  /**
+   * Same as {@link Aggregator#addLink}, for a feature that is only needed to connect its
+   * descendants to its ancestors.
+   */
+  public void addLink(String id, String parentId) {
+    parentLinks.put(id, parentId);
+    List<Integer> waitingChildren = pendingChildren.remove(id);
+    if (waitingChildren != null && parentId != null) {
+      waitingChildren.forEach(child -> attachToParent(child, parentId));
+    }
+  }
+
+  private void attachToParent(int index, String parentId) {
+    int parent = getIndex(parentId);
+    while (parent == NONE && parentLinks.containsKey(parentId)) {
+      parentId = parentLinks.get(parentId);
+      if (parentId == null) {
+        return;
+      }
+      parent = getIndex(parentId);
+    }
+    if (parent == NONE) {
+      pendingChildren.computeIfAbsent(parentId, k -> new ArrayList<>()).add(index);
+    } else {
+      link(index, parent);
+    }
+  }
+
+  private void link(int child, int parent) {
+    parents[child] = parent;
+    nextSiblings[child] = firstChildren[parent];
+    firstChildren[parent] = child;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @return the number of distinct ids stored, which is what a map from id to feature would hold
+   */
+  public int distinctIds() {
+    return distinctIds;
+  }
+
+  public int countPendingChildren() {
+    return pendingChildren.values().stream().mapToInt(List::size).sum();
+  }
+
+  /**
+   * Builds a {@link BasicFeature} for every gene with its descendant exons attached directly as
+   * children, which is all the writers look at. Everything in between stays in the arrays. A gene
+   * whose id a later feature took over is left out, like a map from id to feature would lose it.
+   */
+  public List<BasicFeature> materializeGenes() {
+    List<BasicFeature> genes = new ArrayList<>();
+    int geneCode = types.find("gene");
+    int exonCode = types.find("exon");
+    if (geneCode == NONE) {
+      return genes;
+    }
+    int[] toVisit = new int[16];
+    for (int i = 0; i < size; i++) {
+      if (typeCodes[i] != geneCode || getIndex(ids[i]) != i) {
+        continue;
+      }
+      BasicFeature gene = materialize(i);
+      int stackSize = 0;
+      for (int child = firstChildren[i]; child != NONE; child = nextSiblings[child]) {
+        if (stackSize == toVisit.length) {
+          toVisit = Arrays.copyOf(toVisit, stackSize * 2);
+        }
+        toVisit[stackSize++] = child;
+      }
+      while (stackSize > 0) {
+        int feat = toVisit[--stackSize];
+        if (typeCodes[feat] == exonCode) {
+          gene.addChild(materialize(feat));
+        }
+        for (int child = firstChildren[feat]; child != NONE; child = nextSiblings[child]) {
+          if (stackSize == toVisit.length) {
+            toVisit = Arrays.copyOf(toVisit, stackSize * 2);
+          }
+          toVisit[stackSize++] = child;
+        }
+      }
+      genes.add(gene);
+    }
+    return genes;
+  }
+
+  private BasicFeature materialize(int index) {
+    String parentId = parents[index] == NONE ? null : ids[parents[index]];
+    return new BasicFeature(ids[index], parentId, types.get(typeCodes[index]), starts[index],
+                            ends[index], names.get(nameCodes[index]),
+                            contigs.get(contigCodes[index]), strands[index],
+                            xRefGeneIds.get(xRefGeneIdCodes[index]));
+  }
+
+  private boolean putIndex(int index) {
+    if ((size - 1) * 2 >= indexById.length) {
+      int[] old = indexById;
+      indexById = new int[old.length * 2];
+      for (int slot : old) {
+        if (slot != 0) {
+          indexById[findSlot(ids[slot - 1])] = slot;
+        }
+      }
+    }
+    int slot = findSlot(ids[index]);
+    boolean isNew = indexById[slot] == 0;
+    // like a map put, a duplicate id now points at the latest feature
+    indexById[slot] = index + 1;
+    return isNew;
+  }
+
+  private int getIndex(String id) {
+    return indexById[findSlot(id)] - 1;
+  }
+
+  private int findSlot(String id) {
+    int mask = indexById.length - 1;
+    int h = Objects.hashCode(id) * 0x9E3779B9;
+    int slot = (h ^ (h >>> 16)) & mask;
+    while (indexById[slot] != 0 && !Objects.equals(ids[indexById[slot] - 1], id)) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  private void grow() {
+    int capacity = ids.length * 2;
+    ids = Arrays.copyOf(ids, capacity);
+    starts = Arrays.copyOf(starts, capacity);
+    ends = Arrays.copyOf(ends, capacity);
+    strands = Arrays.copyOf(strands, capacity);
+    typeCodes = Arrays.copyOf(typeCodes, capacity);
+    contigCodes = Arrays.copyOf(contigCodes, capacity);
+    nameCodes = Arrays.copyOf(nameCodes, capacity);
+    xRefGeneIdCodes = Arrays.copyOf(xRefGeneIdCodes, capacity);
+    parents = Arrays.copyOf(parents, capacity);
+    firstChildren = Arrays.copyOf(firstChildren, capacity);
+    nextSiblings = Arrays.copyOf(nextSiblings, capacity);
+  }
+
+  /**
+   * Dictionary of distinct strings, null is stored as {@link FeatureStore#NONE}
+   */
+  static class StringPool {
+    private final Map<String, Integer> codes = new HashMap<>();
+    private final List<String> values = new ArrayList<>();
+
+    int code(String value) {
+      if (value == null) {
+        return NONE;
+      }
+      return codes.computeIfAbsent(value, v -> {
+        values.add(v);
+        return values.size() - 1;
+      });
+    }
+
+    int find(String value) {
+      return codes.getOrDefault(value, NONE);
+    }
+
+    String get(int code) {
+      return code == NONE ? null : values.get(code);
+    }
+  }
+}
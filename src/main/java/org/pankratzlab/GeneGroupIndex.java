@@ -0,0 +1,151 @@
+package org.pankratzlab;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * {@link GeneGrouping}s keyed by the numeric part of their xRefGeneId, in an open addressing map
+ * so the key is never boxed. Genes whose xRefGeneId isn't "GeneID:NNN" fall back to a regular map
+ * keyed by the full string. Not thread safe; build one per thread and {@link #merge} them, e.g.
+ * with {@code genes.parallelStream().collect(GeneGroupIndex::new, GeneGroupIndex::add,
+ * GeneGroupIndex::merge)}.
+ */
+public class GeneGroupIndex {
+  private static final int INITIAL_CAPACITY = 1024;
+
+  private int[] keys = new int[INITIAL_CAPACITY];
+  private GeneGrouping[] groups = new GeneGrouping[INITIAL_CAPACITY];
+  private int size = 0;
+
+  private final Map<String, GeneGrouping> otherGroups = new HashMap<>();
+
+  public void add(BasicFeature gene) {
+    if (gene.xRefGeneIdNum == BasicFeature.NO_XREF_GENE_ID_NUM) {
+      addToOtherGroups(gene);
+      return;
+    }
+    int slot = findSlot(gene.xRefGeneIdNum);
+    GeneGrouping group = groups[slot];
+    if (group == null) {
+      group = new GeneGrouping(gene.xRefGeneId);
+      insert(slot, gene.xRefGeneIdNum, group);
+    } else if (!group.geneId.equals(gene.xRefGeneId)) {
+      // same number spelled differently, e.g. with a leading zero
+      addToOtherGroups(gene);
+      return;
+    }
+    group.addGene(gene);
+  }
+
+  private void addToOtherGroups(BasicFeature gene) {
+    otherGroups.computeIfAbsent(gene.xRefGeneId, GeneGrouping::new).addGene(gene);
+  }
+
+  public void merge(GeneGroupIndex other) {
+    for (int i = 0; i < other.groups.length; i++) {
+      GeneGrouping otherGroup = other.groups[i];
+      if (otherGroup == null) {
+        continue;
+      }
+      int slot = findSlot(other.keys[i]);
+      if (groups[slot] == null) {
+        insert(slot, other.keys[i], otherGroup);
+      } else if (groups[slot].geneId.equals(otherGroup.geneId)) {
+        groups[slot].addAll(otherGroup);
+      } else {
+        mergeIntoOtherGroups(otherGroup);
+      }
+    }
+    other.otherGroups.values().forEach(this::mergeIntoOtherGroups);
+  }
+
+  private void mergeIntoOtherGroups(GeneGrouping group) {
+    // the other index may have set aside a spelling that this one holds in its slot
+    int num = BasicFeature.parseXRefGeneIdNum(group.geneId);
+    if (num != BasicFeature.NO_XREF_GENE_ID_NUM) {
+      GeneGrouping slotted = groups[findSlot(num)];
+      if (slotted != null && slotted.geneId.equals(group.geneId)) {
+        slotted.addAll(group);
+        return;
+      }
+    }
+    GeneGrouping existing = otherGroups.putIfAbsent(group.geneId, group);
+    if (existing != null) {
+      existing.addAll(group);
+    }
+  }
+
+  public GeneGrouping get(int xRefGeneIdNum) {
+    return groups[findSlot(xRefGeneIdNum)];
+  }
+
+  public int size() {
+    return size + otherGroups.size();
+  }
+
+  public List<GeneGrouping> getGroupings() {
+    List<GeneGrouping> result = new ArrayList<>(size());
+    for (GeneGrouping group : groups) {
+      if (group != null) {
+        result.add(group);
+      }
+    }
+    result.addAll(otherGroups.values());
+    return result;
+  }
+
+  /**
+   * @return the groupings keyed and ordered by xRefGeneId, as the writers expect
+   */
+  public TreeMap<String, GeneGrouping> toSortedMap() {
+    TreeMap<String, GeneGrouping> sorted = new TreeMap<>();
+    for (GeneGrouping group : getGroupings()) {
+      GeneGrouping existing = sorted.putIfAbsent(group.geneId, group);
+      if (existing != null) {
+        existing.addAll(group);
+      }
+    }
+    return sorted;
+  }
+
+  private int findSlot(int key) {
+    int mask = keys.length - 1;
+    int slot = mix(key) & mask;
+    while (groups[slot] != null && keys[slot] != key) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  private void insert(int slot, int key, GeneGrouping group) {
+    keys[slot] = key;
+    groups[slot] = group;
+    size++;
+    // keep the load factor under 1/2 so probe sequences stay short
+    if (size * 2 > keys.length) {
+      resize();
+    }
+  }
+
+  private void resize() {
+    int[] oldKeys = keys;
+    GeneGrouping[] oldGroups = groups;
+    keys = new int[oldKeys.length * 2];
+    groups = new GeneGrouping[oldGroups.length * 2];
+    for (int i = 0; i < oldGroups.length; i++) {
+      if (oldGroups[i] != null) {
+        int slot = findSlot(oldKeys[i]);
+        keys[slot] = oldKeys[i];
+        groups[slot] = oldGroups[i];
+      }
+    }
+  }
+
+  private static int mix(int key) {
+    int h = key * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+}
@@ -7,6 +7,8 @@ public class GeneGrouping {
   private final Set<BasicFeature> genes = new HashSet<>();
   private final Set<BasicFeature> mainContigGenes = new HashSet<>();
   public final String geneId;
+  // the gene whose location stands for the whole group, see getRepresentativeGene
+  private BasicFeature representativeGene = null;
 
   public GeneGrouping(String geneId) {
     this.geneId = geneId;
@@ -32,6 +34,17 @@ public class GeneGrouping {
     if (gene.onMainContig) {
       this.mainContigGenes.add(gene);
     }
+    this.representativeGene = null;
+  }
+
+  public void addAll(GeneGrouping other) {
+    if (!other.geneId.equals(this.geneId)) {
+      throw new IllegalArgumentException("Cannot merge gene group " + other.geneId + " into "
+                                         + this.geneId);
+    }
+    this.genes.addAll(other.genes);
+    this.mainContigGenes.addAll(other.mainContigGenes);
+    this.representativeGene = null;
   }
 
   public boolean hasMainContigGene() {
@@ -58,28 +71,27 @@ public class GeneGrouping {
     return this.mainContigGenes.size();
   }
 
-  public int getChr() {
-    if (this.hasMainContigGene()) {
-      return mainContigGenes.stream().findAny().get().getChr();
-    } else {
-      return genes.stream().findAny().get().getChr();
+  /**
+   * @return a main contig gene if there is one, otherwise any gene
+   */
+  public BasicFeature getRepresentativeGene() {
+    if (representativeGene == null) {
+      Set<BasicFeature> candidates = this.hasMainContigGene() ? mainContigGenes : genes;
+      representativeGene = candidates.iterator().next();
     }
+    return representativeGene;
+  }
+
+  public int getChr() {
+    return getRepresentativeGene().getChr();
   }
 
   public int getStart() {
-    if (this.hasMainContigGene()) {
-      return mainContigGenes.stream().findAny().get().start;
-    } else {
-      return genes.stream().findAny().get().start;
-    }
+    return getRepresentativeGene().start;
   }
 
   public int getEnd() {
-    if (this.hasMainContigGene()) {
-      return mainContigGenes.stream().findAny().get().end;
-    } else {
-      return genes.stream().findAny().get().end;
-    }
+    return getRepresentativeGene().end;
   }
 
   public int compareTo (GeneGrouping other) {
@@ -0,0 +1,279 @@
+package org.pankratzlab;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+
+import org.pankratzlab.common.filesys.GeneData;
+import org.pankratzlab.common.filesys.GeneSet;
+
+/**
+ * The genes of a GeneTrack in a compact binary file, GeneTrack.bin, as an alternative to the Java
+ * serialized GeneTrack.ser. That one can only be built by serializing a GeneSet to geneset.ser and
+ * having GeneTrack read it back, then serializing again; this one is written straight from the
+ * GeneData in memory. Genes are laid out the way a GeneTrack holds them, by chr and then by start,
+ * and an index of where each chr starts comes last, so a reader can memory map the file and only
+ * decode the chrs it needs.
+ * <p>
+ * Run on its own with geneTrack= and geneSet= to check a GeneTrack.bin against the geneset.ser
+ * written next to it, gene by gene and field by field.
+ */
+public class GeneTrackFile {
+  static final String FILE_NAME = "GeneTrack.bin";
+  private static final int MAGIC = 0x4749544b; // GITK
+  // bump whenever the layout below changes
+  private static final int FORMAT_VERSION = 1;
+
+  private static final int FINALIZED = 1;
+  private static final int COLLAPSED_ISOFORMS = 2;
+
+  private GeneTrackFile() {}
+
+  /**
+   * @return the genes indexed by chr, each chr's by start and then stop, otherwise in the order
+   *         given
+   */
+  static GeneData[][] byChr(Collection<GeneData> genes) {
+    int maxChr = 0;
+    for (GeneData gene : genes) {
+      maxChr = Math.max(maxChr, gene.getChr());
+    }
+    List<List<GeneData>> byChr = new ArrayList<>();
+    for (int chr = 0; chr <= maxChr; chr++) {
+      byChr.add(new ArrayList<>());
+    }
+    for (GeneData gene : genes) {
+      byChr.get(gene.getChr()).add(gene);
+    }
+    GeneData[][] track = new GeneData[byChr.size()][];
+    for (int chr = 0; chr < track.length; chr++) {
+      track[chr] = byChr.get(chr).toArray(new GeneData[0]);
+      // stable, so genes at the same location keep their order
+      Arrays.sort(track[chr], Comparator.comparingInt(GeneData::getStart)
+                                        .thenComparingInt(GeneData::getStop));
+    }
+    return track;
+  }
+
+  static void write(Path file, GeneData[][] track) throws IOException {
+    long[] offsets = new long[track.length];
+    try (DataOutputStream out = new DataOutputStream(OutputWriters.openStream(file))) {
+      out.writeInt(MAGIC);
+      out.writeInt(FORMAT_VERSION);
+      for (int chr = 0; chr < track.length; chr++) {
+        offsets[chr] = out.size();
+        for (GeneData gene : track[chr]) {
+          writeGene(out, gene);
+        }
+      }
+      long indexOffset = out.size();
+      out.writeInt(track.length);
+      for (int chr = 0; chr < track.length; chr++) {
+        out.writeLong(offsets[chr]);
+        out.writeInt(track[chr].length);
+      }
+      out.writeLong(indexOffset);
+    }
+  }
+
+  private static void writeGene(DataOutputStream out, GeneData gene) throws IOException {
+    writeString(out, gene.getGeneName());
+    String[] accessions = gene.getNcbiAssessionNumbers();
+    out.writeInt(accessions == null ? -1 : accessions.length);
+    if (accessions != null) {
+      for (String accession : accessions) {
+        writeString(out, accession);
+      }
+    }
+    out.writeByte(gene.getChr());
+    out.writeByte(gene.getStrand());
+    out.writeByte(gene.getMultiLoc());
+    out.writeByte((gene.isFinalized() ? FINALIZED : 0)
+                  | (gene.isCollapsedIsoforms() ? COLLAPSED_ISOFORMS : 0));
+    out.writeInt(gene.getStart());
+    out.writeInt(gene.getStop());
+    int[][] exons = gene.getExonBoundaries();
+    out.writeInt(exons == null ? -1 : exons.length);
+    if (exons != null) {
+      for (int[] exon : exons) {
+        out.writeInt(exon[0]);
+        out.writeInt(exon[1]);
+      }
+    }
+  }
+
+  /**
+   * @return every chr's genes, indexed by chr
+   */
+  static GeneData[][] load(Path file) throws IOException {
+    ByteBuffer buffer = map(file);
+    GeneData[][] track = new GeneData[buffer.getInt()][];
+    int index = buffer.position();
+    for (int chr = 0; chr < track.length; chr++) {
+      track[chr] = readChr(buffer, index, chr);
+    }
+    return track;
+  }
+
+  /**
+   * @return one chr's genes, the rest of the file isn't decoded
+   */
+  static GeneData[] load(Path file, int chr) throws IOException {
+    ByteBuffer buffer = map(file);
+    int chrs = buffer.getInt();
+    return chr < 0 || chr >= chrs ? new GeneData[0] : readChr(buffer, buffer.position(), chr);
+  }
+
+  /**
+   * @return the file mapped, positioned after the chr count at the start of the index
+   */
+  private static ByteBuffer map(Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+        throw new IllegalArgumentException(file + " isn't a GeneTrack file of this version");
+      }
+      buffer.position((int) buffer.getLong(buffer.limit() - Long.BYTES));
+      return buffer;
+    }
+  }
+
+  private static GeneData[] readChr(ByteBuffer buffer, int index, int chr) {
+    int entry = index + chr * (Long.BYTES + Integer.BYTES);
+    ByteBuffer genes = buffer.duplicate();
+    genes.position((int) buffer.getLong(entry));
+    GeneData[] track = new GeneData[buffer.getInt(entry + Long.BYTES)];
+    for (int i = 0; i < track.length; i++) {
+      track[i] = readGene(genes);
+    }
+    return track;
+  }
+
+  private static GeneData readGene(ByteBuffer buffer) {
+    String name = readString(buffer);
+    int accessionCount = buffer.getInt();
+    String[] accessions = accessionCount < 0 ? null : new String[accessionCount];
+    for (int i = 0; i < accessionCount; i++) {
+      accessions[i] = readString(buffer);
+    }
+    byte chr = buffer.get();
+    byte strand = buffer.get();
+    byte multiLoc = buffer.get();
+    byte flags = buffer.get();
+    int start = buffer.getInt();
+    int stop = buffer.getInt();
+    int exonCount = buffer.getInt();
+    int[][] exons = exonCount < 0 ? null : new int[exonCount][];
+    for (int i = 0; i < exonCount; i++) {
+      exons[i] = new int[] {buffer.getInt(), buffer.getInt()};
+    }
+    return new GeneData(name, accessions, chr, (flags & FINALIZED) != 0, strand, start, stop,
+                        exons, multiLoc, (flags & COLLAPSED_ISOFORMS) != 0);
+  }
+
+  private static void writeString(DataOutputStream out, String s) throws IOException {
+    if (s == null) {
+      out.writeInt(-1);
+      return;
+    }
+    byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(ByteBuffer buffer) {
+    int length = buffer.getInt();
+    if (length < 0) {
+      return null;
+    }
+    byte[] bytes = new byte[length];
+    buffer.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * @return a description of the first difference between the genes, or null if they match
+   */
+  static String difference(GeneData expected, GeneData actual) {
+    if (!Objects.equals(expected.getGeneName(), actual.getGeneName())) {
+      return "name " + expected.getGeneName() + " != " + actual.getGeneName();
+    }
+    if (!Arrays.equals(expected.getNcbiAssessionNumbers(), actual.getNcbiAssessionNumbers())) {
+      return "NCBI accession numbers " + Arrays.toString(expected.getNcbiAssessionNumbers())
+             + " != " + Arrays.toString(actual.getNcbiAssessionNumbers());
+    }
+    if (expected.getChr() != actual.getChr() || expected.getStart() != actual.getStart()
+        || expected.getStop() != actual.getStop() || expected.getStrand() != actual.getStrand()) {
+      return "location " + expected.getChr() + ":" + expected.getStart() + "-"
+             + expected.getStop() + " (" + expected.getStrand() + ") != " + actual.getChr() + ":"
+             + actual.getStart() + "-" + actual.getStop() + " (" + actual.getStrand() + ")";
+    }
+    if (!Arrays.deepEquals(expected.getExonBoundaries(), actual.getExonBoundaries())) {
+      return "exons " + Arrays.deepToString(expected.getExonBoundaries()) + " != "
+             + Arrays.deepToString(actual.getExonBoundaries());
+    }
+    if (expected.isFinalized() != actual.isFinalized()
+        || expected.getMultiLoc() != actual.getMultiLoc()
+        || expected.isCollapsedIsoforms() != actual.isCollapsedIsoforms()) {
+      return "flags differ";
+    }
+    return null;
+  }
+
+  public static void main(String[] args) throws IOException {
+    String usage = "\nGeneTrackFile usage:\n"
+                   + "geneTrack=... GeneTrack.bin to check (required)\n"
+                   + "geneSet=... geneset.ser written with it, to check against (required)\n";
+    Path binFile = null;
+    Path geneSetFile = null;
+    for (String arg : args) {
+      if (arg.startsWith("geneTrack=")) {
+        binFile = Path.of(arg.split("=")[1]);
+      } else if (arg.startsWith("geneSet=")) {
+        geneSetFile = Path.of(arg.split("=")[1]);
+      } else {
+        System.out.println(usage);
+        System.exit(1);
+      }
+    }
+    if (binFile == null || geneSetFile == null) {
+      System.out.println(usage);
+      System.exit(1);
+    }
+
+    GeneData[][] expected = byChr(Arrays.asList(GeneSet.load(geneSetFile.toString()).getSet()));
+    GeneData[][] actual = load(binFile);
+    int genes = 0;
+    int mismatches = 0;
+    for (int chr = 0; chr < Math.max(expected.length, actual.length); chr++) {
+      GeneData[] expectedChr = chr < expected.length ? expected[chr] : new GeneData[0];
+      GeneData[] actualChr = chr < actual.length ? actual[chr] : new GeneData[0];
+      if (expectedChr.length != actualChr.length) {
+        System.out.println("chr " + chr + ": " + expectedChr.length + " genes in " + geneSetFile
+                           + ", " + actualChr.length + " in " + binFile);
+        mismatches++;
+        continue;
+      }
+      for (int i = 0; i < expectedChr.length; i++) {
+        genes++;
+        String difference = difference(expectedChr[i], actualChr[i]);
+        if (difference != null && mismatches++ < 20) {
+          System.out.println("chr " + chr + " gene " + i + ": " + difference);
+        }
+      }
+    }
+    System.out.println(mismatches == 0 ? "All " + genes + " genes match"
+                                       : mismatches + " mismatches in " + genes + " genes");
+    System.exit(mismatches == 0 ? 0 : 1);
+  }
+}
@@ -0,0 +1,340 @@
+package org.pankratzlab;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+
+/**
+ * Writes a synthetic RefSeq style GFF3 of any size, to see how the reader scales past the files
+ * we actually have. Every gene has transcripts that share most of their exons, a CDS line per
+ * exon (sharing one ID per transcript, like NCBI's), and optionally a copy on an alt contig with
+ * the same GeneID. Genes are written one at a time, so memory use doesn't grow with the output,
+ * and the output only depends on the settings and the seed.
+ */
+public class GffGenerator {
+  public enum Compression {
+    NONE, GZIP, BGZIP
+  }
+
+  // the contigs the built in GRCh38 ContigDictionary maps to chr 1-24
+  private static final String[] MAIN_CONTIGS = {"NC_000001.11", "NC_000002.12", "NC_000003.12",
+                                                "NC_000004.12", "NC_000005.10", "NC_000006.12",
+                                                "NC_000007.14", "NC_000008.11", "NC_000009.12",
+                                                "NC_000010.11", "NC_000011.10", "NC_000012.12",
+                                                "NC_000013.11", "NC_000014.9", "NC_000015.10",
+                                                "NC_000016.10", "NC_000017.11", "NC_000018.10",
+                                                "NC_000019.10", "NC_000020.11", "NC_000021.9",
+                                                "NC_000022.11", "NC_000023.11", "NC_000024.10"};
+  private static final int EXON_SLOT = 2_000;
+  private static final int GENE_GAP = 10_000;
+
+  int contigs = MAIN_CONTIGS.length;
+  int genesPerContig = 1000;
+  int transcriptsPerGene = 2;
+  int exonsPerTranscript = 6;
+  double altFraction = 0.05;
+  double duplicateIdFraction = 0;
+  double outOfOrderFraction = 0;
+  long seed = 42;
+  Compression compression = null;
+
+  /**
+   * Number of main contigs to fill, at most 24
+   */
+  public GffGenerator contigs(int contigs) {
+    if (contigs < 1 || contigs > MAIN_CONTIGS.length) {
+      throw new IllegalArgumentException("contigs must be between 1 and " + MAIN_CONTIGS.length);
+    }
+    this.contigs = contigs;
+    return this;
+  }
+
+  public GffGenerator genesPerContig(int genesPerContig) {
+    this.genesPerContig = genesPerContig;
+    return this;
+  }
+
+  public GffGenerator transcriptsPerGene(int transcriptsPerGene) {
+    this.transcriptsPerGene = transcriptsPerGene;
+    return this;
+  }
+
+  public GffGenerator exonsPerTranscript(int exonsPerTranscript) {
+    this.exonsPerTranscript = exonsPerTranscript;
+    return this;
+  }
+
+  /**
+   * Share of all genes that are alt contig copies of a main contig gene, on contigs the built in
+   * GRCh38 {@link ContigDictionary} doesn't map to a chr
+   */
+  public GffGenerator altFraction(double altFraction) {
+    if (altFraction < 0 || altFraction >= 1) {
+      throw new IllegalArgumentException("altFraction must be at least 0 and less than 1");
+    }
+    this.altFraction = altFraction;
+    return this;
+  }
+
+  /**
+   * Share of genes and exons that reuse the ID of the previous gene or exon
+   */
+  public GffGenerator duplicateIdFraction(double duplicateIdFraction) {
+    this.duplicateIdFraction = duplicateIdFraction;
+    return this;
+  }
+
+  /**
+   * Share of genes written children first, so exons come before their transcript and transcripts
+   * before their gene
+   */
+  public GffGenerator outOfOrderFraction(double outOfOrderFraction) {
+    this.outOfOrderFraction = outOfOrderFraction;
+    return this;
+  }
+
+  public GffGenerator seed(long seed) {
+    this.seed = seed;
+    return this;
+  }
+
+  /**
+   * Defaults to BGZIP for .bgz files, GZIP for .gz files and NONE otherwise
+   */
+  public GffGenerator compression(Compression compression) {
+    this.compression = compression;
+    return this;
+  }
+
+  int geneLength() {
+    return exonsPerTranscript * EXON_SLOT;
+  }
+
+  /**
+   * Every main contig is this long, with its genes spread evenly over it
+   */
+  public int contigLength() {
+    return (genesPerContig + 1) * (geneLength() + GENE_GAP);
+  }
+
+  /**
+   * @return the number of features written
+   */
+  public long write(Path file) throws IOException {
+    Random random = new Random(seed);
+    long features = 0;
+    int geneIndex = 0;
+    int altContigIndex = 0;
+    String previousGeneId = null;
+    String previousExonId = null;
+    try (Writer out = open(file)) {
+      out.write("##gff-version 3\n");
+      for (int c = 0; c < contigs; c++) {
+        String contig = MAIN_CONTIGS[c];
+        out.write(row(contig, "RefSeq", "region", 1, contigLength(), "+",
+                      "ID=" + contig + ":1.." + contigLength() + ";Dbxref=taxon:9606"));
+        features++;
+        int firstGene = geneIndex;
+        for (int i = 0; i < genesPerContig; i++, geneIndex++) {
+          Gene gene = new Gene(geneIndex, contig, "", i);
+          if (random.nextDouble() < duplicateIdFraction && previousGeneId != null) {
+            gene.id = previousGeneId;
+          }
+          previousGeneId = gene.id;
+          boolean exonIdDuplicated = random.nextDouble() < duplicateIdFraction;
+          boolean outOfOrder = random.nextDouble() < outOfOrderFraction;
+          features += gene.write(out, outOfOrder, exonIdDuplicated ? previousExonId : null);
+          previousExonId = gene.firstExonId;
+        }
+        out.write("###\n");
+
+        // alt copies go after their contig, regenerated from the gene's seed rather than kept
+        for (int i = 0; i < genesPerContig; i++) {
+          if (!new Gene(firstGene + i, contig, "", i).hasAltCopy) {
+            continue;
+          }
+          String altContig = "NT_" + (187361 + altContigIndex++) + ".1";
+          Gene altGene = new Gene(firstGene + i, altContig, "-alt", i);
+          int length = geneLength() + 2 * GENE_GAP;
+          out.write(row(altContig, "RefSeq", "region", 1, length, "+",
+                        "ID=" + altContig + ":1.." + length + ";Dbxref=taxon:9606"));
+          features += 1 + altGene.write(out, false, null);
+          out.write("###\n");
+        }
+      }
+    }
+    return features;
+  }
+
+  private Writer open(Path file) throws IOException {
+    Compression effective = compression;
+    if (effective == null) {
+      String name = file.getFileName().toString();
+      effective = name.endsWith(".bgz") ? Compression.BGZIP
+                                        : name.endsWith(".gz") ? Compression.GZIP
+                                                               : Compression.NONE;
+    }
+    OutputStream stream;
+    switch (effective) {
+      case GZIP:
+        stream = new GZIPOutputStream(Files.newOutputStream(file), 1 << 16);
+        break;
+      case BGZIP:
+        stream = new BlockCompressedOutputStream(file.toFile());
+        break;
+      default:
+        stream = Files.newOutputStream(file);
+    }
+    return new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8), 1 << 16);
+  }
+
+  private static String row(String contig, String source, String type, int start, int end,
+                            String strand, String attributes) {
+    return contig + "\t" + source + "\t" + type + "\t" + start + "\t" + end + "\t.\t" + strand
+           + "\t.\t" + attributes + "\n";
+  }
+
+  /**
+   * One gene and everything below it. Whether it has an alt copy, positions and exon lengths all
+   * come from a Random seeded with the gene index, so the alt copy of a gene has the same
+   * structure as the original.
+   */
+  private class Gene {
+    final int index;
+    final String contig;
+    final String suffix;
+    final int start;
+    final Random random;
+    final boolean hasAltCopy;
+    String id;
+    String firstExonId;
+
+    Gene(int index, String contig, String suffix, int positionOnContig) {
+      this.index = index;
+      this.contig = contig;
+      this.suffix = suffix;
+      this.start = suffix.isEmpty() ? (positionOnContig + 1) * (geneLength() + GENE_GAP)
+                                    : GENE_GAP;
+      this.id = "gene-G" + index + suffix;
+      this.random = new Random(seed ^ index * 0x9E3779B97F4A7C15L);
+      this.hasAltCopy = random.nextDouble() < altFraction / (1 - altFraction);
+    }
+
+    /**
+     * @param exonIdOverride if not null, used as the ID of the first exon
+     * @return the number of features written
+     */
+    long write(Writer out, boolean childrenFirst, String exonIdOverride) throws IOException {
+      String strand = index % 2 == 0 ? "+" : "-";
+      String dbxref = "Dbxref=GeneID:" + (100000 + index);
+      int end = start + geneLength() - 1;
+      StringBuilder transcripts = new StringBuilder();
+      StringBuilder exons = new StringBuilder();
+      long features = 1;
+      for (int t = 0; t < transcriptsPerGene; t++) {
+        String rnaId = "rna-G" + index + suffix + "-" + t;
+        String attributes = "ID=" + rnaId + ";Parent=" + id + ";" + dbxref + ";Name=NM_" + index
+                            + "." + t;
+        transcripts.append(row(contig, "BestRefSeq", "mRNA", start, end, strand, attributes));
+        features++;
+        for (int e = 0; e < exonsPerTranscript; e++) {
+          // transcripts past the first each skip one exon, so most exons are shared
+          if (t > 0 && e == t % exonsPerTranscript) {
+            continue;
+          }
+          int exonStart = start + e * EXON_SLOT + random.nextInt(EXON_SLOT / 4);
+          int exonEnd = Math.min(end, exonStart + 100 + random.nextInt(EXON_SLOT / 2));
+          String exonId = "exon-" + rnaId + "-" + e;
+          if (firstExonId == null) {
+            firstExonId = exonId;
+            if (exonIdOverride != null) {
+              exonId = exonIdOverride;
+            }
+          }
+          exons.append(row(contig, "BestRefSeq", "exon", exonStart, exonEnd, strand,
+                           "ID=" + exonId + ";Parent=" + rnaId + ";" + dbxref));
+          exons.append(row(contig, "BestRefSeq", "CDS", exonStart, exonEnd, strand,
+                           "ID=cds-" + rnaId + ";Parent=" + rnaId + ";" + dbxref));
+          features += 2;
+        }
+      }
+      String attributes = "ID=" + id + ";" + dbxref + ";Name=G" + index
+                          + ";gene_biotype=protein_coding";
+      String gene = row(contig, "BestRefSeq", "gene", start, end, strand, attributes);
+      if (childrenFirst) {
+        out.append(exons).append(transcripts).append(gene);
+      } else {
+        out.append(gene).append(transcripts).append(exons);
+      }
+      return features;
+    }
+  }
+
+  public static void main(String[] args) {
+    // @formatter:off
+    String usage = "\n" + "GffGenerator usage: \n"
+                   + "out=... file to write, .gz is gzipped and .bgz bgzipped (required)\n"
+                   + "contigs=24 number of main contigs to fill, at most 24 (optional)\n"
+                   + "genesPerContig=1000 (optional)\n"
+                   + "transcripts=2 transcripts per gene (optional)\n"
+                   + "exons=6 exons per transcript (optional)\n"
+                   + "altFraction=0.05 share of genes that are alt contig copies (optional)\n"
+                   + "duplicateIds=0 share of genes and exons reusing the previous ID (optional)\n"
+                   + "outOfOrder=0 share of genes written children first (optional)\n"
+                   + "seed=42 (optional)\n"
+                   + "-bgzip provide this flag to bgzip the output whatever its name\n"
+                   + "\n";
+    // @formatter:on
+
+    Path out = null;
+    GffGenerator generator = new GffGenerator();
+    for (String arg : args) {
+      String value = arg.substring(arg.indexOf('=') + 1);
+      if (arg.startsWith("out=")) {
+        out = Path.of(value);
+      } else if (arg.startsWith("contigs=")) {
+        generator.contigs(Integer.parseInt(value));
+      } else if (arg.startsWith("genesPerContig=")) {
+        generator.genesPerContig(Integer.parseInt(value));
+      } else if (arg.startsWith("transcripts=")) {
+        generator.transcriptsPerGene(Integer.parseInt(value));
+      } else if (arg.startsWith("exons=")) {
+        generator.exonsPerTranscript(Integer.parseInt(value));
+      } else if (arg.startsWith("altFraction=")) {
+        generator.altFraction(Double.parseDouble(value));
+      } else if (arg.startsWith("duplicateIds=")) {
+        generator.duplicateIdFraction(Double.parseDouble(value));
+      } else if (arg.startsWith("outOfOrder=")) {
+        generator.outOfOrderFraction(Double.parseDouble(value));
+      } else if (arg.startsWith("seed=")) {
+        generator.seed(Long.parseLong(value));
+      } else if (arg.equals("-bgzip")) {
+        generator.compression(Compression.BGZIP);
+      } else {
+        System.out.println(usage);
+        System.exit(1);
+      }
+    }
+    if (out == null) {
+      System.err.println("No output file provided!");
+      System.out.println(usage);
+      System.exit(1);
+    }
+
+    try {
+      long features = generator.write(out);
+      System.out.println("Wrote " + features + " features to " + out);
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+}
@@ -0,0 +1,291 @@
+package org.pankratzlab;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Overlap and nearest gene queries over genes, exons and introns on the main contigs. Every
+ * chromosome is an implicit augmented interval tree (the layout from Heng Li's cgranges): the
+ * intervals are sorted by start in flat arrays, the array itself is the in-order layout of a
+ * balanced binary tree, and each node stores the max end of its subtree, so a query is a
+ * logarithmic descent plus the hits.
+ */
+public class IntervalIndex {
+  public static final byte GENE = 0;
+  public static final byte EXON = 1;
+  public static final byte INTRON = 2;
+  private static final String[] KIND_NAMES = {"gene", "exon", "intron"};
+
+  // below this many intervals a linear scan beats the tree
+  private static final int LINEAR_SCAN_SIZE = 16;
+
+  private final ChrIndex[] chrIndices = new ChrIndex[Byte.MAX_VALUE + 1];
+
+  /**
+   * @param genes genes off the main contigs have no chr and are skipped
+   */
+  public IntervalIndex(Collection<BasicFeature> genes, boolean includeExons,
+                       boolean includeIntrons) {
+    List<List<Entry>> entriesByChr = new ArrayList<>();
+    for (int i = 0; i < chrIndices.length; i++) {
+      entriesByChr.add(new ArrayList<>());
+    }
+    for (BasicFeature gene : genes) {
+      byte chr = gene.getChr();
+      if (chr <= 0) {
+        continue;
+      }
+      List<Entry> entries = entriesByChr.get(chr);
+      entries.add(new Entry(gene, gene, GENE));
+      if (includeExons) {
+        gene.getSortedDistinctExons().forEach(exon -> entries.add(new Entry(exon, gene, EXON)));
+      }
+      if (includeIntrons) {
+        gene.getSortedDistinctIntrons()
+            .forEach(intron -> entries.add(new Entry(intron, gene, INTRON)));
+      }
+    }
+    for (int chr = 0; chr < chrIndices.length; chr++) {
+      if (!entriesByChr.get(chr).isEmpty()) {
+        chrIndices[chr] = new ChrIndex(entriesByChr.get(chr));
+      }
+    }
+  }
+
+  public static class Hit {
+    public final BasicFeature feature;
+    // the gene the feature belongs to, or the feature itself for genes
+    public final BasicFeature gene;
+    public final byte kind;
+
+    private Hit(BasicFeature feature, BasicFeature gene, byte kind) {
+      this.feature = feature;
+      this.gene = gene;
+      this.kind = kind;
+    }
+
+    public String getKindName() {
+      return KIND_NAMES[kind];
+    }
+  }
+
+  private static class Entry {
+    final BasicFeature feature;
+    final BasicFeature gene;
+    final byte kind;
+
+    Entry(BasicFeature feature, BasicFeature gene, byte kind) {
+      this.feature = feature;
+      this.gene = gene;
+      this.kind = kind;
+    }
+  }
+
+  /**
+   * @param start 1-based, inclusive
+   * @param end 1-based, inclusive
+   * @return every indexed feature overlapping the region, in order of start
+   */
+  public List<Hit> overlapping(int chr, int start, int end) {
+    List<Hit> hits = new ArrayList<>();
+    if (chr > 0 && chr < chrIndices.length && chrIndices[chr] != null) {
+      chrIndices[chr].overlapping(start, end, hits);
+    }
+    return hits;
+  }
+
+  /**
+   * @return the gene closest to the position, a gene covering it if there is one, or null if there
+   *         are no genes on this chr
+   */
+  public BasicFeature nearestGene(int chr, int position) {
+    if (chr <= 0 || chr >= chrIndices.length || chrIndices[chr] == null) {
+      return null;
+    }
+    return chrIndices[chr].nearestGene(position);
+  }
+
+  /**
+   * Parses "chr7:55,000,000-55,300,000", "7:55000000-55300000" or a tab separated "chr start end"
+   * line into {chr, start, end}.
+   */
+  public static int[] parseRegion(String region) {
+    String[] parts = region.contains("\t") ? region.split("\t")
+                                           : region.replace(",", "").split("[:-]");
+    if (parts.length < 3) {
+      throw new IllegalArgumentException("Can't parse region: " + region);
+    }
+    return new int[] {parseChr(parts[0].trim()), Integer.parseInt(parts[1].trim()),
+                      Integer.parseInt(parts[2].trim())};
+  }
+
+  /**
+   * @return the chr of a molecule of the active {@link ContigDictionary}, see
+   *         {@link ContigDictionary#chr(String)}
+   */
+  public static int parseChr(String chr) {
+    return ContigDictionary.active().chr(chr);
+  }
+
+
+  private static class ChrIndex {
+    // intervals are stored half open, [starts[i], ends[i]), sorted by start
+    final int[] starts;
+    final int[] ends;
+    final int[] maxEnds;
+    final Entry[] entries;
+    final int rootLevel;
+
+    // genes alone, sorted by start, for nearest gene lookups
+    final int[] geneStarts;
+    final BasicFeature[] genes;
+    // index of the gene with the largest end among genes[0..i]
+    final int[] furthestGeneUpTo;
+
+    ChrIndex(List<Entry> unsorted) {
+      List<Entry> sorted = new ArrayList<>(unsorted);
+      sorted.sort((a, b) -> Integer.compare(a.feature.start, b.feature.start));
+      int n = sorted.size();
+      starts = new int[n];
+      ends = new int[n];
+      maxEnds = new int[n];
+      entries = sorted.toArray(new Entry[0]);
+      int geneCount = 0;
+      for (int i = 0; i < n; i++) {
+        starts[i] = entries[i].feature.start;
+        ends[i] = entries[i].feature.end + 1;
+        if (entries[i].kind == GENE) {
+          geneCount++;
+        }
+      }
+      rootLevel = buildMaxEnds();
+
+      geneStarts = new int[geneCount];
+      genes = new BasicFeature[geneCount];
+      furthestGeneUpTo = new int[geneCount];
+      int g = 0;
+      for (Entry entry : entries) {
+        if (entry.kind == GENE) {
+          geneStarts[g] = entry.feature.start;
+          genes[g] = entry.feature;
+          furthestGeneUpTo[g] = g > 0 && genes[furthestGeneUpTo[g - 1]].end >= entry.feature.end
+                                ? furthestGeneUpTo[g - 1]
+                                : g;
+          g++;
+        }
+      }
+    }
+
+    /**
+     * Fills in maxEnds bottom up, level by level. Nodes at level k sit at indices whose lowest k
+     * bits are 1; the tree may be incomplete on the right, which is what last and lastIndex track.
+     *
+     * @return the level of the root
+     */
+    private int buildMaxEnds() {
+      int n = starts.length;
+      int lastIndex = 0;
+      int last = 0;
+      for (int i = 0; i < n; i += 2) {
+        lastIndex = i;
+        last = maxEnds[i] = ends[i];
+      }
+      int k;
+      for (k = 1; 1L << k <= n; k++) {
+        int x = 1 << (k - 1);
+        int first = (x << 1) - 1;
+        int step = x << 2;
+        for (int i = first; i < n; i += step) {
+          int leftMax = maxEnds[i - x];
+          int rightMax = i + x < n ? maxEnds[i + x] : last;
+          maxEnds[i] = Math.max(ends[i], Math.max(leftMax, rightMax));
+        }
+        lastIndex = (lastIndex >> k & 1) != 0 ? lastIndex - x : lastIndex + x;
+        if (lastIndex < n && maxEnds[lastIndex] > last) {
+          last = maxEnds[lastIndex];
+        }
+      }
+      return k - 1;
+    }
+
+    void overlapping(int queryStart, int queryEnd, List<Hit> hits) {
+      int n = starts.length;
+      int start = queryStart;
+      int end = queryEnd + 1;
+      if (n < LINEAR_SCAN_SIZE) {
+        for (int i = 0; i < n && starts[i] < end; i++) {
+          addIfOverlapping(i, start, hits);
+        }
+        return;
+      }
+      // explicit stack of (node, level, left subtree done) for a top down traversal
+      int[] nodes = new int[64];
+      int[] levels = new int[64];
+      boolean[] leftDone = new boolean[64];
+      int top = 0;
+      nodes[top] = (1 << rootLevel) - 1;
+      levels[top] = rootLevel;
+      leftDone[top++] = false;
+      while (top > 0) {
+        top--;
+        int node = nodes[top];
+        int level = levels[top];
+        if (level <= 3) {
+          // small subtree, just scan it
+          int from = node >> level << level;
+          int to = Math.min(n, from + (1 << (level + 1)) - 1);
+          for (int i = from; i < to && starts[i] < end; i++) {
+            addIfOverlapping(i, start, hits);
+          }
+        } else if (!leftDone[top]) {
+          int left = node - (1 << (level - 1));
+          leftDone[top++] = true;
+          // the left child may be past the end of an incomplete tree
+          if (left >= n || maxEnds[left] > start) {
+            nodes[top] = left;
+            levels[top] = level - 1;
+            leftDone[top++] = false;
+          }
+        } else if (node < n && starts[node] < end) {
+          addIfOverlapping(node, start, hits);
+          nodes[top] = node + (1 << (level - 1));
+          levels[top] = level - 1;
+          leftDone[top++] = false;
+        }
+      }
+    }
+
+    private void addIfOverlapping(int i, int start, List<Hit> hits) {
+      if (start < ends[i]) {
+        hits.add(new Hit(entries[i].feature, entries[i].gene, entries[i].kind));
+      }
+    }
+
+    BasicFeature nearestGene(int position) {
+      if (genes.length == 0) {
+        return null;
+      }
+      // last gene starting at or before the position
+      int lo = 0;
+      int hi = genes.length;
+      while (lo < hi) {
+        int mid = (lo + hi) >>> 1;
+        if (geneStarts[mid] <= position) {
+          lo = mid + 1;
+        } else {
+          hi = mid;
+        }
+      }
+      BasicFeature before = lo > 0 ? genes[furthestGeneUpTo[lo - 1]] : null;
+      BasicFeature after = lo < genes.length ? genes[lo] : null;
+      if (before == null) {
+        return after;
+      }
+      if (after == null || before.end >= position) {
+        return before;
+      }
+      return position - before.end <= after.start - position ? before : after;
+    }
+  }
+}
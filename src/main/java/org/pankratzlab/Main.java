@@ -1,33 +1,110 @@
 package org.pankratzlab;
 
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 // https://ftp.ncbi.nlm.nih.gov//genomes/all/annotation_releases/9606/109.20210514/GCF_000001405.39_GRCh38.p13/GCF_000001405.39_GRCh38.p13_genomic.gff.gz
 public class Main {
   public static void main(String[] args) {
     // @formatter:off
     String usage = "\n" + "GeneInfoReaderUsage: \n"
-                   + "inputFile=... specify gff3 input file (required)\n"
+                   + "inputFile=... specify gff3 input file, plain or gzipped, or - to read "
+                   + "it from stdin (required, unless a manifest is given)\n"
                    + "out=/tmp/ specify an output directory (optional)\n"
+                   + "assembly=... NCBI assembly report (*_assembly_report.txt) or tab separated "
+                   + "file of contig and chr, for which contigs are which chromosome. GRCh38's "
+                   + "RefSeq accessions are built in (optional)\n"
+                   + "manifest=... process every input listed in this file, one input file and "
+                   + "output directory per line separated by a tab, several at once. The other "
+                   + "options apply to every input, and a batch report goes to out=\n"
+                   + "previous=... previous release of the input, as a GFF3 file or a snapshot "
+                   + "written with -snapshot, to write releaseDelta.tsv of the gene groups added, "
+                   + "removed, moved or changed since, with the requested bed and xln files only "
+                   + "for the groups that are new or different (exons.patch.bed, "
+                   + "genes38.patch.xln...). The GeneTrack is written whole if anything changed, "
+                   + "QC output is skipped (optional)\n"
+                   + "memoryBudget=MB heap the inputs processed at once in batch mode, or the "
+                   + "partitions loaded at once with -outOfCore, may use between them (optional, "
+                   + "defaults to three quarters of the maximum heap)\n"
+                   + "query=chr:start-end report the genes, exons and introns overlapping a "
+                   + "region (optional, can be repeated)\n"
+                   + "queryFile=... file of regions to query, one chr:start-end or tab separated "
+                   + "chr start end per line (optional)\n"
+                   + "serve=PORT keep running and serve gene, region, bed and xln lookups on "
+                   + "127.0.0.1:PORT instead of writing files (optional)\n"
+                   + "threads=N number of threads used to parse the input, to run independent "
+                   + "stages at once and to write output files (optional, defaults to the number "
+                   + "of available processors)\n"
+                   + "-fastParse provide this flag to parse the input with the built in reader "
+                   + "instead of htsjdk\n"
+                   + "-compact provide this flag to hold the parsed annotation in compact arrays "
+                   + "and only build objects for genes and exons. Ignored with -stream\n"
+                   + "-snapshot provide this flag to reuse the parsed annotation from a snapshot "
+                   + "in the output directory, or write one if there is no valid snapshot\n"
+                   + "-metrics provide this flag to write the time, CPU time, items, allocations and "
+                   + "peak heap of each stage to runMetrics.json and runMetrics.tsv in the output "
+                   + "directory\n"
                    + "-noqc provide this flag to suppress QC output\n"
                    + "-geneTrack provide this flag to generate a serialized GeneTrack for "
                    + "Genvisis\n"
+                   + "-geneTrackBin provide this flag to generate GeneTrack.bin, the GeneTrack's "
+                   + "genes in a compact binary file written straight from memory, much faster "
+                   + "to write and load than the serialized one\n"
                    + "-genesXln provide this flag to generate an xln file of genes\n"
                    + "-bedExons provide this flag to generate a bed file of exons\n"
                    + "-bedIntrons provide this flag to generate a bed file of introns\n"
                    + "-bedAll provide this flag to generate three bed files. One of exons, one of "
-                   + "introns, and one containing both. \n" + "\n";
+                   + "introns, and one containing both. \n"
+                   + "-bgzip provide this flag to write the bed files block gzipped, sorted by "
+                   + "position and tabix indexed, as .bed.gz and .bed.gz.tbi. Ignored with "
+                   + "-stream\n"
+                   + "-arrow provide this flag to write genes.arrow, exons.arrow and "
+                   + "introns.arrow, Arrow IPC files of the genes, exons and introns with a record "
+                   + "batch per chr, to load without parsing. Ignored with -stream\n"
+                   + "-stream provide this flag to write genes as they are parsed instead of "
+                   + "loading the whole file. Output is in file order and QC output is skipped. "
+                   + "A gene's features have to come before the next gene or contig. Always read "
+                   + "in file order as with -fastParse\n"
+                   + "-outOfCore provide this flag to spill the input to a partition file per "
+                   + "contig in the output directory and load one partition at a time, for inputs "
+                   + "bigger than the heap. Output is the same, QC output is skipped\n"
+                   + "\n";
     // @formatter:on
 
     Path inputFile = null;
     Path outputDir = Path.of("/tmp");
+    int threads = Runtime.getRuntime().availableProcessors();
     boolean qc = true;
     boolean geneTrack = false;
+    boolean geneTrackBin = false;
+    boolean arrow = false;
     boolean genesXln = false;
     boolean bedExons = false;
     boolean bedIntrons = false;
     boolean bedAll = false;
+    boolean bgzip = false;
+    boolean stream = false;
+    boolean outOfCore = false;
+    boolean fastParse = false;
+    boolean compact = false;
+    boolean snapshot = false;
+    boolean metricsReport = false;
+    List<String> queries = new ArrayList<>();
+    int servePort = -1;
+    Path manifest = null;
+    Path previous = null;
+    Path assembly = null;
+    long memoryBudget = Runtime.getRuntime().maxMemory() / 4 * 3;
 
     for (String arg : args) {
       if (arg.startsWith("inputFile=")) {
@@ -38,68 +115,421 @@ public class Main {
         qc = false;
       } else if (arg.equals("-geneTrack")) {
         geneTrack = true;
+      } else if (arg.equals("-geneTrackBin")) {
+        geneTrackBin = true;
+      } else if (arg.equals("-arrow")) {
+        arrow = true;
       } else if (arg.equals("-genesXln")) {
         genesXln = true;
       } else if (arg.equals("-bedExons")) {
         bedExons = true;
       } else if (arg.equals("-bedIntrons")) {
         bedIntrons = true;
+      } else if (arg.startsWith("query=")) {
+        queries.add(arg.substring("query=".length()));
+      } else if (arg.startsWith("queryFile=")) {
+        try {
+          Files.lines(Path.of(arg.split("=")[1])).filter(line -> !line.isBlank())
+               .forEach(queries::add);
+        } catch (IOException e) {
+          e.printStackTrace();
+          System.exit(1);
+        }
+      } else if (arg.startsWith("manifest=")) {
+        manifest = Path.of(arg.split("=")[1]);
+      } else if (arg.startsWith("assembly=")) {
+        assembly = Path.of(arg.split("=")[1]);
+      } else if (arg.startsWith("previous=")) {
+        previous = Path.of(arg.split("=")[1]);
+      } else if (arg.startsWith("memoryBudget=")) {
+        memoryBudget = Long.parseLong(arg.split("=")[1]) << 20;
+      } else if (arg.startsWith("serve=")) {
+        servePort = Integer.parseInt(arg.split("=")[1]);
+      } else if (arg.startsWith("threads=")) {
+        threads = Integer.parseInt(arg.split("=")[1]);
       } else if (arg.startsWith("out=")) {
         outputDir = Path.of(arg.replace("out=", ""));
       } else if (arg.equals("-bedAll")) {
         bedAll = true;
+      } else if (arg.equals("-bgzip")) {
+        bgzip = true;
+      } else if (arg.equals("-stream")) {
+        stream = true;
+      } else if (arg.equals("-outOfCore")) {
+        outOfCore = true;
+      } else if (arg.equals("-fastParse")) {
+        fastParse = true;
+      } else if (arg.equals("-compact")) {
+        compact = true;
+      } else if (arg.equals("-snapshot")) {
+        snapshot = true;
+      } else if (arg.equals("-metrics")) {
+        metricsReport = true;
       } else {
         System.out.println(usage);
         System.exit(1);
       }
     }
-    if (inputFile == null) {
+    if (inputFile == null && manifest == null) {
       System.err.println("No input file provided!");
       System.out.println(usage);
       System.exit(1);
     }
 
-    if (!(geneTrack || genesXln || bedIntrons || bedExons || bedAll)) {
+    if (assembly != null) {
+      try {
+        ContigDictionary.use(ContigDictionary.load(assembly));
+      } catch (IOException e) {
+        e.printStackTrace();
+        System.exit(1);
+      }
+    }
+    RunMetrics.progress("Mapping contigs to chromosomes with " + ContigDictionary.active() + ", "
+                        + ContigDictionary.active().size() + " contig names");
+
+    boolean serve = servePort >= 0;
+    if (serve && manifest != null) {
+      System.err.println("A batch can't be served, run one input at a time with serve=");
+      System.exit(1);
+    }
+    boolean diff = previous != null;
+    if (diff && (serve || stream || manifest != null)) {
+      System.err.println("previous= can't be combined with serve=, -stream or manifest=");
+      System.exit(1);
+    }
+    if (outOfCore && (serve || diff || stream || manifest != null || !queries.isEmpty())) {
+      System.err.println("-outOfCore can't be combined with serve=, previous=, -stream, manifest= "
+                         + "or queries");
+      System.exit(1);
+    }
+    if (stream && arrow) {
+      RunMetrics.progress("Arrow files are written a chr at a time from the sorted genes, -arrow is"
+                          + " ignored with -stream");
+    }
+    if (outOfCore && qc) {
+      RunMetrics.progress("QC output needs every feature at once, it is skipped with -outOfCore");
+      qc = false;
+    }
+    OutputOptions outputs = new OutputOptions().qc(qc).geneTrack(geneTrack)
+                                               .geneTrackBinary(geneTrackBin).genesXln(genesXln)
+                                               .bedExons(bedExons).bedIntrons(bedIntrons)
+                                               .bedAll(bedAll).bgzip(bgzip).arrow(arrow)
+                                               .queries(queries).threads(threads);
+    if (!(outputs.any() || serve || diff)) {
       System.out.println("You haven't asked for any output...");
       System.out.println(usage);
       System.exit(0);
     }
 
-    Aggregator aggregator = new Aggregator(inputFile, outputDir);
+    // a diff needs every grouping's exons for its fingerprint, but no QC
+    FeatureProjection projection = FeatureProjection.forOutputs(qc && !stream && !serve && !diff,
+                                                                outputs.anyGeneTrack(), genesXln,
+                                                                outputs.anyBed() || arrow
+                                                                    || !queries.isEmpty() || serve
+                                                                    || diff);
+    ParseOptions options = new ParseOptions().projection(projection).fastParse(fastParse)
+                                             .threads(threads);
+    if (snapshot && inputFile != null && PipelinedGffReader.isStdin(inputFile.toString())) {
+      RunMetrics.progress("There is no input file to check a snapshot against when reading stdin,"
+                          + " -snapshot is ignored");
+      snapshot = false;
+    }
+    if (!stream && !outOfCore) {
+      options.compact(compact).snapshot(snapshot);
+    }
 
-    aggregator.findGenesAndExons();
-    if (bedIntrons || bedAll) {
-      aggregator.findGenesAndIntrons();
+    if (manifest != null) {
+      try {
+        BatchRunner batch = new BatchRunner(options, outputs, stream, threads, memoryBudget);
+        batch.run(BatchRunner.readManifest(manifest));
+        batch.writeReport(outputDir);
+      } catch (IOException e) {
+        e.printStackTrace();
+        System.exit(1);
+      }
+      RunMetrics.progress("done");
+      return;
     }
-    aggregator.computeXRefMap();
 
-    if (bedAll) {
-      aggregator.writeBedFile(false, true);
-      aggregator.writeBedFile(true, false);
-      aggregator.writeBedFile(true, true);
-    } else if (bedExons || bedIntrons) {
-      aggregator.writeBedFile(bedExons, bedIntrons);
+    RunMetrics metrics = metricsReport ? RunMetrics.enabled() : RunMetrics.DISABLED;
+    if (diff) {
+      try {
+        diff(inputFile, previous, outputDir, options, outputs, metrics);
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+      writeMetrics(metrics, outputDir);
+      RunMetrics.progress("done");
+      return;
+    }
+    if (stream) {
+      stream(inputFile, outputDir, options, outputs, metrics);
+      writeMetrics(metrics, outputDir);
+      RunMetrics.progress("done");
+      return;
     }
 
-    if (geneTrack) {
-      aggregator.writeSerializedGeneTrack();
+    Aggregator aggregator;
+    if (outOfCore) {
+      try {
+        aggregator = OutOfCoreLoader.load(inputFile, outputDir, options, memoryBudget, metrics);
+      } catch (IOException e) {
+        e.printStackTrace();
+        System.exit(1);
+        return;
+      }
+    } else {
+      aggregator = parse(inputFile, outputDir, options, metrics);
     }
 
-    if (genesXln) {
+    if (serve) {
+      // see AnnotationServer, only read when the first server is created
+      System.setProperty("sun.net.httpserver.nodelay", "true");
       try {
-        aggregator.writeGenesXlnFile();
+        AnnotationServer server;
+        try (RunMetrics.Stage stage = metrics.stage("prepareServer")) {
+          server = new AnnotationServer(aggregator, servePort, threads);
+          stage.items(aggregator.genes.size());
+        }
+        writeMetrics(metrics, outputDir);
+        Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
+        server.start();
       } catch (IOException e) {
         e.printStackTrace();
+        System.exit(1);
       }
+      return;
+    }
+
+    try {
+      writeOutputs(aggregator, outputs, metrics);
+    } catch (IOException e) {
+      e.printStackTrace();
     }
-    if (qc) {
+    writeMetrics(metrics, outputDir);
+    RunMetrics.progress("done");
+  }
+
+  /**
+   * @return the number of features streamed
+   */
+  static int stream(Path inputFile, Path outputDir, ParseOptions options, OutputOptions outputs,
+                    RunMetrics metrics) {
+    try (RunMetrics.Stage stage = metrics.stage("stream");
+         StreamingGeneWriter writer = new StreamingGeneWriter(outputDir, outputs.bedExons,
+                                                              outputs.bedIntrons, outputs.bedAll,
+                                                              outputs.genesXln,
+                                                              outputs.geneTrack,
+                                                              outputs.geneTrackBinary)) {
+      int featureCount = new Aggregator(inputFile, outputDir, options, writer).featureCount;
+      stage.items(featureCount);
+      return featureCount;
+    }
+  }
+
+  static Aggregator parse(Path inputFile, Path outputDir, ParseOptions options,
+                          RunMetrics metrics) {
+    try (RunMetrics.Stage stage = metrics.stage("parse")) {
+      Aggregator aggregator = new Aggregator(inputFile, outputDir, options, null);
+      stage.items(aggregator.featureCount);
+      return aggregator;
+    }
+  }
+
+  /**
+   * Derives and groups the genes, then answers the queries and writes every file asked for. Only
+   * the stages the outputs need are run, each as soon as what it needs is ready, see
+   * {@link StagePlanner}: genes.xln is written while the introns are still being found, and the
+   * output files are written alongside each other.
+   */
+  static void writeOutputs(Aggregator aggregator, OutputOptions outputs,
+                           RunMetrics metrics) throws IOException {
+    StagePlanner planner = new StagePlanner(outputs.threads, metrics);
+    planner.stage("deriveAndGroup", () -> {
+      aggregator.deriveAndGroupByChr(false);
+      return aggregator.genes.size();
+    });
+    planner.stage("deriveExonModels", () -> {
+      aggregator.deriveExonModels();
+      return aggregator.genes.size();
+    }, "deriveAndGroup");
+    planner.stage("sortGroupings", () -> aggregator.getSortedGeneGroupings().size(),
+                  "deriveAndGroup");
+    planner.stage("mapGroupings", () -> aggregator.getGeneGroupingsByXRefGeneId().size(),
+                  "deriveAndGroup");
+    planner.stage("deriveGeneData", () -> {
+      aggregator.deriveGeneData();
+      return aggregator.genes.size();
+    }, "mapGroupings", "deriveExonModels");
+    planner.stage("queryRegions", () -> {
       try {
-        aggregator.writeQcOutput();
+        aggregator.writeRegionQueries(outputs.queries);
       } catch (IOException e) {
         e.printStackTrace();
       }
+      return outputs.queries.size();
+    }, "deriveExonModels");
+    planner.stage("writeGenesXln", () -> {
+      try (OutputWriters writers = new OutputWriters(outputs.threads, metrics)) {
+        aggregator.submitSortedOutputs(writers, false, false, false, true, false);
+        writers.awaitAll();
+      }
+      return aggregator.genes.size();
+    }, "sortGroupings");
+    planner.stage("writeBeds", () -> {
+      try (OutputWriters writers = new OutputWriters(outputs.threads, metrics)) {
+        aggregator.submitSortedOutputs(writers, outputs.exonsBed(), outputs.intronsBed(),
+                                       outputs.exonsIntronsBed(), false, outputs.bgzip);
+        writers.awaitAll();
+      }
+      return aggregator.genes.size();
+    }, "sortGroupings", "deriveExonModels");
+    planner.stage("writeGeneTrack", () -> {
+      try (OutputWriters writers = new OutputWriters(1, metrics)) {
+        aggregator.submitSerializedGeneTrack(writers);
+        writers.awaitAll();
+      }
+      return aggregator.genes.size();
+    }, "deriveGeneData");
+    planner.stage("writeGeneTrackBin", () -> {
+      try (OutputWriters writers = new OutputWriters(1, metrics)) {
+        aggregator.submitGeneTrackFile(writers);
+        writers.awaitAll();
+      }
+      return aggregator.genes.size();
+    }, "deriveGeneData");
+    planner.stage("writeArrow", () -> {
+      try (OutputWriters writers = new OutputWriters(outputs.threads, metrics)) {
+        aggregator.submitArrowOutputs(writers);
+        writers.awaitAll();
+      }
+      return aggregator.genes.size();
+    }, "sortGroupings", "deriveExonModels");
+    planner.stage("writeQc", () -> {
+      try (OutputWriters writers = new OutputWriters(outputs.threads, metrics)) {
+        aggregator.submitQcOutput(writers);
+        writers.awaitAll();
+      }
+      return aggregator.genes.size();
+    }, "mapGroupings");
+
+    if (!outputs.queries.isEmpty()) {
+      planner.require("queryRegions");
+    }
+    if (outputs.genesXln) {
+      planner.require("writeGenesXln");
+    }
+    if (outputs.anyBed()) {
+      planner.require("writeBeds");
+    }
+    if (outputs.geneTrack) {
+      planner.require("writeGeneTrack");
+    }
+    if (outputs.geneTrackBinary) {
+      planner.require("writeGeneTrackBin");
     }
+    if (outputs.arrow) {
+      planner.require("writeArrow");
+    }
+    if (outputs.qc) {
+      planner.require("writeQc");
+    }
+    planner.run();
+  }
 
-    System.out.println("done");
+  /**
+   * Compares the input with a previous release of it, see {@link ReleaseDiff}, and writes the
+   * delta and the outputs of the groupings that are new or different. The previous release is
+   * loaded and fingerprinted while the input is parsed.
+   */
+  static void diff(Path inputFile, Path previousFile, Path outputDir, ParseOptions options,
+                   OutputOptions outputs, RunMetrics metrics) throws IOException {
+    FeatureProjection genesAndExons = FeatureProjection.forOutputs(false, true, false, true);
+    ParseOptions previousOptions = new ParseOptions().projection(genesAndExons)
+                                                     .fastParse(options.fastParse)
+                                                     .threads(options.threads);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    Future<Map<String, ReleaseDiff.Fingerprint>> previousFingerprints;
+    previousFingerprints = executor.submit(() -> fingerprintRelease(previousFile, outputDir,
+                                                                    previousOptions));
+    executor.shutdown();
+
+    Aggregator aggregator = parse(inputFile, outputDir, options, metrics);
+    try (RunMetrics.Stage stage = metrics.stage("deriveAndGroup")) {
+      aggregator.deriveAndGroupByChr(false);
+      stage.items(aggregator.genes.size());
+    }
+    ReleaseDiff releaseDiff;
+    try (RunMetrics.Stage stage = metrics.stage("fingerprint")) {
+      Map<String, ReleaseDiff.Fingerprint> current;
+      current = ReleaseDiff.fingerprints(aggregator.getGeneGroupingsByXRefGeneId().values());
+      releaseDiff = new ReleaseDiff(previousFingerprints.get(), current);
+      stage.items(current.size());
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      throw cause instanceof IOException ? (IOException) cause
+                                         : new IOException("Failed to load " + previousFile, cause);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while loading " + previousFile, e);
+    }
+    RunMetrics.progress("Changes since " + previousFile + ": " + releaseDiff.counts());
+
+    Set<String> changed = releaseDiff.currentChanged();
+    try (RunMetrics.Stage stage = metrics.stage("writeDelta");
+         OutputWriters writers = new OutputWriters(outputs.threads, metrics)) {
+      Path deltaFile = outputDir.resolve("releaseDelta.tsv");
+      writers.submit(deltaFile.getFileName().toString(), () -> releaseDiff.writeDelta(deltaFile),
+                     deltaFile);
+      aggregator.submitPatchOutputs(writers, changed, outputs.exonsBed(), outputs.intronsBed(),
+                                    outputs.exonsIntronsBed(), outputs.genesXln, outputs.bgzip);
+      if ((outputs.anyGeneTrack() || outputs.arrow) && releaseDiff.isEmpty()) {
+        RunMetrics.progress("Nothing changed, the previous GeneTrack and Arrow files still hold");
+      } else {
+        if (outputs.geneTrack) {
+          aggregator.submitSerializedGeneTrack(writers);
+        }
+        if (outputs.geneTrackBinary) {
+          aggregator.submitGeneTrackFile(writers);
+        }
+        // there is no patch format, the tables are written whole
+        if (outputs.arrow) {
+          aggregator.submitArrowOutputs(writers);
+        }
+      }
+      writers.awaitAll();
+      stage.items(changed.size());
+    }
+  }
+
+  private static Map<String, ReleaseDiff.Fingerprint> fingerprintRelease(Path release,
+                                                                         Path outputDir,
+                                                                         ParseOptions options)
+      throws IOException {
+    Collection<BasicFeature> genes;
+    if (AnnotationSnapshot.isSnapshot(release)) {
+      RunMetrics.progress("Loading previous release from snapshot " + release);
+      genes = AnnotationSnapshot.load(release, AnnotationSnapshot.GENES_AND_EXONS).genes;
+    } else {
+      Aggregator previous = new Aggregator(release, outputDir, options, null);
+      previous.findGenesAndExons();
+      genes = previous.genes;
+    }
+    return ReleaseDiff.fingerprints(ReleaseDiff.group(genes));
+  }
+
+  static void writeMetrics(RunMetrics metrics, Path outputDir) {
+    if (!metrics.isEnabled()) {
+      return;
+    }
+    Path jsonFile = outputDir.resolve("runMetrics.json");
+    Path tsvFile = outputDir.resolve("runMetrics.tsv");
+    try {
+      metrics.writeJson(jsonFile);
+      metrics.writeTsv(tsvFile);
+      RunMetrics.progress("Wrote run metrics to " + jsonFile + " and " + tsvFile);
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
   }
 }
\ No newline at end of file
@@ -0,0 +1,342 @@
+package org.pankratzlab;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.stream.Stream;
+
+import htsjdk.tribble.gff.Gff3BaseData;
+
+/**
+ * Loads an input whose features don't all fit in the heap at once. One pass over the GFF3 spills
+ * the features the projection keeps, and the links of those it only needs links for, into a
+ * partition file per contig, as compact binary records in file order. The partitions are then
+ * loaded one at a time, each into an {@link Aggregator} of its own, which resolves parents the way
+ * it would for the whole file, since GFF3 keeps a feature on the same contig as its parent. Each
+ * gene found has its {@link ExonModel} derived and then lets go of its exons, see
+ * {@link BasicFeature#releaseExons()}, so all that is kept of a partition is its genes and their
+ * models. Grouping, sorting and writing go on from those as they would in memory.
+ * <p>
+ * Partitions are loaded on as many threads as the input is parsed with, largest first, and each
+ * reserves an estimate of its heap out of the memory budget before it starts, like the inputs of
+ * a {@link BatchRunner}, so only as many are held at once as fit. Contigs past the first
+ * MAX_PARTITIONS share partition files, which keeps the files open at once down on assemblies with
+ * many scaffolds.
+ * <p>
+ * QC output needs every feature at once, and queries and serving need the exons themselves, so
+ * neither is available this way. Ids are only resolved within a partition: an id repeated on
+ * contigs in different partitions is a feature on each, where in memory the last one replaces the
+ * others.
+ */
+public class OutOfCoreLoader {
+  // contigs past this many share partitions, round robin
+  private static final int MAX_PARTITIONS = 256;
+  // heap held while loading a partition, per byte of its file, from RefSeq style input
+  private static final int HEAP_PER_PARTITION_BYTE = 6;
+
+  // record kinds
+  private static final byte FEATURE = 0;
+  private static final byte LINK = 1;
+
+  private static final class Partition {
+    final Path file;
+    final DataOutputStream out;
+    // types and contigs, each written out once, where it is first used, and then as its index
+    final Map<String, Integer> codes = new HashMap<>();
+    long bytes;
+    int features;
+    int orphans;
+
+    Partition(Path file) throws IOException {
+      this.file = file;
+      this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file),
+                                                               1 << 16));
+    }
+
+    void writeCode(String s) throws IOException {
+      Integer code = codes.get(s);
+      if (code == null) {
+        out.writeInt(codes.size());
+        writeString(out, s);
+        codes.put(s, codes.size());
+      } else {
+        out.writeInt(code);
+      }
+    }
+  }
+
+  private final FeatureProjection projection;
+  private final Path partitionDir;
+  private final List<Partition> partitions = new ArrayList<>();
+  private final Map<String, Partition> partitionsByContig = new HashMap<>();
+  private int spilledFeatures = 0;
+
+  private OutOfCoreLoader(FeatureProjection projection, Path partitionDir) {
+    this.projection = projection;
+    this.partitionDir = partitionDir;
+  }
+
+  /**
+   * Spills the input to partitions in a temporary directory under the output directory, loads them
+   * and deletes them again
+   *
+   * @param memoryBudget bytes of heap the partitions being loaded may use between them
+   * @return an aggregator of every gene, with its exon model but not its exons
+   */
+  static Aggregator load(Path inputFile, Path outputDir, ParseOptions options, long memoryBudget,
+                         RunMetrics metrics) throws IOException {
+    Path partitionDir = Files.createTempDirectory(outputDir, "partitions");
+    try {
+      OutOfCoreLoader loader = new OutOfCoreLoader(options.projection, partitionDir);
+      try (RunMetrics.Stage stage = metrics.stage("spill")) {
+        loader.spill(inputFile, options);
+        stage.items(loader.spilledFeatures);
+      }
+      try (RunMetrics.Stage stage = metrics.stage("loadPartitions")) {
+        Aggregator aggregator = loader.loadPartitions(outputDir, options, memoryBudget);
+        stage.items(aggregator.featureCount);
+        return aggregator;
+      }
+    } finally {
+      try (Stream<Path> paths = Files.walk(partitionDir)) {
+        paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+      }
+    }
+  }
+
+  private void spill(Path inputFile, ParseOptions options) throws IOException {
+    RunMetrics.progress("Spilling " + inputFile + " to partitions in " + partitionDir + "...");
+    try {
+      if (PipelinedGffReader.handles(inputFile, options.threads, options.fastParse)) {
+        if (options.fastParse) {
+          new PipelinedGffReader(inputFile.toString(), options.threads, projection, this::spill,
+                                 this::spillLink, null);
+        } else {
+          new PipelinedGffReader(inputFile.toString(), options.threads, this::spill);
+        }
+      } else if (options.fastParse) {
+        new FastGffReader(inputFile.toString(), projection, this::spill, this::spillLink, null);
+      } else if (options.threads > 1) {
+        new ParallelGffParser(inputFile.toString(), options.threads, this::spill);
+      } else {
+        new GffParser(inputFile.toString(), feature -> spill(feature.getBaseData()));
+      }
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    } finally {
+      for (Partition partition : partitions) {
+        partition.out.close();
+      }
+    }
+    for (Partition partition : partitions) {
+      partition.bytes = Files.size(partition.file);
+    }
+    RunMetrics.progress("Spilled " + spilledFeatures + " features of " + partitionsByContig.size()
+                        + " contigs to " + partitions.size() + " partitions");
+  }
+
+  private void spill(BasicFeature feat) {
+    if (!projection.keepsType(feat.type)) {
+      spillLink(feat.contig, feat.id, feat.parentId, feat.type);
+      return;
+    }
+    try {
+      Partition partition = partitionFor(feat.contig);
+      DataOutputStream out = partition.out;
+      out.writeByte(FEATURE);
+      partition.writeCode(feat.type);
+      partition.writeCode(feat.contig);
+      writeString(out, feat.id);
+      writeString(out, feat.parentId);
+      writeString(out, feat.name);
+      writeString(out, feat.xRefGeneId);
+      out.writeInt(feat.start);
+      out.writeInt(feat.end);
+      out.writeByte(feat.strand);
+      spilledFeatures++;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private void spill(Gff3BaseData baseData) {
+    if (!projection.keepsType(baseData.getType())) {
+      spillLink(baseData.getContig(), baseData.getId(), BasicFeature.findParentId(baseData),
+                baseData.getType());
+      return;
+    }
+    spill(new BasicFeature(baseData));
+  }
+
+  /**
+   * See {@link Aggregator#addLink}
+   */
+  private void spillLink(String contig, String id, String parentId, String type) {
+    if (id == null || !projection.linksType(type)) {
+      return;
+    }
+    try {
+      Partition partition = partitionFor(contig);
+      DataOutputStream out = partition.out;
+      out.writeByte(LINK);
+      partition.writeCode(type);
+      writeString(out, id);
+      writeString(out, parentId);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private Partition partitionFor(String contig) throws IOException {
+    Partition partition = partitionsByContig.get(contig);
+    if (partition == null) {
+      if (partitions.size() < MAX_PARTITIONS) {
+        partition = new Partition(partitionDir.resolve("partition" + partitions.size() + ".bin"));
+        partitions.add(partition);
+      } else {
+        partition = partitions.get(partitionsByContig.size() % MAX_PARTITIONS);
+      }
+      partitionsByContig.put(contig, partition);
+    }
+    return partition;
+  }
+
+  private Aggregator loadPartitions(Path outputDir, ParseOptions options,
+                                    long memoryBudget) throws IOException {
+    int budgetMb = (int) Math.max(1, Math.min(Integer.MAX_VALUE, memoryBudget >> 20));
+    Semaphore memory = new Semaphore(budgetMb, true);
+    int threads = Math.max(1, options.threads);
+    List<Partition> largestFirst = new ArrayList<>(partitions);
+    largestFirst.sort(Comparator.comparingLong((Partition partition) -> partition.bytes)
+                                .reversed());
+    RunMetrics.progress("Loading " + partitions.size() + " partitions, up to " + threads
+                        + " at a time within " + budgetMb + " MB of heap...");
+
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<List<BasicFeature>>> loaded = new ArrayList<>();
+      for (Partition partition : largestFirst) {
+        int permits = (int) Math.max(1, Math.min(budgetMb, partition.bytes
+                                                           * HEAP_PER_PARTITION_BYTE >> 20));
+        loaded.add(pool.submit(() -> {
+          memory.acquireUninterruptibly(permits);
+          try {
+            return loadPartition(partition, outputDir, options);
+          } finally {
+            memory.release(permits);
+          }
+        }));
+      }
+      List<BasicFeature> genes = new ArrayList<>();
+      for (Future<List<BasicFeature>> future : loaded) {
+        genes.addAll(future.get());
+      }
+      int featureCount = partitions.stream().mapToInt(partition -> partition.features).sum();
+      int orphans = partitions.stream().mapToInt(partition -> partition.orphans).sum();
+      RunMetrics.progress("Loaded " + genes.size() + " genes (of " + featureCount
+                          + " features) from " + partitions.size() + " partitions");
+      if (orphans > 0) {
+        RunMetrics.progress(orphans + " features reference a parent that was never found");
+      }
+      return new Aggregator(outputDir, options, genes, featureCount);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      throw cause instanceof IOException ? (IOException) cause
+                                         : new IOException("Failed to load a partition", cause);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while loading partitions", e);
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  /**
+   * @return the partition's genes, each with its exon model derived and its exons released
+   */
+  private static List<BasicFeature> loadPartition(Partition partition, Path outputDir,
+                                                  ParseOptions options) throws IOException {
+    Aggregator aggregator = new Aggregator(outputDir, options);
+    List<String> codes = new ArrayList<>();
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(partition.file),
+                                                                          1 << 16))) {
+      int kind;
+      while ((kind = in.read()) != -1) {
+        String type = readCode(in, codes);
+        if (kind == LINK) {
+          String id = readString(in);
+          String parentId = readString(in);
+          aggregator.addLink(id, parentId, type);
+          continue;
+        }
+        String contig = readCode(in, codes);
+        String id = readString(in);
+        String parentId = readString(in);
+        String name = readString(in);
+        String xRefGeneId = readString(in);
+        int start = in.readInt();
+        int end = in.readInt();
+        byte strand = in.readByte();
+        aggregator.add(new BasicFeature(id, parentId, type, start, end, name, contig, strand,
+                                        xRefGeneId));
+      }
+    }
+    // the next partition can have the disk space
+    Files.delete(partition.file);
+
+    partition.features = aggregator.featureMap.size();
+    partition.orphans = aggregator.pendingChildren.values().stream().mapToInt(List::size).sum();
+    List<BasicFeature> genes = new ArrayList<>();
+    for (BasicFeature feat : aggregator.featureMap.values()) {
+      if (feat.isGene()) {
+        feat.releaseExons();
+        genes.add(feat);
+      }
+    }
+    return genes;
+  }
+
+  private static String readCode(DataInputStream in, List<String> codes) throws IOException {
+    int code = in.readInt();
+    if (code == codes.size()) {
+      codes.add(readString(in));
+    }
+    return codes.get(code);
+  }
+
+  private static void writeString(DataOutputStream out, String s) throws IOException {
+    if (s == null) {
+      out.writeInt(-1);
+      return;
+    }
+    byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    if (length < 0) {
+      return null;
+    }
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
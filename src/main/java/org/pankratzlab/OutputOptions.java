@@ -0,0 +1,129 @@
+package org.pankratzlab;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Which files {@link Main} writes for an input, and how. The defaults write nothing but the QC
+ * output.
+ */
+public class OutputOptions {
+  boolean qc = true;
+  boolean geneTrack = false;
+  boolean geneTrackBinary = false;
+  boolean genesXln = false;
+  boolean bedExons = false;
+  boolean bedIntrons = false;
+  boolean bedAll = false;
+  boolean bgzip = false;
+  boolean arrow = false;
+  List<String> queries = new ArrayList<>();
+  int threads = 1;
+
+  public OutputOptions qc(boolean qc) {
+    this.qc = qc;
+    return this;
+  }
+
+  public OutputOptions geneTrack(boolean geneTrack) {
+    this.geneTrack = geneTrack;
+    return this;
+  }
+
+  /**
+   * GeneTrack.bin, see {@link GeneTrackFile}
+   */
+  public OutputOptions geneTrackBinary(boolean geneTrackBinary) {
+    this.geneTrackBinary = geneTrackBinary;
+    return this;
+  }
+
+  public OutputOptions genesXln(boolean genesXln) {
+    this.genesXln = genesXln;
+    return this;
+  }
+
+  /**
+   * With bedIntrons as well, one file of both rather than one of each
+   */
+  public OutputOptions bedExons(boolean bedExons) {
+    this.bedExons = bedExons;
+    return this;
+  }
+
+  public OutputOptions bedIntrons(boolean bedIntrons) {
+    this.bedIntrons = bedIntrons;
+    return this;
+  }
+
+  /**
+   * All three bed files: exons, introns, and both
+   */
+  public OutputOptions bedAll(boolean bedAll) {
+    this.bedAll = bedAll;
+    return this;
+  }
+
+  /**
+   * Block gzip and tabix index the bed files, see {@link TabixBedWriter}
+   */
+  public OutputOptions bgzip(boolean bgzip) {
+    this.bgzip = bgzip;
+    return this;
+  }
+
+  /**
+   * genes.arrow, exons.arrow and introns.arrow, see {@link Aggregator#submitArrowOutputs}
+   */
+  public OutputOptions arrow(boolean arrow) {
+    this.arrow = arrow;
+    return this;
+  }
+
+  /**
+   * Regions to look up, see {@link Aggregator#writeRegionQueries}
+   */
+  public OutputOptions queries(List<String> queries) {
+    this.queries = queries;
+    return this;
+  }
+
+  /**
+   * Files written at once, see {@link OutputWriters}
+   */
+  public OutputOptions threads(int threads) {
+    this.threads = threads;
+    return this;
+  }
+
+  boolean exonsBed() {
+    return bedAll || (bedExons && !bedIntrons);
+  }
+
+  boolean intronsBed() {
+    return bedAll || (bedIntrons && !bedExons);
+  }
+
+  boolean exonsIntronsBed() {
+    return bedAll || (bedExons && bedIntrons);
+  }
+
+  boolean needsIntrons() {
+    return bedIntrons || bedAll;
+  }
+
+  boolean anyGeneTrack() {
+    return geneTrack || geneTrackBinary;
+  }
+
+  boolean anyBed() {
+    return bedExons || bedIntrons || bedAll;
+  }
+
+  /**
+   * @return whether anything other than QC output was asked for
+   */
+  boolean any() {
+    return anyGeneTrack() || genesXln || anyBed() || arrow || !queries.isEmpty();
+  }
+}
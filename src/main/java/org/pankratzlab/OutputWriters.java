@@ -0,0 +1,155 @@
+package org.pankratzlab;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Writes independent output files concurrently on a fixed number of threads, each through one
+ * large buffer straight onto a file channel, and reports each file's size and throughput. Tasks
+ * may only read the model, so anything derived lazily has to be derived before they are
+ * submitted. What goes into each file, and in which order, is up to the task, so the output is
+ * the same whether the files are written one after another or all at once.
+ */
+public class OutputWriters implements AutoCloseable {
+  private static final int BUFFER_SIZE = 1 << 20;
+
+  public interface FileContent {
+    void write(Writer out) throws IOException;
+  }
+
+  public interface Task {
+    void run() throws IOException;
+  }
+
+  private final int threads;
+  private final ExecutorService executor;
+  // block compression for bgzipped files gets its own threads, since the file tasks wait on it
+  private final ExecutorService compressors;
+  private final RunMetrics metrics;
+  private final List<Future<?>> pending = new ArrayList<>();
+
+  public OutputWriters(int threads, RunMetrics metrics) {
+    this.threads = Math.max(1, threads);
+    this.executor = Executors.newFixedThreadPool(this.threads);
+    this.compressors = Executors.newFixedThreadPool(this.threads);
+    this.metrics = metrics;
+  }
+
+  /**
+   * Writes a file, replacing it if it exists
+   */
+  public void submit(Path file, FileContent content) {
+    submit(file.getFileName().toString(), () -> {
+      try (Writer out = open(file)) {
+        content.write(out);
+      }
+    }, file);
+  }
+
+  /**
+   * Writes a bed file block gzipped, with its tabix index next to it. The blocks are compressed
+   * in parallel, so one large file still keeps every thread busy.
+   */
+  public void submitTabixBed(Path file, FileContent content) {
+    submit(file.getFileName().toString(), () -> {
+      try (Writer out = new TabixBedWriter(file, compressors, threads)) {
+        content.write(out);
+      }
+    }, file, TabixBedWriter.indexFileFor(file));
+  }
+
+  /**
+   * Runs a task that writes the given files some other way, e.g. through a library's own
+   * serialization
+   */
+  public void submit(String name, Task task, Path... files) {
+    pending.add(executor.submit(() -> {
+      long start = System.nanoTime();
+      try {
+        task.run();
+        long bytes = 0;
+        for (Path file : files) {
+          bytes += Files.size(file);
+        }
+        long nanos = System.nanoTime() - start;
+        metrics.recordFile(name, bytes, nanos);
+        RunMetrics.progress(String.format(Locale.ROOT, "Wrote %s, %.1f MB in %d ms (%.1f MB/s)",
+                                          name, bytes / 1e6, nanos / 1_000_000,
+                                          bytes / 1e6 / Math.max(nanos / 1e9, 1e-9)));
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      return null;
+    }));
+  }
+
+  static Writer open(Path file) throws IOException {
+    // default charset, like the FileWriters and PrintWriters these files were written with before
+    return new BufferedWriter(new OutputStreamWriter(channelStream(file),
+                                                     Charset.defaultCharset()),
+                              BUFFER_SIZE);
+  }
+
+  static OutputStream openStream(Path file) throws IOException {
+    return new BufferedOutputStream(channelStream(file), BUFFER_SIZE);
+  }
+
+  private static OutputStream channelStream(Path file) throws IOException {
+    return Channels.newOutputStream(FileChannel.open(file, StandardOpenOption.CREATE,
+                                                     StandardOpenOption.TRUNCATE_EXISTING,
+                                                     StandardOpenOption.WRITE));
+  }
+
+  /**
+   * Waits for everything submitted so far
+   *
+   * @throws IOException the first failure, after every other task has finished
+   */
+  public void awaitAll() throws IOException {
+    IOException failure = null;
+    for (Future<?> future : pending) {
+      try {
+        future.get();
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof UncheckedIOException) {
+          cause = cause.getCause();
+        }
+        if (failure == null) {
+          failure = cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while writing output", e);
+      }
+    }
+    pending.clear();
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  @Override
+  public void close() {
+    executor.shutdown();
+    compressors.shutdown();
+  }
+}
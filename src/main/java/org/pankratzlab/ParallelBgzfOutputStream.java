@@ -0,0 +1,203 @@
+package org.pankratzlab;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import htsjdk.samtools.util.BlockCompressedFilePointerUtil;
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+
+/**
+ * Writes BGZF, the block gzip format htsjdk, samtools and tabix read, deflating the blocks on a
+ * thread pool and writing them out in order, where
+ * {@link htsjdk.samtools.util.BlockCompressedOutputStream} deflates every block on the writing
+ * thread. Since a block's address isn't known until the blocks before it are compressed,
+ * positions are handed out as a block number and an offset into it, and the
+ * {@link BlockListener} is told each block's address once it has been written.
+ */
+public class ParallelBgzfOutputStream extends OutputStream {
+  // a little under 64KB, like bgzip, so a block that doesn't compress at all still fits stored
+  static final int BLOCK_SIZE = 0xff00;
+
+  public interface BlockListener {
+    void blockWritten(long block, long address) throws IOException;
+  }
+
+  private final OutputStream out;
+  private final ExecutorService compressors;
+  private final int maxPendingBlocks;
+  private final BlockListener listener;
+  private final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<>();
+
+  private byte[] buffer = new byte[BLOCK_SIZE];
+  private int used = 0;
+  private long blocksSubmitted = 0;
+  private long blocksWritten = 0;
+  // where the next block written will start
+  private long address = 0;
+  // where the data ends and the end of file marker starts, once closed
+  private long endAddress = -1;
+
+  /**
+   * @param maxPendingBlocks blocks that may be waiting to be compressed or written before writes
+   *          block, which bounds the memory used
+   */
+  public ParallelBgzfOutputStream(OutputStream out, ExecutorService compressors,
+                                  int maxPendingBlocks, BlockListener listener) {
+    this.out = out;
+    this.compressors = compressors;
+    this.maxPendingBlocks = Math.max(1, maxPendingBlocks);
+    this.listener = listener;
+  }
+
+  /**
+   * @return the block the next byte written will go into
+   */
+  public long currentBlock() {
+    return blocksSubmitted;
+  }
+
+  /**
+   * @return the offset into {@link #currentBlock()} of the next byte written
+   */
+  public int offsetInBlock() {
+    return used;
+  }
+
+  /**
+   * @return the virtual file pointer of the end of the data, once the stream is closed
+   */
+  public long endFilePointer() {
+    if (endAddress < 0) {
+      throw new IllegalStateException("The end isn't known until the stream is closed");
+    }
+    return BlockCompressedFilePointerUtil.makeFilePointer(endAddress, 0);
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    buffer[used++] = (byte) b;
+    if (used == BLOCK_SIZE) {
+      submitBlock();
+    }
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    while (len > 0) {
+      int n = Math.min(len, BLOCK_SIZE - used);
+      System.arraycopy(b, off, buffer, used, n);
+      used += n;
+      off += n;
+      len -= n;
+      if (used == BLOCK_SIZE) {
+        submitBlock();
+      }
+    }
+  }
+
+  private void submitBlock() throws IOException {
+    byte[] data = buffer;
+    int length = used;
+    pending.add(compressors.submit(() -> compress(data, length)));
+    blocksSubmitted++;
+    buffer = new byte[BLOCK_SIZE];
+    used = 0;
+    while (!pending.isEmpty() && (pending.size() > maxPendingBlocks || pending.peek().isDone())) {
+      writeNextBlock();
+    }
+  }
+
+  private void writeNextBlock() throws IOException {
+    byte[] block;
+    try {
+      block = pending.poll().get();
+    } catch (ExecutionException e) {
+      throw new IOException("Failed to compress a block", e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while compressing", e);
+    }
+    out.write(block);
+    listener.blockWritten(blocksWritten++, address);
+    address += block.length;
+  }
+
+  static byte[] compress(byte[] data, int length) {
+    int headerLength = BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH;
+    int footerLength = BlockCompressedStreamConstants.BLOCK_FOOTER_LENGTH;
+    byte[] compressed = new byte[BlockCompressedStreamConstants.MAX_COMPRESSED_BLOCK_SIZE
+                                 - headerLength - footerLength];
+    int size = deflate(data, length, BlockCompressedStreamConstants.DEFAULT_COMPRESSION_LEVEL,
+                       compressed);
+    if (size < 0) {
+      size = deflate(data, length, Deflater.NO_COMPRESSION, compressed);
+    }
+    CRC32 crc = new CRC32();
+    crc.update(data, 0, length);
+
+    int blockSize = headerLength + size + footerLength;
+    ByteBuffer block = ByteBuffer.allocate(blockSize).order(ByteOrder.LITTLE_ENDIAN);
+    block.put(BlockCompressedStreamConstants.GZIP_ID1);
+    block.put((byte) BlockCompressedStreamConstants.GZIP_ID2);
+    block.put(BlockCompressedStreamConstants.GZIP_CM_DEFLATE);
+    block.put((byte) BlockCompressedStreamConstants.GZIP_FLG);
+    block.putInt(0); // modification time
+    block.put((byte) BlockCompressedStreamConstants.GZIP_XFL);
+    block.put((byte) BlockCompressedStreamConstants.GZIP_OS_UNKNOWN);
+    block.putShort(BlockCompressedStreamConstants.GZIP_XLEN);
+    block.put(BlockCompressedStreamConstants.BGZF_ID1);
+    block.put(BlockCompressedStreamConstants.BGZF_ID2);
+    block.putShort((short) BlockCompressedStreamConstants.BGZF_LEN);
+    block.putShort((short) (blockSize - 1));
+    block.put(compressed, 0, size);
+    block.putInt((int) crc.getValue());
+    block.putInt(length);
+    return block.array();
+  }
+
+  /**
+   * @return the compressed size, or -1 if it didn't fit
+   */
+  private static int deflate(byte[] data, int length, int level, byte[] compressed) {
+    Deflater deflater = new Deflater(level, true);
+    try {
+      deflater.setInput(data, 0, length);
+      deflater.finish();
+      int size = deflater.deflate(compressed, 0, compressed.length);
+      return deflater.finished() ? size : -1;
+    } finally {
+      deflater.end();
+    }
+  }
+
+  /**
+   * Writes everything out, then the empty block that marks the end of a BGZF file
+   */
+  @Override
+  public void close() throws IOException {
+    if (endAddress >= 0) {
+      return;
+    }
+    try {
+      if (used > 0) {
+        submitBlock();
+      }
+      while (!pending.isEmpty()) {
+        writeNextBlock();
+      }
+      endAddress = address;
+      out.write(BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK);
+    } finally {
+      pending.forEach(future -> future.cancel(false));
+      out.close();
+    }
+  }
+}
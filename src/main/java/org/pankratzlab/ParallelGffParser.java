@@ -0,0 +1,417 @@
+package org.pankratzlab;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+import htsjdk.samtools.util.BlockCompressedFilePointerUtil;
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.tribble.gff.Gff3Codec;
+import htsjdk.tribble.gff.Gff3Feature;
+import htsjdk.tribble.readers.LineIterator;
+
+/**
+ * Splits a plain text or BGZF compressed GFF3 file into line aligned chunks, decodes the chunks on
+ * a thread pool and hands the features to the consumer in file order. The consumer sees exactly
+ * the same features in the same order as with {@link GffParser}, so the parent/child links are
+ * rebuilt by {@link Aggregator} as usual, including forward references across chunks. Plain gzip
+ * can't be split and is handed to {@link GffParser}, though {@link Aggregator} reads it with a
+ * {@link PipelinedGffReader} instead.
+ * <p>
+ * Only a couple of chunks per thread are decoded ahead of the consumer, the next one started as
+ * the consumer takes one, so a slow consumer holds the decoding back rather than letting the
+ * whole file pile up in memory.
+ */
+public class ParallelGffParser {
+  private static final long MIN_CHUNK_SIZE = 1 << 22;
+  private static final int CHUNKS_PER_THREAD = 4;
+  // chunks decoded or being decoded ahead of the consumer, per thread
+  private static final int AHEAD_PER_THREAD = 2;
+  private static final String FASTA_DIRECTIVE = "##FASTA";
+
+  private final File inputFile;
+  private final long chunkSize;
+  private boolean bgzf;
+  // leading comment and directive lines, fed to every chunk's codec ahead of its own lines
+  private final List<String> headerLines = new ArrayList<>();
+
+  public ParallelGffParser(String filename, int threads, Consumer<BasicFeature> featureConsumer) {
+    this(filename, threads, 0, featureConsumer);
+  }
+
+  /**
+   * @param chunkSize bytes of the file (compressed, for BGZF) per chunk, or 0 to spread the file
+   *          over the threads
+   */
+  ParallelGffParser(String filename, int threads, long chunkSize,
+                    Consumer<BasicFeature> featureConsumer) {
+    this.inputFile = new File(filename);
+    this.chunkSize = chunkSize;
+    if (!inputFile.exists()) {
+      throw new IllegalArgumentException("Input file does not exist: " + filename);
+    }
+    if (!new Gff3Codec(Gff3Codec.DecodeDepth.SHALLOW).canDecode(filename)) {
+      throw new IllegalArgumentException("Gff3Codec says it cannot decode this file!");
+    }
+
+    ExecutorService executor = null;
+    try {
+      if (isGzipped(inputFile) && !isBgzf(inputFile)) {
+        RunMetrics.progress("Input is gzipped but not BGZF, parsing on a single thread");
+        new GffParser(filename, f -> featureConsumer.accept(new BasicFeature(f)));
+        return;
+      }
+      this.bgzf = isGzipped(inputFile);
+      readHeaderLines();
+      List<Chunk> chunks = bgzf ? findBgzfChunks(threads) : findPlainChunks(threads);
+
+      executor = Executors.newFixedThreadPool(threads);
+      Deque<Future<ChunkResult>> results = new ArrayDeque<>();
+      int submitted = 0;
+      // features are handed over in chunk order, so anything after ##FASTA is dropped as usual
+      while (submitted < chunks.size() || !results.isEmpty()) {
+        while (submitted < chunks.size() && results.size() < threads * AHEAD_PER_THREAD) {
+          Chunk chunk = chunks.get(submitted++);
+          results.add(executor.submit(() -> decodeChunk(chunk)));
+        }
+        ChunkResult result = results.poll().get();
+        result.features.forEach(featureConsumer);
+        if (result.reachedFasta) {
+          break;
+        }
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException("Failed to read " + filename, e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw new UncheckedIOException("Failed to read " + filename, (IOException) e.getCause());
+      }
+      throw new IllegalStateException("Failed to parse " + filename, e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while parsing " + filename, e);
+    } finally {
+      if (executor != null) {
+        executor.shutdownNow();
+      }
+    }
+  }
+
+  private static boolean isGzipped(File file) throws IOException {
+    try (InputStream in = new FileInputStream(file)) {
+      return in.read() == 0x1f && in.read() == 0x8b;
+    }
+  }
+
+  private static boolean isBgzf(File file) throws IOException {
+    try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+      return BlockCompressedInputStream.isValidFile(in);
+    }
+  }
+
+  private void readHeaderLines() throws IOException {
+    try (PositionedLineReader reader = openReader()) {
+      reader.seek(0);
+      String line;
+      while ((line = reader.readLine()) != null && line.startsWith("#")
+             && !line.startsWith(FASTA_DIRECTIVE)) {
+        headerLines.add(line);
+      }
+    }
+  }
+
+  private long chunkSize(int threads) {
+    if (chunkSize > 0) {
+      return chunkSize;
+    }
+    return Math.max(MIN_CHUNK_SIZE, inputFile.length() / ((long) threads * CHUNKS_PER_THREAD) + 1);
+  }
+
+  private List<Chunk> findPlainChunks(int threads) {
+    long size = inputFile.length();
+    long chunkSize = chunkSize(threads);
+    List<Chunk> chunks = new ArrayList<>();
+    for (long start = 0; start < size; start += chunkSize) {
+      chunks.add(new Chunk(start, Math.min(start + chunkSize, size), start - 1));
+    }
+    return chunks;
+  }
+
+  /**
+   * Walks the BGZF block headers (without inflating anything) and groups whole blocks into chunks.
+   * Positions are virtual file pointers.
+   */
+  private List<Chunk> findBgzfChunks(int threads) throws IOException {
+    List<long[]> blocks = new ArrayList<>();
+    try (RandomAccessFile raf = new RandomAccessFile(inputFile, "r")) {
+      long address = 0;
+      long length = raf.length();
+      byte[] header = new byte[12];
+      while (address < length) {
+        raf.seek(address);
+        raf.readFully(header);
+        int xlen = (header[10] & 0xff) | (header[11] & 0xff) << 8;
+        byte[] extra = new byte[xlen];
+        raf.readFully(extra);
+        int blockSize = -1;
+        for (int i = 0; i + 4 <= xlen; i += 4 + ((extra[i + 2] & 0xff) | (extra[i + 3] & 0xff) << 8)) {
+          if (extra[i] == 'B' && extra[i + 1] == 'C') {
+            blockSize = ((extra[i + 4] & 0xff) | (extra[i + 5] & 0xff) << 8) + 1;
+          }
+        }
+        if (blockSize < 0) {
+          throw new IOException("Malformed BGZF block at " + address + " in " + inputFile);
+        }
+        raf.seek(address + blockSize - 4);
+        long uncompressedSize = Integer.toUnsignedLong(Integer.reverseBytes(raf.readInt()));
+        blocks.add(new long[] {address, uncompressedSize});
+        address += blockSize;
+      }
+    }
+
+    long chunkSize = chunkSize(threads);
+    List<Chunk> chunks = new ArrayList<>();
+    int chunkFirstBlock = 0;
+    long lastByteBefore = -1;
+    for (int i = 0; i < blocks.size(); i++) {
+      boolean lastBlock = i == blocks.size() - 1;
+      if (lastBlock || blocks.get(i + 1)[0] - blocks.get(chunkFirstBlock)[0] >= chunkSize) {
+        long start = BlockCompressedFilePointerUtil.makeFilePointer(blocks.get(chunkFirstBlock)[0],
+                                                                    0);
+        long end = lastBlock ? Long.MAX_VALUE
+                             : BlockCompressedFilePointerUtil.makeFilePointer(blocks.get(i + 1)[0],
+                                                                              0);
+        chunks.add(new Chunk(start, end, lastByteBefore));
+        for (int j = chunkFirstBlock; j <= i; j++) {
+          if (blocks.get(j)[1] > 0) {
+            lastByteBefore = BlockCompressedFilePointerUtil.makeFilePointer(blocks.get(j)[0],
+                                                                            (int) blocks.get(j)[1]
+                                                                                - 1);
+          }
+        }
+        chunkFirstBlock = i + 1;
+      }
+    }
+    return chunks;
+  }
+
+  private ChunkResult decodeChunk(Chunk chunk) throws IOException {
+    ChunkResult result = new ChunkResult();
+    try (PositionedLineReader reader = openReader()) {
+      if (chunk.lastByteBefore < 0) {
+        reader.seek(chunk.start);
+      } else {
+        // a line belongs to the chunk it starts in, so finish the line that straddles the boundary
+        reader.seek(chunk.lastByteBefore);
+        int b;
+        while ((b = reader.read()) != '\n' && b != -1) {
+        }
+      }
+      ChunkLineIterator lines = new ChunkLineIterator(reader, chunk.lastByteBefore < 0, chunk.end,
+                                                      result);
+      Gff3Codec codec = new Gff3Codec(Gff3Codec.DecodeDepth.SHALLOW);
+      codec.readHeader(lines);
+      while (!codec.isDone(lines)) {
+        Gff3Feature feature = codec.decode(lines);
+        if (feature != null) {
+          result.features.add(new BasicFeature(feature));
+        }
+      }
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+    return result;
+  }
+
+  private PositionedLineReader openReader() throws IOException {
+    return bgzf ? new BgzfLineReader(inputFile) : new PlainLineReader(inputFile);
+  }
+
+  private static class Chunk {
+    final long start;
+    final long end;
+    // position of the byte just before this chunk, or -1 for the first chunk
+    final long lastByteBefore;
+
+    Chunk(long start, long end, long lastByteBefore) {
+      this.start = start;
+      this.end = end;
+      this.lastByteBefore = lastByteBefore;
+    }
+  }
+
+  private static class ChunkResult {
+    final List<BasicFeature> features = new ArrayList<>();
+    boolean reachedFasta = false;
+  }
+
+  /**
+   * Header lines, then every line that starts before the end of the chunk. Stops after a ##FASTA
+   * directive.
+   */
+  private class ChunkLineIterator implements LineIterator {
+    private final PositionedLineReader reader;
+    private final long end;
+    private final ChunkResult result;
+    private int headerIndex;
+    private String next;
+
+    ChunkLineIterator(PositionedLineReader reader, boolean firstChunk, long end,
+                      ChunkResult result) {
+      this.reader = reader;
+      this.end = end;
+      this.result = result;
+      // the first chunk reads its header lines from the file itself
+      this.headerIndex = firstChunk ? headerLines.size() : 0;
+      advance();
+    }
+
+    private void advance() {
+      if (headerIndex < headerLines.size()) {
+        next = headerLines.get(headerIndex++);
+        return;
+      }
+      try {
+        next = result.reachedFasta || reader.position() >= end ? null : reader.readLine();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      if (next != null && next.startsWith(FASTA_DIRECTIVE)) {
+        result.reachedFasta = true;
+      }
+    }
+
+    @Override
+    public String peek() {
+      if (next == null) {
+        throw new NoSuchElementException();
+      }
+      return next;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return next != null;
+    }
+
+    @Override
+    public String next() {
+      String line = peek();
+      advance();
+      return line;
+    }
+  }
+
+  private abstract static class PositionedLineReader implements AutoCloseable {
+    private final ByteArrayOutputStream lineBuffer = new ByteArrayOutputStream(256);
+
+    abstract void seek(long position) throws IOException;
+
+    abstract long position();
+
+    abstract int read() throws IOException;
+
+    /**
+     * @return the next line without its line terminator, or null at the end of the file
+     */
+    String readLine() throws IOException {
+      lineBuffer.reset();
+      int b = read();
+      if (b == -1) {
+        return null;
+      }
+      while (b != '\n' && b != -1) {
+        lineBuffer.write(b);
+        b = read();
+      }
+      String line = lineBuffer.toString(StandardCharsets.UTF_8);
+      return line.endsWith("\r") ? line.substring(0, line.length() - 1) : line;
+    }
+
+    @Override
+    public abstract void close() throws IOException;
+  }
+
+  private static class PlainLineReader extends PositionedLineReader {
+    private final FileChannel channel;
+    private InputStream in;
+    private long position;
+
+    PlainLineReader(File file) throws IOException {
+      this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    }
+
+    @Override
+    void seek(long position) throws IOException {
+      channel.position(position);
+      this.in = new BufferedInputStream(Channels.newInputStream(channel), 1 << 16);
+      this.position = position;
+    }
+
+    @Override
+    long position() {
+      return position;
+    }
+
+    @Override
+    int read() throws IOException {
+      int b = in.read();
+      if (b != -1) {
+        position++;
+      }
+      return b;
+    }
+
+    @Override
+    public void close() throws IOException {
+      channel.close();
+    }
+  }
+
+  private static class BgzfLineReader extends PositionedLineReader {
+    private final BlockCompressedInputStream in;
+
+    BgzfLineReader(File file) throws IOException {
+      this.in = new BlockCompressedInputStream(file);
+    }
+
+    @Override
+    void seek(long position) throws IOException {
+      in.seek(position);
+    }
+
+    @Override
+    long position() {
+      return in.getFilePointer();
+    }
+
+    @Override
+    int read() throws IOException {
+      return in.read();
+    }
+
+    @Override
+    public void close() throws IOException {
+      in.close();
+    }
+  }
+}
@@ -0,0 +1,56 @@
+package org.pankratzlab;
+
+/**
+ * How {@link Aggregator} should read its input. The defaults match the original behaviour: htsjdk
+ * on a single thread, keeping every feature as a {@link BasicFeature}.
+ */
+public class ParseOptions {
+  FeatureProjection projection = FeatureProjection.ALL;
+  boolean fastParse = false;
+  int threads = 1;
+  boolean compact = false;
+  boolean snapshot = false;
+
+  /**
+   * Features the projection doesn't keep are never turned into {@link BasicFeature}s, if the
+   * parser allows it
+   */
+  public ParseOptions projection(FeatureProjection projection) {
+    this.projection = projection;
+    return this;
+  }
+
+  /**
+   * Parse with {@link FastGffReader} instead of htsjdk
+   */
+  public ParseOptions fastParse(boolean fastParse) {
+    this.fastParse = fastParse;
+    return this;
+  }
+
+  /**
+   * More than one parses the file with a {@link ParallelGffParser}, ignored with fastParse
+   */
+  public ParseOptions threads(int threads) {
+    this.threads = threads;
+    return this;
+  }
+
+  /**
+   * Keep parsed features in a {@link FeatureStore} and only materialize genes and exons. Not
+   * compatible with streaming.
+   */
+  public ParseOptions compact(boolean compact) {
+    this.compact = compact;
+    return this;
+  }
+
+  /**
+   * Load the genes from an {@link AnnotationSnapshot} of the input if there is a valid one in the
+   * output directory, otherwise parse and write one. Ignored in streaming mode.
+   */
+  public ParseOptions snapshot(boolean snapshot) {
+    this.snapshot = snapshot;
+    return this;
+  }
+}
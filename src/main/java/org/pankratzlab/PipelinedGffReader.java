@@ -0,0 +1,537 @@
+package org.pankratzlab;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+import htsjdk.tribble.gff.Gff3Codec;
+import htsjdk.tribble.gff.Gff3Feature;
+import htsjdk.tribble.readers.LineIterator;
+
+/**
+ * Parses a GFF3 stream in stages connected by bounded queues, so inflating, splitting lines and
+ * decoding them all run at once instead of one after the other on a single thread. For gzipped
+ * input, and for stdin ({@code -}), which can't be split up front like {@link ParallelGffParser}
+ * splits a file.
+ * <ol>
+ * <li>A reader thread reads the input and inflates it: plain gzip as it comes, BGZF a block at a
+ * time on a pool of inflaters, since every block is a gzip member of its own.</li>
+ * <li>A batching thread cuts the inflated bytes into batches of whole lines.</li>
+ * <li>Decode workers turn the batches into features, each with a {@link FastGffReader} of its own
+ * or with htsjdk's codec, like {@link ParallelGffParser}'s chunks.</li>
+ * <li>The calling thread hands the features to the consumers in file order, so they see exactly
+ * what a single threaded reader would hand them.</li>
+ * </ol>
+ * Every queue holds a few batches per thread at most, so a slow consumer holds the stages before
+ * it back rather than letting the input pile up in memory. An input that can't be read, or is cut
+ * short, fails the constructor with an {@link UncheckedIOException}.
+ */
+public class PipelinedGffReader {
+  static final String STDIN = "-";
+  private static final int BATCH_SIZE = 1 << 20;
+  private static final int READ_SIZE = 1 << 16;
+  private static final int QUEUED_PER_THREAD = 2;
+  private static final String FASTA_DIRECTIVE = "##FASTA";
+  // marks the end of the input in the queues
+  private static final byte[] END_OF_BLOCKS = new byte[0];
+  private static final Batch END_OF_BATCHES = new Batch(new byte[0], 0, 0, false);
+
+  // a ### directive, between the features around it
+  private static final Object FLUSH = new Object();
+
+  private static final class Link {
+    final String contig;
+    final String id;
+    final String parentId;
+    final String type;
+
+    Link(String contig, String id, String parentId, String type) {
+      this.contig = contig;
+      this.id = id;
+      this.parentId = parentId;
+      this.type = type;
+    }
+  }
+
+  private static final class Batch {
+    final byte[] bytes;
+    final int length;
+    final long firstLine;
+    final boolean first;
+
+    Batch(byte[] bytes, int length, long firstLine, boolean first) {
+      this.bytes = bytes;
+      this.length = length;
+      this.firstLine = firstLine;
+      this.first = first;
+    }
+  }
+
+  private static final class Decoded {
+    // features, links and FLUSH, in file order
+    final List<Object> events = new ArrayList<>();
+    boolean reachedFasta = false;
+  }
+
+  private final String filename;
+  private final int threads;
+  private final FeatureProjection projection;
+  private final boolean fastParse;
+  private final List<String> headerLines = new ArrayList<>();
+
+  private final BlockingQueue<Future<byte[]>> blocks;
+  private final BlockingQueue<Future<Decoded>> decoded;
+  private final ExecutorService stages = daemonPool(2);
+  private final ExecutorService inflaters;
+  private final ExecutorService decoders;
+  private final ThreadLocal<BatchDecoder> batchDecoders;
+
+  /**
+   * Decodes with htsjdk, like {@link GffParser}
+   *
+   * @param filename a gzipped or BGZF GFF3 file, or - for stdin, which may be either or plain text
+   */
+  public PipelinedGffReader(String filename, int threads, Consumer<BasicFeature> featureConsumer) {
+    this(filename, threads, null, false);
+    run(featureConsumer, (contig, id, parentId, type) -> {}, null);
+  }
+
+  /**
+   * Decodes with {@link FastGffReader}, see there for the consumers
+   */
+  public PipelinedGffReader(String filename, int threads, FeatureProjection projection,
+                            Consumer<BasicFeature> featureConsumer,
+                            FastGffReader.LinkConsumer linkConsumer,
+                            Runnable flushDirectiveListener) {
+    this(filename, threads, projection, true);
+    run(featureConsumer, linkConsumer, flushDirectiveListener);
+  }
+
+  private PipelinedGffReader(String filename, int threads, FeatureProjection projection,
+                             boolean fastParse) {
+    if (!isStdin(filename) && !Files.exists(Path.of(filename))) {
+      throw new IllegalArgumentException("Input file does not exist: " + filename);
+    }
+    this.filename = filename;
+    this.threads = Math.max(1, threads);
+    this.projection = projection;
+    this.fastParse = fastParse;
+    this.blocks = new ArrayBlockingQueue<>(this.threads * QUEUED_PER_THREAD + 2);
+    this.decoded = new ArrayBlockingQueue<>(this.threads * QUEUED_PER_THREAD + 2);
+    this.inflaters = daemonPool(this.threads);
+    this.decoders = daemonPool(this.threads);
+    this.batchDecoders = ThreadLocal.withInitial(BatchDecoder::new);
+  }
+
+  /**
+   * Daemon threads, so a reader blocked on stdin after ##FASTA doesn't keep the JVM running
+   */
+  private static ExecutorService daemonPool(int threads) {
+    return Executors.newFixedThreadPool(threads, runnable -> {
+      Thread thread = new Thread(runnable);
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  static boolean isStdin(String filename) {
+    return filename.equals(STDIN);
+  }
+
+  /**
+   * @return whether the input should be read with this reader rather than from a file: stdin
+   *         always, gzipped files when there is more than one thread to spread the work over. BGZF
+   *         decoded with htsjdk is left to {@link ParallelGffParser}, which splits the file itself.
+   */
+  static boolean handles(Path input, int threads, boolean fastParse) {
+    if (isStdin(input.toString())) {
+      return true;
+    }
+    if (threads < 2) {
+      return false;
+    }
+    try (InputStream in = Files.newInputStream(input)) {
+      byte[] header = in.readNBytes(18);
+      return isGzip(header) && (fastParse || !isBgzf(header));
+    } catch (IOException e) {
+      // left for the usual reader to report
+      return false;
+    }
+  }
+
+  private void run(Consumer<BasicFeature> featureConsumer, FastGffReader.LinkConsumer linkConsumer,
+                   Runnable flushDirectiveListener) {
+    try {
+      stages.submit(this::read);
+      stages.submit(this::batchLines);
+      while (true) {
+        Decoded batch = decoded.take().get();
+        if (batch == null) {
+          break;
+        }
+        for (Object event : batch.events) {
+          if (event instanceof BasicFeature) {
+            featureConsumer.accept((BasicFeature) event);
+          } else if (event instanceof Link) {
+            Link link = (Link) event;
+            linkConsumer.accept(link.contig, link.id, link.parentId, link.type);
+          } else if (flushDirectiveListener != null) {
+            flushDirectiveListener.run();
+          }
+        }
+        if (batch.reachedFasta) {
+          break;
+        }
+      }
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw new UncheckedIOException("Failed to read " + filename, (IOException) cause);
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else {
+        throw new IllegalStateException("Failed to parse " + filename, cause);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while parsing " + filename, e);
+    } finally {
+      // stops the stages early after ##FASTA or a failure
+      stages.shutdownNow();
+      inflaters.shutdownNow();
+      decoders.shutdownNow();
+    }
+  }
+
+  /**
+   * Stage 1: puts the inflated input on the block queue, in order
+   */
+  private void read() {
+    try (InputStream in = new BufferedInputStream(open(), READ_SIZE)) {
+      in.mark(18);
+      byte[] header = in.readNBytes(18);
+      in.reset();
+      if (isBgzf(header)) {
+        readBgzf(in);
+      } else if (isGzip(header)) {
+        readStream(new GZIPInputStream(in, READ_SIZE));
+      } else {
+        readStream(in);
+      }
+      blocks.put(CompletableFuture.completedFuture(END_OF_BLOCKS));
+    } catch (IOException e) {
+      putFailure(blocks, e);
+    } catch (InterruptedException e) {
+      // shut down early
+    }
+  }
+
+  private static boolean isGzip(byte[] header) {
+    return header.length >= 2
+           && ((header[0] & 0xff) | (header[1] & 0xff) << 8) == GZIPInputStream.GZIP_MAGIC;
+  }
+
+  private InputStream open() throws IOException {
+    return isStdin(filename) ? System.in : Files.newInputStream(Path.of(filename));
+  }
+
+  /**
+   * A gzip header with the BC extra field that holds a BGZF block's size
+   */
+  private static boolean isBgzf(byte[] header) {
+    return header.length == 18 && isGzip(header) && (header[3] & 4) != 0 && header[12] == 'B'
+           && header[13] == 'C';
+  }
+
+  private void readStream(InputStream in) throws IOException, InterruptedException {
+    while (true) {
+      byte[] bytes = in.readNBytes(READ_SIZE);
+      if (bytes.length == 0) {
+        return;
+      }
+      blocks.put(CompletableFuture.completedFuture(bytes));
+    }
+  }
+
+  private void readBgzf(InputStream in) throws IOException, InterruptedException {
+    byte[] header = new byte[12];
+    byte[] last = null;
+    while (true) {
+      int n = in.readNBytes(header, 0, header.length);
+      if (n == 0) {
+        break;
+      }
+      if (n < header.length) {
+        throw new EOFException("BGZF block header cut short in " + filename);
+      }
+      // deflate, with the extra field that has the block size
+      if (!isGzip(header) || header[2] != 8 || (header[3] & 4) == 0) {
+        throw new IOException("Malformed BGZF block header in " + filename);
+      }
+      int xlen = unsignedShort(header, 10);
+      byte[] extra = readFully(in, xlen);
+      int blockSize = -1;
+      for (int i = 0; i + 4 <= xlen; i += 4 + unsignedShort(extra, i + 2)) {
+        if (extra[i] == 'B' && extra[i + 1] == 'C' && unsignedShort(extra, i + 2) == 2
+            && i + 6 <= xlen) {
+          blockSize = unsignedShort(extra, i + 4) + 1;
+        }
+      }
+      // the deflated data, then its CRC32 and uncompressed size
+      int restLength = blockSize - header.length - xlen;
+      if (blockSize < 0 || restLength < 8) {
+        throw new IOException("Malformed BGZF block in " + filename);
+      }
+      byte[] rest = readFully(in, restLength);
+      blocks.put(inflaters.submit(() -> inflate(rest)));
+      last = rest;
+    }
+    // the empty block bgzip ends every file with, so a file cut at a block boundary is caught
+    byte[] marker = BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK;
+    int markerHeader = BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH;
+    if (last == null || last.length != marker.length - markerHeader
+        || !Arrays.equals(last, 0, last.length, marker, markerHeader, marker.length)) {
+      throw new EOFException("BGZF input " + filename + " doesn't end with the end of file marker,"
+                             + " it may be truncated");
+    }
+  }
+
+  private static int unsignedShort(byte[] bytes, int offset) {
+    return (bytes[offset] & 0xff) | (bytes[offset + 1] & 0xff) << 8;
+  }
+
+  private static byte[] readFully(InputStream in, int length) throws IOException {
+    byte[] bytes = in.readNBytes(length);
+    if (bytes.length != length) {
+      throw new EOFException("BGZF block cut short");
+    }
+    return bytes;
+  }
+
+  private static byte[] inflate(byte[] block) throws IOException {
+    int dataLength = block.length - 8;
+    int size = (block[dataLength + 4] & 0xff) | (block[dataLength + 5] & 0xff) << 8
+               | (block[dataLength + 6] & 0xff) << 16 | (block[dataLength + 7] & 0xff) << 24;
+    byte[] inflated = new byte[size];
+    Inflater inflater = new Inflater(true);
+    try {
+      inflater.setInput(block, 0, dataLength);
+      int length = 0;
+      while (length < size && !inflater.finished()) {
+        int n = inflater.inflate(inflated, length, size - length);
+        if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          break;
+        }
+        length += n;
+      }
+      if (length != size) {
+        throw new IOException("BGZF block inflated to " + length + " bytes, expected " + size);
+      }
+      return inflated;
+    } catch (DataFormatException e) {
+      throw new IOException("Corrupt BGZF block", e);
+    } finally {
+      inflater.end();
+    }
+  }
+
+  /**
+   * Stage 2: cuts the inflated input into batches of whole lines and queues their decoding
+   */
+  private void batchLines() {
+    try {
+      byte[] buffer = new byte[BATCH_SIZE * 2];
+      int filled = 0;
+      long line = 1;
+      boolean first = true;
+      while (true) {
+        byte[] block = blocks.take().get();
+        if (block == END_OF_BLOCKS) {
+          break;
+        }
+        if (filled + block.length > buffer.length) {
+          buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, filled + block.length));
+        }
+        System.arraycopy(block, 0, buffer, filled, block.length);
+        filled += block.length;
+        if (filled < BATCH_SIZE) {
+          continue;
+        }
+        int end = filled;
+        while (end > 0 && buffer[end - 1] != '\n') {
+          end--;
+        }
+        if (end == 0) {
+          // one line longer than a batch, wait for the rest of it
+          continue;
+        }
+        line = queueBatch(new Batch(Arrays.copyOf(buffer, end), end, line, first));
+        first = false;
+        System.arraycopy(buffer, end, buffer, 0, filled - end);
+        filled -= end;
+      }
+      if (filled > 0) {
+        queueBatch(new Batch(Arrays.copyOf(buffer, filled), filled, line, first));
+      }
+      decoded.put(CompletableFuture.completedFuture(null));
+    } catch (ExecutionException e) {
+      putFailure(decoded, e.getCause());
+    } catch (InterruptedException e) {
+      // shut down early
+    }
+  }
+
+  /**
+   * Hands a failure on to the next stage, which takes it up in order like everything else
+   */
+  private static <T> void putFailure(BlockingQueue<Future<T>> queue, Throwable failure) {
+    try {
+      queue.put(CompletableFuture.failedFuture(failure));
+    } catch (InterruptedException e) {
+      // shut down early
+    }
+  }
+
+  /**
+   * @return the line number after the batch
+   */
+  private long queueBatch(Batch batch) throws InterruptedException {
+    if (batch.first && !fastParse) {
+      collectHeaderLines(batch);
+    }
+    decoded.put(decoders.submit(() -> batchDecoders.get().decode(batch)));
+    long lines = 0;
+    for (int i = 0; i < batch.length; i++) {
+      if (batch.bytes[i] == '\n') {
+        lines++;
+      }
+    }
+    return batch.firstLine + lines;
+  }
+
+  /**
+   * The comments and directives at the top of the input, which htsjdk's codec is given ahead of
+   * every batch but the first, like {@link ParallelGffParser}'s chunks
+   */
+  private void collectHeaderLines(Batch batch) {
+    for (String line : lines(batch)) {
+      if (!line.startsWith("#") || line.startsWith(FASTA_DIRECTIVE)) {
+        break;
+      }
+      headerLines.add(line);
+    }
+  }
+
+  private static List<String> lines(Batch batch) {
+    List<String> lines = new ArrayList<>();
+    int start = 0;
+    for (int i = 0; i <= batch.length; i++) {
+      if (i == batch.length || batch.bytes[i] == '\n') {
+        int end = i > start && batch.bytes[i - 1] == '\r' ? i - 1 : i;
+        if (i < batch.length || end > start) {
+          lines.add(new String(batch.bytes, start, end - start, StandardCharsets.UTF_8));
+        }
+        start = i + 1;
+      }
+    }
+    return lines;
+  }
+
+  /**
+   * Stage 3: one per decode worker thread, reused for every batch it decodes
+   */
+  private class BatchDecoder {
+    private Decoded current;
+    private final FastGffReader reader;
+
+    BatchDecoder() {
+      if (!fastParse) {
+        this.reader = null;
+        return;
+      }
+      this.reader = new FastGffReader(projection, feature -> current.events.add(feature),
+                                      this::addLink, () -> current.events.add(FLUSH));
+    }
+
+    private void addLink(String contig, String id, String parentId, String type) {
+      current.events.add(new Link(contig, id, parentId, type));
+    }
+
+    Decoded decode(Batch batch) throws IOException {
+      current = new Decoded();
+      try {
+        if (fastParse) {
+          current.reachedFasta = !reader.parseBatch(batch.bytes, batch.length, batch.firstLine);
+        } else {
+          decodeWithCodec(batch);
+        }
+        return current;
+      } finally {
+        current = null;
+      }
+    }
+
+    private void decodeWithCodec(Batch batch) throws IOException {
+      List<String> lines = lines(batch);
+      if (!batch.first) {
+        lines.addAll(0, headerLines);
+      }
+      LineIterator iterator = new LineIterator() {
+        private int next = 0;
+
+        @Override
+        public boolean hasNext() {
+          if (next < lines.size() && lines.get(next).startsWith(FASTA_DIRECTIVE)) {
+            current.reachedFasta = true;
+            return false;
+          }
+          return next < lines.size();
+        }
+
+        @Override
+        public String peek() {
+          if (!hasNext()) {
+            throw new NoSuchElementException();
+          }
+          return lines.get(next);
+        }
+
+        @Override
+        public String next() {
+          String line = peek();
+          next++;
+          return line;
+        }
+      };
+      Gff3Codec codec = new Gff3Codec(Gff3Codec.DecodeDepth.SHALLOW);
+      codec.readHeader(iterator);
+      while (!codec.isDone(iterator)) {
+        Gff3Feature feature = codec.decode(iterator);
+        if (feature != null) {
+          current.events.add(new BasicFeature(feature));
+        }
+      }
+    }
+  }
+}
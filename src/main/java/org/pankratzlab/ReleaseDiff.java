@@ -0,0 +1,183 @@
+package org.pankratzlab;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+/**
+ * Compares two releases of an annotation gene grouping by gene grouping (xRefGeneId), using a
+ * hashed fingerprint of each grouping rather than its features, so the previous release only needs
+ * its genes and exons, e.g. from an {@link AnnotationSnapshot}. A grouping is moved if the
+ * locations of its genes changed, and changed if they didn't but anything else the outputs are
+ * made of did: names, strands, or the exons, which the introns are derived from.
+ */
+public class ReleaseDiff {
+  public enum Change {
+    ADDED, REMOVED, MOVED, CHANGED
+  }
+
+  static final class Fingerprint {
+    final String xRefGeneId;
+    // the gene the outputs use for the grouping, or any gene if none is on a main contig
+    final BasicFeature representative;
+    final int exons;
+    final long location;
+    final long structure;
+
+    Fingerprint(GeneGrouping grouping) {
+      this.xRefGeneId = grouping.geneId;
+      // sorted, since the sets a grouping keeps its genes in have no stable order
+      List<BasicFeature> genes = new ArrayList<>(grouping.getGenes());
+      genes.sort(GENE_ORDER);
+      List<BasicFeature> located = genes;
+      if (grouping.hasMainContigGene()) {
+        located = new ArrayList<>(grouping.getMainContigGenes());
+        located.sort(GENE_ORDER);
+      }
+      this.representative = located.get(0);
+
+      long location = FNV_OFFSET;
+      for (BasicFeature gene : located) {
+        location = hash(location, gene.contig.hashCode());
+        location = hash(location, gene.start);
+        location = hash(location, gene.end);
+      }
+      this.location = location;
+
+      long structure = FNV_OFFSET;
+      int exons = 0;
+      for (BasicFeature gene : genes) {
+        structure = hash(structure, gene.contig.hashCode());
+        structure = hash(structure, gene.start);
+        structure = hash(structure, gene.end);
+        structure = hash(structure, gene.strand);
+        structure = hash(structure, gene.name == null ? 0 : gene.name.hashCode());
+        ExonModel model = gene.getExonModel();
+        structure = hash(structure, model.exonCount());
+        for (int i = 0; i < model.exonCount(); i++) {
+          structure = hash(structure, model.start(i));
+          structure = hash(structure, model.end(i));
+        }
+        exons += model.exonCount();
+      }
+      this.structure = structure;
+      this.exons = exons;
+    }
+
+    String locationString() {
+      return representative.getChr() + ":" + representative.start + "-" + representative.end;
+    }
+  }
+
+  private static final Comparator<BasicFeature> GENE_ORDER =
+      Comparator.comparing((BasicFeature gene) -> gene.contig).thenComparingInt(gene -> gene.start)
+                .thenComparingInt(gene -> gene.end)
+                .thenComparing(gene -> gene.id, Comparator.nullsFirst(Comparator.naturalOrder()));
+
+  // 64 bit FNV-1a, over whole ints rather than bytes
+  private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  private static long hash(long hash, int value) {
+    return (hash ^ value) * FNV_PRIME;
+  }
+
+  /**
+   * Fingerprints every grouping, on all cores. Each gene's {@link ExonModel} is built if it isn't
+   * already, which finds its introns too, but only the exons go into the fingerprint.
+   */
+  static Map<String, Fingerprint> fingerprints(Collection<GeneGrouping> groupings) {
+    return groupings.parallelStream().map(Fingerprint::new)
+                    .collect(Collectors.toMap(fingerprint -> fingerprint.xRefGeneId,
+                                              fingerprint -> fingerprint));
+  }
+
+  /**
+   * Groups the genes of a previous release, such as an {@link AnnotationSnapshot}'s
+   */
+  static Collection<GeneGrouping> group(Collection<BasicFeature> genes) {
+    return genes.parallelStream()
+                .collect(GeneGroupIndex::new, GeneGroupIndex::add, GeneGroupIndex::merge)
+                .getGroupings();
+  }
+
+  private final Map<String, Fingerprint> previous;
+  private final Map<String, Fingerprint> current;
+  // by xRefGeneId, only the groupings that differ
+  private final TreeMap<String, Change> changes = new TreeMap<>();
+
+  public ReleaseDiff(Map<String, Fingerprint> previous, Map<String, Fingerprint> current) {
+    this.previous = previous;
+    this.current = current;
+    for (Fingerprint now : current.values()) {
+      Fingerprint before = previous.get(now.xRefGeneId);
+      if (before == null) {
+        changes.put(now.xRefGeneId, Change.ADDED);
+      } else if (before.location != now.location) {
+        changes.put(now.xRefGeneId, Change.MOVED);
+      } else if (before.structure != now.structure) {
+        changes.put(now.xRefGeneId, Change.CHANGED);
+      }
+    }
+    for (String xRefGeneId : previous.keySet()) {
+      if (!current.containsKey(xRefGeneId)) {
+        changes.put(xRefGeneId, Change.REMOVED);
+      }
+    }
+  }
+
+  public Map<Change, Integer> counts() {
+    Map<Change, Integer> counts = new EnumMap<>(Change.class);
+    for (Change change : Change.values()) {
+      counts.put(change, 0);
+    }
+    changes.values().forEach(change -> counts.merge(change, 1, Integer::sum));
+    return counts;
+  }
+
+  public boolean isEmpty() {
+    return changes.isEmpty();
+  }
+
+  /**
+   * @return xRefGeneIds of the groupings whose records in the current release are new or
+   *         different, i.e. everything but the removed ones
+   */
+  public Set<String> currentChanged() {
+    return changes.entrySet().stream().filter(entry -> entry.getValue() != Change.REMOVED)
+                  .map(Map.Entry::getKey).collect(Collectors.toCollection(TreeSet::new));
+  }
+
+  /**
+   * Writes one line per grouping that differs, with where it was and is, the name of its first
+   * main contig gene and its exon count in each release. Groupings not listed are unchanged.
+   */
+  public void writeDelta(Path file) throws IOException {
+    try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(file))) {
+      writer.println(String.join("\t", "xRefGeneId", "change", "previousLocation", "location",
+                                 "previousName", "name", "previousExons", "exons"));
+      for (Map.Entry<String, Change> entry : changes.entrySet()) {
+        Fingerprint before = previous.get(entry.getKey());
+        Fingerprint now = current.get(entry.getKey());
+        writer.println(String.join("\t", entry.getKey(), entry.getValue().name().toLowerCase(),
+                                   before == null ? "." : before.locationString(),
+                                   now == null ? "." : now.locationString(),
+                                   before == null ? "." : before.representative.name,
+                                   now == null ? "." : now.representative.name,
+                                   before == null ? "." : String.valueOf(before.exons),
+                                   now == null ? "." : String.valueOf(now.exons)));
+      }
+    }
+  }
+}
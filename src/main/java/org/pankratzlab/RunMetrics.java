@@ -0,0 +1,364 @@
+package org.pankratzlab;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Handler;
+import java.util.logging.LogManager;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+import javax.management.NotificationEmitter;
+import javax.management.openmbean.CompositeData;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+import com.sun.management.GcInfo;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Wall time, CPU time, items processed, allocated bytes and peak heap per stage of a run, written
+ * as a JSON or TSV report. Stages are coarse (parsing, grouping, writing...) and measured only
+ * at their start and end, so nothing is added per feature, and with {@link #DISABLED} a stage
+ * costs little more than a timestamp. Every stage is also a JFR event, which is only recorded when
+ * a flight recording is running, e.g. with -XX:StartFlightRecording.
+ * <p>
+ * Progress messages along the way ("Finding exons...", "N groups computed", each stage's time) go
+ * through {@link #progress}, a java.util.logging logger, rather than straight to System.out.
+ * <p>
+ * CPU time is the whole process's, so it includes worker threads and GC. Allocated bytes are
+ * worked out from heap usage and what the collector reclaimed during the stage, which covers every
+ * thread but is approximate. Peak heap is summed over the heap pools' own peaks, so it is an upper
+ * bound. Stages are meant to run one after the other, not nested, since each resets the peaks.
+ * Stages a {@link StagePlanner} runs at once can end on any thread, and overlap, so only their
+ * wall times are their own; CPU time, allocations and peaks are shared by whatever ran alongside.
+ * The report's total wall time is from the start of the first stage to the end of the last, not
+ * the sum of the stages. Files written through {@link OutputWriters} are listed in the JSON report
+ * with their size and throughput.
+ */
+public class RunMetrics {
+  public static final RunMetrics DISABLED = new RunMetrics(false);
+
+  static final Logger PROGRESS = progressLogger();
+
+  private final boolean enabled;
+  private final List<StageMetrics> stages = new ArrayList<>();
+  private final List<FileMetrics> files = new ArrayList<>();
+  private final AtomicLong reclaimedBytes = new AtomicLong();
+  private final List<MemoryPoolMXBean> heapPools = new ArrayList<>();
+
+  private RunMetrics(boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  public static RunMetrics enabled() {
+    RunMetrics metrics = new RunMetrics(true);
+    metrics.listenForCollections();
+    return metrics;
+  }
+
+  private void listenForCollections() {
+    Set<String> heapPoolNames = new HashSet<>();
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP) {
+        heapPools.add(pool);
+        heapPoolNames.add(pool.getName());
+      }
+    }
+    for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+      if (!(collector instanceof NotificationEmitter)) {
+        continue;
+      }
+      ((NotificationEmitter) collector).addNotificationListener((notification, handback) -> {
+        String type = notification.getType();
+        if (!type.equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION)) {
+          return;
+        }
+        CompositeData data = (CompositeData) notification.getUserData();
+        GcInfo gcInfo = GarbageCollectionNotificationInfo.from(data).getGcInfo();
+        Map<String, MemoryUsage> before = gcInfo.getMemoryUsageBeforeGc();
+        Map<String, MemoryUsage> after = gcInfo.getMemoryUsageAfterGc();
+        long reclaimed = 0;
+        for (String pool : heapPoolNames) {
+          if (before.containsKey(pool) && after.containsKey(pool)) {
+            reclaimed += before.get(pool).getUsed() - after.get(pool).getUsed();
+          }
+        }
+        reclaimedBytes.addAndGet(reclaimed);
+      }, null, null);
+    }
+  }
+
+  /**
+   * Unless the logging configuration gives the logger handlers of its own, messages are printed to
+   * System.out one per line, as they always were
+   */
+  private static Logger progressLogger() {
+    Logger logger = Logger.getLogger("org.pankratzlab.progress");
+    if (LogManager.getLogManager().getProperty(logger.getName() + ".handlers") == null) {
+      logger.setUseParentHandlers(false);
+      logger.addHandler(new Handler() {
+        @Override
+        public void publish(LogRecord record) {
+          if (isLoggable(record)) {
+            System.out.println(record.getMessage());
+          }
+        }
+
+        @Override
+        public void flush() {
+          System.out.flush();
+        }
+
+        @Override
+        public void close() {}
+      });
+    }
+    return logger;
+  }
+
+  /**
+   * Reports progress at INFO on the org.pankratzlab.progress logger. Set its level to WARNING to
+   * silence the messages, or give it handlers to send them elsewhere.
+   */
+  public static void progress(String message) {
+    PROGRESS.info(message);
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  public List<StageMetrics> getStages() {
+    return stages;
+  }
+
+  /**
+   * Records an output file written by {@link OutputWriters}, from any thread
+   */
+  public void recordFile(String name, long bytes, long nanos) {
+    if (enabled) {
+      synchronized (files) {
+        files.add(new FileMetrics(name, bytes, nanos));
+      }
+    }
+  }
+
+  /**
+   * Starts timing a stage, which ends when the returned {@link Stage} is closed
+   */
+  public Stage stage(String name) {
+    return new Stage(name);
+  }
+
+  @Name("org.pankratzlab.Stage")
+  @Label("Stage")
+  @Category("GeneInfoReader")
+  static class StageEvent extends Event {
+    @Label("Stage")
+    String stage;
+
+    @Label("Items")
+    long items;
+  }
+
+  public class Stage implements AutoCloseable {
+    private final String name;
+    private final StageEvent event = new StageEvent();
+    private final long startNanos;
+    private long startCpuNanos;
+    private long startHeapUsed;
+    private long startReclaimed;
+    private long items = 0;
+
+    private Stage(String name) {
+      this.name = name;
+      event.begin();
+      if (enabled) {
+        heapPools.forEach(MemoryPoolMXBean::resetPeakUsage);
+        startCpuNanos = processCpuNanos();
+        startHeapUsed = heapUsed();
+        startReclaimed = reclaimedBytes.get();
+      }
+      startNanos = System.nanoTime();
+    }
+
+    /**
+     * @param items number of features, genes, lines... the stage processed, for its throughput
+     */
+    public void items(long items) {
+      this.items = items;
+    }
+
+    @Override
+    public void close() {
+      long wallNanos = System.nanoTime() - startNanos;
+      event.end();
+      if (event.shouldCommit()) {
+        event.stage = name;
+        event.items = items;
+        event.commit();
+      }
+      if (!enabled) {
+        return;
+      }
+      long cpuNanos = startCpuNanos < 0 ? -1 : processCpuNanos() - startCpuNanos;
+      long allocated = heapUsed() - startHeapUsed + reclaimedBytes.get() - startReclaimed;
+      long peakHeap = 0;
+      for (MemoryPoolMXBean pool : heapPools) {
+        peakHeap += pool.getPeakUsage().getUsed();
+      }
+      synchronized (stages) {
+        stages.add(new StageMetrics(name, startNanos, wallNanos, cpuNanos, items,
+                                    Math.max(0, allocated), peakHeap));
+      }
+    }
+  }
+
+  private static long processCpuNanos() {
+    OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+    if (os instanceof com.sun.management.OperatingSystemMXBean) {
+      return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+    }
+    return -1;
+  }
+
+  private long heapUsed() {
+    long used = 0;
+    for (MemoryPoolMXBean pool : heapPools) {
+      used += pool.getUsage().getUsed();
+    }
+    return used;
+  }
+
+  public static class StageMetrics {
+    public final String name;
+    // System.nanoTime() at the start
+    public final long startNanos;
+    public final long wallNanos;
+    // -1 if the JVM doesn't report process CPU time
+    public final long cpuNanos;
+    public final long items;
+    public final long allocatedBytes;
+    public final long peakHeapBytes;
+
+    StageMetrics(String name, long startNanos, long wallNanos, long cpuNanos, long items,
+                 long allocatedBytes, long peakHeapBytes) {
+      this.name = name;
+      this.startNanos = startNanos;
+      this.wallNanos = wallNanos;
+      this.cpuNanos = cpuNanos;
+      this.items = items;
+      this.allocatedBytes = allocatedBytes;
+      this.peakHeapBytes = peakHeapBytes;
+    }
+
+    public double getItemsPerSecond() {
+      return wallNanos == 0 ? 0 : items * 1e9 / wallNanos;
+    }
+  }
+
+  public static class FileMetrics {
+    public final String name;
+    public final long bytes;
+    public final long wallNanos;
+
+    FileMetrics(String name, long bytes, long wallNanos) {
+      this.name = name;
+      this.bytes = bytes;
+      this.wallNanos = wallNanos;
+    }
+  }
+
+  private static final String[] COLUMNS = {"stage", "wallMs", "cpuMs", "items", "itemsPerSecond",
+                                           "allocatedBytes", "peakHeapBytes"};
+
+  private static String[] values(StageMetrics stage) {
+    return new String[] {stage.name, millis(stage.wallNanos),
+                         stage.cpuNanos < 0 ? "-1" : millis(stage.cpuNanos),
+                         String.valueOf(stage.items),
+                         String.format(Locale.ROOT, "%.1f", stage.getItemsPerSecond()),
+                         String.valueOf(stage.allocatedBytes),
+                         String.valueOf(stage.peakHeapBytes)};
+  }
+
+  private static String millis(long nanos) {
+    // always a decimal point, whatever the default locale, so the JSON stays valid
+    return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+  }
+
+  /**
+   * @return the time from the start of the first stage to the end of the last. Stages a
+   *         {@link StagePlanner} runs at once overlap, so their wall times don't add up to it.
+   */
+  public long totalWallNanos() {
+    long start = Long.MAX_VALUE;
+    long end = Long.MIN_VALUE;
+    synchronized (stages) {
+      for (StageMetrics stage : stages) {
+        start = Math.min(start, stage.startNanos);
+        end = Math.max(end, stage.startNanos + stage.wallNanos);
+      }
+    }
+    return stages.isEmpty() ? 0 : end - start;
+  }
+
+  public void writeTsv(Path file) throws IOException {
+    try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(file))) {
+      writer.println(String.join("\t", COLUMNS));
+      for (StageMetrics stage : stages) {
+        writer.println(String.join("\t", values(stage)));
+      }
+    }
+  }
+
+  public void writeJson(Path file) throws IOException {
+    try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(file))) {
+      writer.println("{");
+      writer.println("  \"stages\": [");
+      for (int i = 0; i < stages.size(); i++) {
+        String[] values = values(stages.get(i));
+        StringBuilder line = new StringBuilder("    {");
+        for (int c = 0; c < COLUMNS.length; c++) {
+          line.append(c == 0 ? "" : ", ").append('"').append(COLUMNS[c]).append("\": ");
+          // the stage name is the only string, and only ever a plain identifier
+          line.append(c == 0 ? "\"" + values[c] + "\"" : values[c]);
+        }
+        writer.println(line.append(i < stages.size() - 1 ? "}," : "}"));
+      }
+      writer.println("  ],");
+      writer.println("  \"files\": [");
+      synchronized (files) {
+        for (int i = 0; i < files.size(); i++) {
+          FileMetrics written = files.get(i);
+          double seconds = Math.max(written.wallNanos / 1e9, 1e-9);
+          writer.println("    {\"file\": \"" + written.name + "\", \"bytes\": " + written.bytes
+                         + ", \"wallMs\": " + millis(written.wallNanos)
+                         + ", \"bytesPerSecond\": "
+                         + String.format(Locale.ROOT, "%.1f", written.bytes / seconds)
+                         + (i < files.size() - 1 ? "}," : "}"));
+        }
+      }
+      writer.println("  ],");
+      writer.println("  \"totalWallMs\": " + millis(totalWallNanos()));
+      writer.println("}");
+    }
+  }
+}
@@ -0,0 +1,165 @@
+package org.pankratzlab;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs the stages of a run that are needed for what was asked for, each as soon as the stages it
+ * depends on are done, so stages that don't depend on each other run at once. Every stage is
+ * declared up front with the stages it needs, then {@link #require} marks the ones asked for and
+ * {@link #run} runs those and everything they need, and nothing else.
+ * <p>
+ * Stages only share the model through what their dependencies derived, so a stage must not
+ * derive anything lazily that a stage running alongside it reads. Each stage is timed as a
+ * {@link RunMetrics} stage and its wall time printed once it's done. If a stage fails, the stages
+ * that need it are skipped and the failure is thrown from {@link #run} once the rest are done.
+ * <p>
+ * The stages' own threads mostly wait on the work they hand out. Stages that split their work by
+ * chr all hand it to the same pool of the same number of threads, see {@link ChrPartitions}.
+ */
+public class StagePlanner {
+  public interface Work {
+    /**
+     * @return the number of items the stage processed, for its throughput
+     */
+    long run() throws IOException;
+  }
+
+  private static final class Stage {
+    final String name;
+    final Work work;
+    final String[] dependencies;
+
+    Stage(String name, Work work, String[] dependencies) {
+      this.name = name;
+      this.work = work;
+      this.dependencies = dependencies;
+    }
+  }
+
+  private final int threads;
+  private final RunMetrics metrics;
+  // in declaration order, which is the order stages are started in when they could all go
+  private final Map<String, Stage> stages = new LinkedHashMap<>();
+  private final Set<String> required = new LinkedHashSet<>();
+
+  public StagePlanner(int threads, RunMetrics metrics) {
+    this.threads = Math.max(1, threads);
+    this.metrics = metrics;
+  }
+
+  /**
+   * Declares a stage. Its dependencies have to be declared first, which keeps the graph acyclic.
+   */
+  public StagePlanner stage(String name, Work work, String... dependencies) {
+    for (String dependency : dependencies) {
+      if (!stages.containsKey(dependency)) {
+        throw new IllegalArgumentException("Stage " + name + " depends on " + dependency
+                                           + ", which isn't declared before it");
+      }
+    }
+    if (stages.putIfAbsent(name, new Stage(name, work, dependencies)) != null) {
+      throw new IllegalArgumentException("Stage " + name + " is declared twice");
+    }
+    return this;
+  }
+
+  /**
+   * Marks a stage to be run, with everything it depends on
+   */
+  public StagePlanner require(String name) {
+    if (!stages.containsKey(name)) {
+      throw new IllegalArgumentException("No stage " + name);
+    }
+    required.add(name);
+    return this;
+  }
+
+  /**
+   * @return the stages that will run, in declaration order
+   */
+  List<String> plan() {
+    Set<String> needed = new LinkedHashSet<>();
+    for (String name : required) {
+      addWithDependencies(name, needed);
+    }
+    List<String> plan = new ArrayList<>();
+    for (String name : stages.keySet()) {
+      if (needed.contains(name)) {
+        plan.add(name);
+      }
+    }
+    return plan;
+  }
+
+  private void addWithDependencies(String name, Set<String> needed) {
+    if (needed.add(name)) {
+      for (String dependency : stages.get(name).dependencies) {
+        addWithDependencies(dependency, needed);
+      }
+    }
+  }
+
+  /**
+   * Runs the planned stages on up to threads threads and waits for them all
+   */
+  public void run() throws IOException {
+    List<String> plan = plan();
+    RunMetrics.progress("Running " + plan.size() + " stages: " + String.join(", ", plan));
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    Map<String, CompletableFuture<Void>> futures = new LinkedHashMap<>();
+    try {
+      // dependencies are declared first, so they are always in the map already
+      for (String name : plan) {
+        Stage stage = stages.get(name);
+        CompletableFuture<?>[] dependencies = new CompletableFuture<?>[stage.dependencies.length];
+        for (int i = 0; i < dependencies.length; i++) {
+          dependencies[i] = futures.get(stage.dependencies[i]);
+        }
+        futures.put(name, CompletableFuture.allOf(dependencies)
+                                           .thenRunAsync(() -> runStage(stage), pool));
+      }
+      Throwable failure = null;
+      for (CompletableFuture<Void> future : futures.values()) {
+        try {
+          future.join();
+        } catch (CompletionException e) {
+          if (failure == null) {
+            failure = e.getCause();
+          }
+        }
+      }
+      if (failure instanceof UncheckedIOException) {
+        throw ((UncheckedIOException) failure).getCause();
+      } else if (failure instanceof RuntimeException) {
+        throw (RuntimeException) failure;
+      } else if (failure instanceof Error) {
+        throw (Error) failure;
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  private void runStage(Stage stage) {
+    long start = System.nanoTime();
+    try (RunMetrics.Stage timer = metrics.stage(stage.name)) {
+      timer.items(stage.work.run());
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    RunMetrics.progress(String.format(Locale.ROOT, "Stage %s done in %d ms", stage.name,
+                                      (System.nanoTime() - start) / 1_000_000));
+  }
+}
@@ -0,0 +1,108 @@
+package org.pankratzlab;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+
+import org.pankratzlab.common.filesys.GeneData;
+
+/**
+ * Receives finished genes from a streaming {@link Aggregator} and writes them out immediately.
+ * Output is in file order rather than sorted, and only the first main contig gene of each
+ * xRefGeneId goes into the bed files.
+ */
+public class StreamingGeneWriter implements Consumer<BasicFeature>, Closeable {
+  private final Path outputDir;
+
+  private final PrintWriter exonsWriter;
+  private final PrintWriter intronsWriter;
+  private final PrintWriter exonsIntronsWriter;
+  private final PrintWriter genesXlnWriter;
+  private final List<GeneData> geneDatas;
+  private final boolean geneTrack;
+  private final boolean geneTrackBinary;
+
+  private final Set<String> xRefGeneIdsWritten = new HashSet<>();
+
+  public StreamingGeneWriter(Path outputDir, boolean bedExons, boolean bedIntrons,
+                             boolean bedAll, boolean genesXln, boolean geneTrack,
+                             boolean geneTrackBinary) {
+    this.outputDir = outputDir;
+    // same files as the non-streaming path: three with -bedAll, otherwise one
+    boolean bedBoth = bedAll || (bedExons && bedIntrons);
+    this.exonsWriter = bedAll || (bedExons && !bedBoth) ? openWriter("exons.bed") : null;
+    this.intronsWriter = bedAll || (bedIntrons && !bedBoth) ? openWriter("introns.bed") : null;
+    this.exonsIntronsWriter = bedBoth ? openWriter("exons_introns.bed") : null;
+    if (genesXln) {
+      this.genesXlnWriter = openWriter("genes38.xln");
+      this.genesXlnWriter.println(String.join("\t", "id", "name", "chr", "start", "stop"));
+    } else {
+      this.genesXlnWriter = null;
+    }
+    this.geneTrack = geneTrack;
+    this.geneTrackBinary = geneTrackBinary;
+    this.geneDatas = geneTrack || geneTrackBinary ? new ArrayList<>() : null;
+  }
+
+  private PrintWriter openWriter(String filename) {
+    return org.pankratzlab.common.Files.getAppropriateWriter(outputDir.resolve(filename)
+                                                                      .toString());
+  }
+
+  @Override
+  public void accept(BasicFeature gene) {
+    gene.getDescendantExons();
+
+    if (genesXlnWriter != null) {
+      genesXlnWriter.println(gene.toGenesXlnLine());
+    }
+
+    if (!gene.onMainContig) {
+      return;
+    }
+    if (geneDatas != null) {
+      geneDatas.add(gene.toGeneData());
+    }
+    if (xRefGeneIdsWritten.add(gene.xRefGeneId)) {
+      writeBedLines(exonsWriter, gene, true, false);
+      writeBedLines(intronsWriter, gene, false, true);
+      writeBedLines(exonsIntronsWriter, gene, true, true);
+    }
+  }
+
+  private static void writeBedLines(PrintWriter writer, BasicFeature gene, boolean includeExons,
+                                    boolean includeIntrons) {
+    if (writer != null) {
+      gene.toBedLines(includeExons, includeIntrons).forEach(writer::println);
+    }
+  }
+
+  @Override
+  public void close() {
+    for (PrintWriter writer : new PrintWriter[] {exonsWriter, intronsWriter, exonsIntronsWriter,
+                                                 genesXlnWriter}) {
+      if (writer != null) {
+        writer.close();
+      }
+    }
+    if (geneTrack) {
+      RunMetrics.progress("Creating GeneTrack...");
+      Aggregator.writeSerializedGeneTrack(outputDir, geneDatas);
+    }
+    if (geneTrackBinary) {
+      RunMetrics.progress("Creating binary GeneTrack...");
+      try {
+        GeneTrackFile.write(outputDir.resolve(GeneTrackFile.FILE_NAME),
+                            GeneTrackFile.byChr(geneDatas));
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+}
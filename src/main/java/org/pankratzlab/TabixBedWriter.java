@@ -0,0 +1,126 @@
+package org.pankratzlab;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+
+import htsjdk.samtools.util.BlockCompressedFilePointerUtil;
+import htsjdk.tribble.SimpleFeature;
+import htsjdk.tribble.index.Index;
+import htsjdk.tribble.index.tabix.TabixFormat;
+import htsjdk.tribble.index.tabix.TabixIndexCreator;
+
+/**
+ * Writes bed lines to a block gzipped file and builds its tabix index as it goes, so the file can
+ * be queried by region as soon as it is closed, without a separate bgzip and tabix pass. Lines
+ * have to come in order of contig and then start, as tabix needs them; contigs just have to stay
+ * together, in any order.
+ */
+public class TabixBedWriter extends Writer {
+  private final Path indexFile;
+  private final ParallelBgzfOutputStream out;
+  private final TabixIndexCreator indexCreator = new TabixIndexCreator(TabixFormat.BED);
+  private final Charset charset = Charset.defaultCharset();
+  private final StringBuilder line = new StringBuilder();
+  // lines whose block hasn't been written yet, so whose file pointer isn't known
+  private final ArrayDeque<PendingLine> unindexed = new ArrayDeque<>();
+
+  private static final class PendingLine {
+    final String contig;
+    final int start;
+    final int end;
+    final long block;
+    final int offset;
+
+    PendingLine(String contig, int start, int end, long block, int offset) {
+      this.contig = contig;
+      this.start = start;
+      this.end = end;
+      this.block = block;
+      this.offset = offset;
+    }
+  }
+
+  /**
+   * @param compressors pool the blocks are compressed on, which must not be the one this writer
+   *          is used from, or it could end up waiting on itself
+   */
+  public TabixBedWriter(Path file, ExecutorService compressors, int threads) throws IOException {
+    this.indexFile = indexFileFor(file);
+    this.out = new ParallelBgzfOutputStream(OutputWriters.openStream(file), compressors,
+                                            threads * 2, this::index);
+  }
+
+  public static Path indexFileFor(Path file) {
+    return file.resolveSibling(file.getFileName() + ".tbi");
+  }
+
+  @Override
+  public void write(String str, int off, int len) throws IOException {
+    int end = off + len;
+    while (off < end) {
+      int newline = str.indexOf('\n', off);
+      if (newline < 0 || newline >= end) {
+        line.append(str, off, end);
+        return;
+      }
+      line.append(str, off, newline + 1);
+      endLine();
+      off = newline + 1;
+    }
+  }
+
+  @Override
+  public void write(char[] cbuf, int off, int len) throws IOException {
+    write(new String(cbuf, off, len));
+  }
+
+  private void endLine() throws IOException {
+    String text = line.toString();
+    line.setLength(0);
+    int contigEnd = text.indexOf('\t');
+    int startEnd = contigEnd < 0 ? -1 : text.indexOf('\t', contigEnd + 1);
+    if (startEnd > 0) {
+      int endEnd = startEnd + 1;
+      while (endEnd < text.length() && Character.isDigit(text.charAt(endEnd))) {
+        endEnd++;
+      }
+      int start = Integer.parseInt(text, contigEnd + 1, startEnd, 10);
+      int end = Integer.parseInt(text, startEnd + 1, endEnd, 10);
+      unindexed.add(new PendingLine(text.substring(0, contigEnd), start, end, out.currentBlock(),
+                                    out.offsetInBlock()));
+    }
+    out.write(text.getBytes(charset));
+  }
+
+  private void index(long block, long address) {
+    while (!unindexed.isEmpty() && unindexed.peek().block == block) {
+      PendingLine pending = unindexed.poll();
+      // bed starts are 0 based, features 1 based
+      indexCreator.addFeature(new SimpleFeature(pending.contig, pending.start + 1, pending.end),
+                              BlockCompressedFilePointerUtil.makeFilePointer(address,
+                                                                             pending.offset));
+    }
+  }
+
+  @Override
+  public void flush() {
+    // blocks are only written once full, or on close
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      if (line.length() > 0) {
+        endLine();
+      }
+    } finally {
+      out.close();
+    }
+    Index index = indexCreator.finalizeIndex(out.endFilePointer());
+    index.write(indexFile);
+  }
+}
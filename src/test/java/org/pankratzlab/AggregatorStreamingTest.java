@@ -0,0 +1,74 @@
+package org.pankratzlab;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Streaming mode has to hand over every gene with its whole subtree while holding no more than a
+ * few genes' worth of the input, whether or not the input has ### directives
+ */
+class AggregatorStreamingTest {
+  @TempDir
+  Path dir;
+
+  @Test
+  void withoutDirectivesHoldsAFewGenes() throws IOException {
+    GffGenerator generator = new GffGenerator().contigs(3).genesPerContig(200)
+                                               .outOfOrderFraction(0.2).seed(7);
+    Path generated = dir.resolve("generated.gff");
+    generator.write(generated);
+    Path gff = dir.resolve("no-directives.gff");
+    Files.write(gff, Files.readAllLines(generated).stream().filter(line -> !line.equals("###"))
+                          .collect(Collectors.toList()));
+
+    Aggregator parsed = new Aggregator(gff, dir);
+    parsed.findGenesAndExons();
+    List<String> expected = describeAll(parsed.genes);
+
+    List<BasicFeature> streamed = new ArrayList<>();
+    // more than one thread would have picked a parser that can't stream
+    Aggregator streaming = new Aggregator(gff, dir, new ParseOptions().threads(4), streamed::add);
+    assertEquals(expected, describeAll(streamed));
+    assertTrue(streaming.peakReleasedIds > 0);
+    assertTrue(streaming.peakReleasedIds < streaming.featureCount / 20,
+               streaming.peakReleasedIds + " of " + streaming.featureCount + " ids remembered");
+  }
+
+  @Test
+  void lateChildFailsTheRun() throws IOException {
+    Path gff = dir.resolve("late.gff");
+    Files.write(gff, List.of("##gff-version 3",
+                             "NC_000001.11\tBestRefSeq\tgene\t1000\t9000\t.\t+\t.\tID=gene-A;"
+                                 + "Dbxref=GeneID:1;Name=A",
+                             "NC_000001.11\tBestRefSeq\tgene\t20000\t29000\t.\t+\t.\tID=gene-B;"
+                                 + "Dbxref=GeneID:2;Name=B",
+                             "NC_000001.11\tBestRefSeq\texon\t1000\t1500\t.\t+\t.\tID=exon-A-1;"
+                                 + "Parent=gene-A;Dbxref=GeneID:1"));
+    IllegalStateException e = assertThrows(IllegalStateException.class,
+                                           () -> new Aggregator(gff, dir, new ParseOptions(),
+                                                                gene -> {}));
+    assertTrue(e.getMessage().contains("gene-A"), e.getMessage());
+  }
+
+  private static List<String> describeAll(Iterable<BasicFeature> genes) {
+    List<String> described = new ArrayList<>();
+    for (BasicFeature gene : genes) {
+      described.add(gene.id + " " + gene.start + "-" + gene.end + " "
+                    + gene.getDescendantExons().stream().map(exon -> exon.id).sorted()
+                          .collect(Collectors.joining(",")));
+    }
+    described.sort(null);
+    return described;
+  }
+}
@@ -0,0 +1,108 @@
+package org.pankratzlab;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+/**
+ * A truncated or corrupt snapshot has to be ignored, with the input parsed again, rather than
+ * failing the run
+ */
+class AnnotationSnapshotTest {
+  // magic, version, three longs and the coverage byte
+  private static final int HEADER_SIZE = 33;
+
+  @TempDir
+  static Path dir;
+  private static Path gff;
+  private static byte[] intact;
+  private static int genes;
+
+  @BeforeAll
+  static void writeSnapshot() throws IOException {
+    gff = TestGff.write(dir, "small.gff", TestGff.small());
+    genes = aggregate(dir.resolve("intact")).genes.size();
+    intact = Files.readAllBytes(snapshotIn(dir.resolve("intact")));
+  }
+
+  @Test
+  void loadsAnIntactSnapshot() throws IOException {
+    Path snapshot = write("reloaded", intact);
+    AnnotationSnapshot loaded = AnnotationSnapshot.load(snapshot, gff,
+                                                        AnnotationSnapshot.EVERYTHING);
+    assertNotNull(loaded);
+    assertEquals(genes, loaded.genes.size());
+    assertEquals(genes, AnnotationSnapshot.load(snapshot, AnnotationSnapshot.EVERYTHING)
+                                          .genes.size());
+  }
+
+  @ParameterizedTest
+  @ValueSource(ints = {0, 7, HEADER_SIZE - 1, HEADER_SIZE, HEADER_SIZE + 6, 1000, -1})
+  void ignoresATruncatedSnapshot(int length) throws IOException {
+    byte[] truncated = Arrays.copyOf(intact, length < 0 ? intact.length + length : length);
+    assertIgnored("truncated" + length, truncated);
+  }
+
+  @ParameterizedTest
+  @ValueSource(ints = {-1, Integer.MAX_VALUE, 1 << 20})
+  void ignoresACorruptCount(int count) throws IOException {
+    byte[] stringCount = intact.clone();
+    ByteBuffer.wrap(stringCount).putInt(HEADER_SIZE, count);
+    assertIgnored("strings" + count, stringCount);
+    byte[] firstStringLength = intact.clone();
+    ByteBuffer.wrap(firstStringLength).putInt(HEADER_SIZE + Integer.BYTES, count);
+    assertIgnored("length" + count, firstStringLength);
+  }
+
+  @Test
+  void ignoresABadStringIndex() throws IOException {
+    byte[] corrupt = intact.clone();
+    // the id of the last exon of the last gene
+    ByteBuffer.wrap(corrupt).putInt(corrupt.length - 8 * Integer.BYTES - 1, 1 << 24);
+    assertIgnored("index", corrupt);
+  }
+
+  @Test
+  void ignoresTrailingBytes() throws IOException {
+    assertIgnored("trailing", Arrays.copyOf(intact, intact.length + 3));
+  }
+
+  private static void assertIgnored(String name, byte[] contents) throws IOException {
+    Path snapshot = write(name, contents);
+    assertNull(AnnotationSnapshot.load(snapshot, gff, AnnotationSnapshot.EVERYTHING));
+    assertThrows(IOException.class,
+                 () -> AnnotationSnapshot.load(snapshot, AnnotationSnapshot.EVERYTHING));
+    // the run parses the input again and replaces the snapshot
+    assertEquals(genes, aggregate(snapshot.getParent()).genes.size());
+    assertEquals(genes, AnnotationSnapshot.load(snapshot, gff, AnnotationSnapshot.EVERYTHING)
+                                          .genes.size());
+  }
+
+  private static Path write(String name, byte[] contents) throws IOException {
+    Path snapshot = snapshotIn(Files.createDirectories(dir.resolve(name)));
+    Files.write(snapshot, contents);
+    return snapshot;
+  }
+
+  private static Aggregator aggregate(Path outputDir) throws IOException {
+    Files.createDirectories(outputDir);
+    return new Aggregator(gff, outputDir, new ParseOptions().snapshot(true), null);
+  }
+
+  private static Path snapshotIn(Path outputDir) {
+    return AnnotationSnapshot.snapshotFileFor(gff, outputDir);
+  }
+}
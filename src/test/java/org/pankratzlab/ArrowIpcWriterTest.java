@@ -0,0 +1,206 @@
+package org.pankratzlab;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.arrow.memory.RootAllocator;
+import org.apache.arrow.vector.FieldVector;
+import org.apache.arrow.vector.VectorSchemaRoot;
+import org.apache.arrow.vector.ipc.ArrowFileReader;
+import org.apache.arrow.vector.ipc.message.ArrowBlock;
+import org.apache.arrow.vector.types.pojo.ArrowType;
+import org.apache.arrow.vector.types.pojo.Field;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * The Arrow files are encoded by hand, so they are read back here with arrow-java itself: the
+ * schema, every value of every record batch, nulls and UTF-8 included, and for the output tables
+ * the same genes, exons and introns as the text outputs
+ */
+class ArrowIpcWriterTest {
+  private static final List<ArrowIpcWriter.Column> SCHEMA =
+      List.of(new ArrowIpcWriter.Column("b", ArrowIpcWriter.ColumnType.INT8),
+              new ArrowIpcWriter.Column("i", ArrowIpcWriter.ColumnType.INT32),
+              new ArrowIpcWriter.Column("s", ArrowIpcWriter.ColumnType.UTF8));
+
+  @TempDir
+  Path dir;
+
+  /**
+   * One record batch, its rows as Byte, Integer and String values, null for a null
+   */
+  private static final class Table {
+    List<Field> fields;
+    final List<List<List<Object>>> batches = new ArrayList<>();
+
+    List<List<Object>> rows() {
+      List<List<Object>> rows = new ArrayList<>();
+      batches.forEach(rows::addAll);
+      return rows;
+    }
+  }
+
+  @Test
+  void emptyTable() throws IOException {
+    Path file = dir.resolve("empty.arrow");
+    new ArrowIpcWriter(file, SCHEMA).close();
+    Table table = read(file);
+    assertSchema(SCHEMA, table.fields);
+    assertEquals(0, table.batches.size());
+  }
+
+  @Test
+  void severalBatches() throws IOException {
+    List<List<List<Object>>> expected = new ArrayList<>();
+    expected.add(List.of(row((byte) 1, 1, "a"), row(Byte.MIN_VALUE, Integer.MIN_VALUE, null),
+                         row(Byte.MAX_VALUE, Integer.MAX_VALUE, "")));
+    expected.add(List.of(row((byte) 0, -7, "\u00e9t\u00e9 \u65e5\u672c \ud83e\uddec")));
+    expected.add(List.of());
+    List<List<Object>> large = new ArrayList<>();
+    for (int i = 0; i < 1000; i++) {
+      // a null every few rows, so the validity bitmap spans several bytes
+      large.add(row((byte) (i % 100), i * 31, i % 7 == 0 ? null : "row" + i));
+    }
+    expected.add(large);
+
+    Path file = dir.resolve("batches.arrow");
+    try (ArrowIpcWriter out = new ArrowIpcWriter(file, SCHEMA)) {
+      for (List<List<Object>> rows : expected) {
+        ArrowIpcWriter.Batch batch = new ArrowIpcWriter.Batch(SCHEMA);
+        for (List<Object> row : rows) {
+          batch.addByte(0, (Byte) row.get(0)).addInt(1, (Integer) row.get(1))
+               .addString(2, (String) row.get(2));
+        }
+        out.write(batch);
+      }
+    }
+    Table table = read(file);
+    assertSchema(SCHEMA, table.fields);
+    assertEquals(expected, table.batches);
+  }
+
+  @Test
+  void outputTablesMatchTextOutputs() throws IOException {
+    Path gff = TestGff.write(dir, "small.gff", TestGff.small());
+    Path outputDir = Files.createDirectories(dir.resolve("out"));
+    Aggregator aggregator = new Aggregator(gff, outputDir, new ParseOptions(), null);
+    OutputOptions outputs = new OutputOptions().qc(false).genesXln(true).bedAll(true).arrow(true);
+    Main.writeOutputs(aggregator, outputs, RunMetrics.DISABLED);
+
+    Table genes = read(outputDir.resolve("genes.arrow"));
+    Table exons = read(outputDir.resolve("exons.arrow"));
+    Table introns = read(outputDir.resolve("introns.arrow"));
+    Set<String> geneIds = new HashSet<>();
+    for (Table table : List.of(genes, exons, introns)) {
+      assertSchema(Aggregator.ARROW_SCHEMA, table.fields);
+      assertTrue(table.batches.size() > 1);
+    }
+    // a record batch per chr; genes.arrow has a grouping's alt copies with it, off its chr
+    for (Table table : List.of(exons, introns)) {
+      for (List<List<Object>> batch : table.batches) {
+        assertEquals(1, batch.stream().map(row -> row.get(0)).distinct().count());
+      }
+    }
+
+    List<String> xln = new ArrayList<>();
+    for (List<Object> row : genes.rows()) {
+      assertNull(row.get(6));
+      geneIds.add((String) row.get(5));
+      String xRefGeneId = (String) row.get(5);
+      xln.add(String.join("\t", xRefGeneId.substring(xRefGeneId.indexOf(':') + 1),
+                          (String) row.get(4), String.valueOf(row.get(0)),
+                          String.valueOf(row.get(1)), String.valueOf(row.get(2))));
+    }
+    List<String> xlnLines = Files.readAllLines(outputDir.resolve("genes38.xln"));
+    assertEquals(sorted(xlnLines.subList(1, xlnLines.size())), sorted(xln));
+
+    assertEquals(sorted(Files.readAllLines(outputDir.resolve("exons.bed"))),
+                 sorted(bedLines(exons, geneIds)));
+    assertEquals(sorted(Files.readAllLines(outputDir.resolve("introns.bed"))),
+                 sorted(bedLines(introns, geneIds)));
+  }
+
+  private static List<String> bedLines(Table table, Set<String> xRefGeneIds) {
+    List<String> lines = new ArrayList<>();
+    for (List<Object> row : table.rows()) {
+      assertNotNull(row.get(6), "parentGene of " + row);
+      assertTrue(xRefGeneIds.contains(row.get(5)));
+      byte chr = (Byte) row.get(0);
+      String chrName = chr == 23 ? "X" : chr == 24 ? "Y" : String.valueOf(chr);
+      lines.add(String.join("\t", "chr" + chrName, String.valueOf(row.get(1)),
+                            String.valueOf(row.get(2)), (String) row.get(4)));
+    }
+    return lines;
+  }
+
+  private static List<String> sorted(List<String> lines) {
+    List<String> sorted = new ArrayList<>(lines);
+    sorted.sort(null);
+    return sorted;
+  }
+
+  private static void assertSchema(List<ArrowIpcWriter.Column> expected, List<Field> fields) {
+    assertEquals(expected.size(), fields.size());
+    for (int i = 0; i < fields.size(); i++) {
+      ArrowIpcWriter.Column column = expected.get(i);
+      Field field = fields.get(i);
+      assertEquals(column.name, field.getName());
+      switch (column.type) {
+        case INT8:
+          assertEquals(new ArrowType.Int(8, true), field.getType());
+          assertEquals(false, field.isNullable());
+          break;
+        case INT32:
+          assertEquals(new ArrowType.Int(32, true), field.getType());
+          assertEquals(false, field.isNullable());
+          break;
+        default:
+          assertEquals(ArrowType.Utf8.INSTANCE, field.getType());
+          assertEquals(true, field.isNullable());
+      }
+    }
+  }
+
+  private static List<Object> row(Byte b, Integer i, String s) {
+    return Arrays.asList(b, i, s);
+  }
+
+  private static Table read(Path file) throws IOException {
+    Table table = new Table();
+    try (BufferAllocator allocator = new RootAllocator();
+        FileChannel channel = FileChannel.open(file);
+        ArrowFileReader reader = new ArrowFileReader(channel, allocator)) {
+      VectorSchemaRoot root = reader.getVectorSchemaRoot();
+      table.fields = root.getSchema().getFields();
+      for (ArrowBlock block : reader.getRecordBlocks()) {
+        reader.loadRecordBatch(block);
+        List<List<Object>> rows = new ArrayList<>();
+        for (int r = 0; r < root.getRowCount(); r++) {
+          List<Object> row = new ArrayList<>();
+          for (FieldVector vector : root.getFieldVectors()) {
+            Object value = vector.getObject(r);
+            // VarCharVector gives Text
+            row.add(value == null || value instanceof Number ? value : value.toString());
+          }
+          rows.add(row);
+        }
+        table.batches.add(rows);
+      }
+    }
+    return table;
+  }
+}
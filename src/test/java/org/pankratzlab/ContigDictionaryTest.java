@@ -0,0 +1,139 @@
+package org.pankratzlab;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Chrs have to be numbered from the assembly's own molecules: Genvisis numbers for human, and for
+ * other species every molecule a chr of its own, whatever it is called
+ */
+class ContigDictionaryTest {
+  private static final String REPORT_HEADER = "# Sequence-Name\tSequence-Role\tAssigned-Molecule"
+                                              + "\tAssigned-Molecule-Location/Type\tGenBank-Accn"
+                                              + "\tRelationship\tRefSeq-Accn\tAssembly-Unit"
+                                              + "\tSequence-Length\tUCSC-style-name";
+
+  @TempDir
+  Path dir;
+
+  @AfterEach
+  void restoreGrch38() {
+    ContigDictionary.use(ContigDictionary.grch38());
+  }
+
+  @Test
+  void grch38HasGenvisisNumbers() {
+    ContigDictionary grch38 = ContigDictionary.grch38();
+    assertEquals(7, grch38.lookup("NC_000007.14").chr);
+    assertEquals(23, grch38.lookup("NC_000023.11").chr);
+    assertEquals(24, grch38.lookup("NC_000024.10").chr);
+    assertEquals(26, grch38.lookup("NC_012920.1").chr);
+    assertEquals(0, grch38.lookup("NT_187361.1").chr);
+    assertEquals("X", grch38.molecule(23));
+    assertTrue(grch38.isMitochondrion(26));
+    assertEquals(23, grch38.chr("chrX"));
+    assertEquals(23, grch38.chr("23"));
+    assertEquals(26, grch38.chr("chrM"));
+    assertThrows(IllegalArgumentException.class, () -> grch38.chr("W"));
+  }
+
+  @Test
+  void dogKeepsAutosomesAbove22() throws IOException {
+    List<String> lines = new ArrayList<>();
+    for (int chr = 1; chr <= 38; chr++) {
+      lines.add("chr" + chr + "\t" + chr);
+    }
+    lines.add("chrX\tX");
+    lines.add("chrM\tM");
+    ContigDictionary dog = ContigDictionary.load(Files.write(dir.resolve("dog.tsv"), lines));
+
+    assertEquals(23, dog.lookup("chr23").chr);
+    assertEquals(26, dog.lookup("chr26").chr);
+    assertFalse(dog.isMitochondrion(26));
+    assertEquals(39, dog.lookup("chrX").chr);
+    assertEquals(40, dog.lookup("chrM").chr);
+    assertTrue(dog.isMitochondrion(40));
+    assertEquals(40, dog.maxChr());
+
+    ContigDictionary.use(dog);
+    assertEquals(List.of("chr26\t1000\t2000\tG26_i_0"), gene("chr26").toBedLines(true, true));
+    assertEquals(List.of("chrX\t1000\t2000\tGX_i_0"), gene("chrX").toBedLines(true, true));
+    assertEquals(List.of(), gene("chrM").toBedLines(true, true));
+  }
+
+  @Test
+  void chickenAndChimpanzeeMolecules() throws IOException {
+    Path chicken = Files.write(dir.resolve("chicken_assembly_report.txt"),
+                               List.of(REPORT_HEADER,
+                                       report("1", "Chromosome", "CM000093.5", "NC_006088.5",
+                                              "chr1"),
+                                       report("33", "Chromosome", "CM000125.4", "NC_008465.4",
+                                              "chr33"),
+                                       report("W", "Chromosome", "CM000121.5", "NC_006126.5",
+                                              "chrW"),
+                                       report("Z", "Chromosome", "CM000122.5", "NC_006127.5",
+                                              "chrZ"),
+                                       report("MT", "Mitochondrion", "na", "NC_053523.1",
+                                              "chrM"),
+                                       "Un_1\tunplaced-scaffold\tna\tna\tJAENSK010000001.1\t=\t"
+                                                                         + "NW_024095834.1\t"
+                                                                         + "Primary Assembly\t"
+                                                                         + "1000\tchrUn_1"));
+    ContigDictionary dictionary = ContigDictionary.load(chicken);
+    assertEquals(1, dictionary.lookup("NC_006088.5").chr);
+    assertEquals(1, dictionary.lookup("chr1").chr);
+    assertEquals(33, dictionary.lookup("CM000125.4").chr);
+    assertEquals(26, dictionary.lookup("NC_053523.1").chr);
+    assertTrue(dictionary.isMitochondrion(26));
+    byte w = dictionary.lookup("NC_006126.5").chr;
+    byte z = dictionary.lookup("chrZ").chr;
+    assertEquals("W", dictionary.molecule(w));
+    assertEquals("Z", dictionary.molecule(z));
+    assertEquals(Set.of(34, 35), new HashSet<>(List.of((int) w, (int) z)));
+    assertEquals(0, dictionary.lookup("NW_024095834.1").chr);
+
+    ContigDictionary chimpanzee = ContigDictionary.load(Files.write(dir.resolve("chimp.tsv"),
+                                                                    List.of("chr1\t1", "chr2A\t2A",
+                                                                            "chr2B\t2B",
+                                                                            "chr3\t3",
+                                                                            "chrX\tX")));
+    assertEquals(23, chimpanzee.lookup("chrX").chr);
+    assertEquals(24, chimpanzee.lookup("chr2A").chr);
+    assertEquals(25, chimpanzee.lookup("chr2B").chr);
+    assertEquals(24, chimpanzee.chr("chr2a"));
+  }
+
+  @Test
+  void contigOnTwoMoleculesFails() throws IOException {
+    Path file = Files.write(dir.resolve("conflict.tsv"), List.of("chr1\t1", "chr2\t2", "chr1\t2"));
+    IllegalArgumentException e = assertThrows(IllegalArgumentException.class,
+                                              () -> ContigDictionary.load(file));
+    assertTrue(e.getMessage().startsWith("Line 3 of "), e.getMessage());
+  }
+
+  private static String report(String molecule, String type, String genBank, String refSeq,
+                               String ucsc) {
+    return String.join("\t", molecule, "assembled-molecule", molecule, type, genBank, "=", refSeq,
+                       "Primary Assembly", "1000000", ucsc);
+  }
+
+  private static BasicFeature gene(String contig) {
+    String name = "G" + contig.substring(3);
+    return new BasicFeature("gene-" + name, null, "gene", 1000, 2000, name, contig, (byte) 1,
+                            "GeneID:1");
+  }
+}
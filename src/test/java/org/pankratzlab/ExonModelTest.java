@@ -0,0 +1,89 @@
+package org.pankratzlab;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * The introns have to be exactly the bases of the gene that no exon covers, however the exons of
+ * its transcripts overlap, nest, touch or repeat each other
+ */
+class ExonModelTest {
+  private static final BasicFeature GENE = feature("gene", 1, 1000);
+
+  @Test
+  void overlappingAndAdjacentExons() {
+    ExonModel model = new ExonModel(GENE, List.of(feature("exon", 500, 600),
+                                                  feature("exon", 100, 200),
+                                                  // inside the one before
+                                                  feature("exon", 150, 180),
+                                                  // overlaps the first one's end
+                                                  feature("exon", 190, 300),
+                                                  // starts right after the one before ends
+                                                  feature("exon", 301, 400),
+                                                  feature("exon", 500, 600),
+                                                  feature("exon", 700, 999)));
+    assertEquals(List.of("100-200", "150-180", "190-300", "301-400", "500-600", "700-999"),
+                 exons(model));
+    assertEquals(List.of("100-400", "500-600", "700-999"), blocks(model));
+    assertEquals(List.of("1-99", "401-499", "601-699", "1000-1000"), introns(model));
+  }
+
+  @Test
+  void nestedExonDoesNotReopenAnIntron() {
+    ExonModel model = new ExonModel(GENE, List.of(feature("exon", 1, 800),
+                                                  feature("exon", 100, 200),
+                                                  feature("exon", 300, 400),
+                                                  feature("exon", 900, 1000)));
+    assertEquals(List.of("1-800", "900-1000"), blocks(model));
+    assertEquals(List.of("801-899"), introns(model));
+  }
+
+  @Test
+  void touchingExonsLeaveNoIntron() {
+    ExonModel model = new ExonModel(GENE, List.of(feature("exon", 1, 500),
+                                                  feature("exon", 501, 1000)));
+    assertEquals(List.of("1-1000"), blocks(model));
+    assertEquals(List.of(), introns(model));
+  }
+
+  @Test
+  void geneWithoutExonsIsOneIntron() {
+    ExonModel model = new ExonModel(GENE, List.of());
+    assertEquals(0, model.exonCount());
+    assertEquals(0, model.blockCount());
+    assertEquals(List.of("1-1000"), introns(model));
+  }
+
+  private static BasicFeature feature(String type, int start, int end) {
+    return new BasicFeature(type + "-" + start + "-" + end, null, type, start, end, type,
+                            "NC_000001.11", (byte) 1, "1");
+  }
+
+  private static List<String> exons(ExonModel model) {
+    List<String> exons = new ArrayList<>();
+    for (int i = 0; i < model.exonCount(); i++) {
+      exons.add(model.start(i) + "-" + model.end(i));
+    }
+    return exons;
+  }
+
+  private static List<String> introns(ExonModel model) {
+    List<String> introns = new ArrayList<>();
+    for (int i = model.exonCount(); i < model.size(); i++) {
+      introns.add(model.start(i) + "-" + model.end(i));
+    }
+    return introns;
+  }
+
+  private static List<String> blocks(ExonModel model) {
+    List<String> blocks = new ArrayList<>();
+    for (int i = 0; i < model.blockCount(); i++) {
+      blocks.add(model.blockStart(i) + "-" + model.blockEnd(i));
+    }
+    return blocks;
+  }
+}
@@ -0,0 +1,75 @@
+package org.pankratzlab;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Parsing only what the outputs need, with the features between a gene and its exons kept as bare
+ * links, has to give the same files as parsing everything. The input has exons below one and two
+ * dropped features, exons ahead of their transcripts and exons right below their gene.
+ */
+class FeatureProjectionTest {
+  @TempDir
+  Path dir;
+
+  @ParameterizedTest
+  @ValueSource(booleans = {false, true})
+  void genesXlnOnly(boolean fastParse) throws IOException {
+    assertProjectedMatchesFull(new OutputOptions().qc(false).genesXln(true),
+                               FeatureProjection.forOutputs(false, false, true, false), fastParse);
+  }
+
+  @ParameterizedTest
+  @ValueSource(booleans = {false, true})
+  void bedFiles(boolean fastParse) throws IOException {
+    assertProjectedMatchesFull(new OutputOptions().qc(false).bedAll(true),
+                               FeatureProjection.forOutputs(false, false, false, true), fastParse);
+  }
+
+  @ParameterizedTest
+  @ValueSource(booleans = {false, true})
+  void geneTracks(boolean fastParse) throws IOException {
+    assertProjectedMatchesFull(new OutputOptions().qc(false).geneTrack(true)
+                                                  .geneTrackBinary(true),
+                               FeatureProjection.forOutputs(false, true, false, false), fastParse);
+  }
+
+  @ParameterizedTest
+  @ValueSource(booleans = {false, true})
+  void qcWithEverythingElse(boolean fastParse) throws IOException {
+    FeatureProjection projection = FeatureProjection.forOutputs(true, true, true, true);
+    assertTrue(projection.keepsAll(), "QC reports duplicate ids across every feature");
+    assertProjectedMatchesFull(new OutputOptions().qc(true).genesXln(true).bedAll(true)
+                                                  .geneTrack(true).geneTrackBinary(true),
+                               projection, fastParse);
+  }
+
+  private void assertProjectedMatchesFull(OutputOptions outputs, FeatureProjection projection,
+                                          boolean fastParse) throws IOException {
+    Path gff = TestGff.write(dir, "small.gff", TestGff.small());
+    Aggregator full = writeOutputs(gff, outputs, FeatureProjection.ALL, fastParse, "full");
+    Aggregator projected = writeOutputs(gff, outputs, projection, fastParse, "projected");
+    if (!projection.keepsAll()) {
+      assertTrue(projected.featureCount < full.featureCount, "nothing was projected away");
+    }
+    TestOutputs.assertSameOutputs(dir.resolve("full"), dir.resolve("projected"));
+  }
+
+  private Aggregator writeOutputs(Path gff, OutputOptions outputs, FeatureProjection projection,
+                                  boolean fastParse, String name) throws IOException {
+    Path outputDir = Files.createDirectories(dir.resolve(name));
+    Aggregator aggregator = new Aggregator(gff, outputDir,
+                                           new ParseOptions().projection(projection)
+                                                             .fastParse(fastParse),
+                                           null);
+    Main.writeOutputs(aggregator, outputs, RunMetrics.DISABLED);
+    return aggregator;
+  }
+}
@@ -0,0 +1,103 @@
+package org.pankratzlab;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.openjdk.jol.info.GraphLayout;
+
+/**
+ * A compact parse has to hold the annotation in much less memory than the default one, both
+ * straight after parsing and once the genes are derived and grouped, and write the same files.
+ * Sizes are the retained object graph of the {@link Aggregator}, measured with JOL.
+ */
+class FeatureStoreTest {
+  @TempDir
+  static Path dir;
+  private static Path gff;
+
+  @BeforeAll
+  static void writeInput() throws IOException {
+    // big enough that the store's initial capacity doesn't dominate
+    gff = TestGff.write(dir, "medium.gff", new GffGenerator().genesPerContig(100)
+                                                             .outOfOrderFraction(0.1));
+  }
+
+  @Test
+  void compactHoldsEveryFeatureInLessMemory() throws IOException {
+    assertSmallerFootprint(FeatureProjection.ALL, 0.5, 0.6);
+  }
+
+  @Test
+  void compactHoldsGenesAndExonsInLessMemory() throws IOException {
+    assertSmallerFootprint(FeatureProjection.forOutputs(false, false, false, true), 0.7, 0.85);
+  }
+
+  @Test
+  void compactWritesTheSameOutputs() throws IOException {
+    assertSameOutputs(gff, "");
+  }
+
+  @Test
+  void compactKeepsTheLastOfDuplicateIds() throws IOException {
+    // a tenth of the genes and exons repeat the id before them
+    Path duplicates = TestGff.write(dir, "duplicates.gff", TestGff.small());
+    assertSameOutputs(duplicates, "duplicates-");
+  }
+
+  private static void assertSameOutputs(Path input, String prefix) throws IOException {
+    OutputOptions outputs = new OutputOptions().qc(true).genesXln(true).bedAll(true)
+                                               .geneTrack(true).geneTrackBinary(true);
+    Aggregator standard = parse(input, prefix + "default", FeatureProjection.ALL, false);
+    Aggregator compact = parse(input, prefix + "compact", FeatureProjection.ALL, true);
+    assertEquals(standard.featureCount, compact.featureCount);
+    assertEquals(standard.duplicateIds, compact.duplicateIds);
+    Main.writeOutputs(standard, outputs, RunMetrics.DISABLED);
+    Main.writeOutputs(compact, outputs, RunMetrics.DISABLED);
+    assertEquals(standard.genes.size(), compact.genes.size());
+    TestOutputs.assertSameOutputs(dir.resolve(prefix + "default"),
+                                  dir.resolve(prefix + "compact"));
+  }
+
+  /**
+   * @param parsedRatio most the compact parse may retain right after parsing, as a share of the
+   *          default parse
+   * @param groupedRatio the same once both have derived and grouped their genes
+   */
+  private static void assertSmallerFootprint(FeatureProjection projection, double parsedRatio,
+                                             double groupedRatio) throws IOException {
+    Aggregator standard = parse(gff, "default", projection, false);
+    Aggregator compact = parse(gff, "compact", projection, true);
+    long standardParsed = GraphLayout.parseInstance(standard).totalSize();
+    long compactParsed = GraphLayout.parseInstance(compact).totalSize();
+    standard.deriveAndGroupByChr(false);
+    compact.deriveAndGroupByChr(false);
+    assertEquals(standard.genes.size(), compact.genes.size());
+    long standardGrouped = GraphLayout.parseInstance(standard).totalSize();
+    long compactGrouped = GraphLayout.parseInstance(compact).totalSize();
+    System.out.println(String.format(Locale.ROOT,
+                                     "Parsed: %,d bytes, compact %,d. Grouped: %,d bytes, "
+                                                  + "compact %,d",
+                                     standardParsed, compactParsed, standardGrouped,
+                                     compactGrouped));
+    assertTrue(compactParsed < standardParsed * parsedRatio,
+               "compact parse retains " + compactParsed + " bytes, default " + standardParsed);
+    assertTrue(compactGrouped < standardGrouped * groupedRatio,
+               "compact genes retain " + compactGrouped + " bytes, default " + standardGrouped);
+  }
+
+  private static Aggregator parse(Path input, String outputName, FeatureProjection projection,
+                                  boolean compact) throws IOException {
+    Path outputDir = Files.createDirectories(dir.resolve(outputName));
+    return new Aggregator(input, outputDir, new ParseOptions().projection(projection)
+                                                               .fastParse(true).compact(compact),
+                          null);
+  }
+}
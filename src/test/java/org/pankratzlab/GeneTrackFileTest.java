@@ -0,0 +1,93 @@
+package org.pankratzlab;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.pankratzlab.common.filesys.GeneData;
+import org.pankratzlab.common.filesys.GeneTrack;
+
+/**
+ * GeneTrack.bin, loaded through its memory mapping, has to hold exactly the genes of the Java
+ * serialized GeneTrack.ser written from the same genes, in the same order and field for field
+ */
+class GeneTrackFileTest {
+  @TempDir
+  Path dir;
+
+  @Test
+  void binaryTrackMatchesSerializedTrack() throws IOException {
+    Path gff = TestGff.write(dir, "small.gff", TestGff.small().genesPerContig(30));
+    Path outputDir = Files.createDirectories(dir.resolve("out"));
+    Aggregator aggregator = new Aggregator(gff, outputDir, new ParseOptions(), null);
+    OutputOptions outputs = new OutputOptions().qc(false).geneTrack(true).geneTrackBinary(true);
+    Main.writeOutputs(aggregator, outputs, RunMetrics.DISABLED);
+
+    Path binFile = outputDir.resolve(GeneTrackFile.FILE_NAME);
+    GeneData[][] expected = GeneTrack.load(outputDir.resolve("GeneTrack.ser").toString())
+                                     .getGenes();
+    GeneData[][] actual = GeneTrackFile.load(binFile);
+    int genes = 0;
+    for (int chr = 0; chr < Math.max(expected.length, actual.length); chr++) {
+      GeneData[] expectedChr = chr < expected.length ? expected[chr] : new GeneData[0];
+      GeneData[] actualChr = chr < actual.length ? actual[chr] : new GeneData[0];
+      assertSameGenes(expectedChr, actualChr, "chr " + chr);
+      // a single chr, decoded on its own
+      assertSameGenes(expectedChr, GeneTrackFile.load(binFile, chr), "chr " + chr + " alone");
+      genes += expectedChr.length;
+    }
+    assertTrue(genes > 50, "only " + genes + " genes in the track");
+    assertEquals(0, GeneTrackFile.load(binFile, actual.length).length);
+    assertEquals(0, GeneTrackFile.load(binFile, -1).length);
+  }
+
+  /**
+   * Genes as parsed all share some fields, such as multiLoc and the flags, so these vary every
+   * field a GeneData has
+   */
+  @Test
+  void everyFieldRoundTrips() throws IOException {
+    byte plus = GeneData.PLUS_STRAND;
+    byte minus = GeneData.MINUS_STRAND;
+    List<GeneData> genes = List.of(new GeneData("A1", new String[] {"NM_1", "NM_2"}, (byte) 1,
+                                                true, plus, 100, 900,
+                                                new int[][] {{100, 200}, {500, 900}}, (byte) 0,
+                                                false),
+                                   new GeneData("B\u00e9ta", new String[0], (byte) 1, false,
+                                                minus, 100, 400, new int[][] {{100, 400}},
+                                                (byte) 2, true),
+                                   new GeneData("", null, (byte) 23, true,
+                                                GeneData.BOTH_STRANDS, 5, 5, new int[0][],
+                                                (byte) 1, true),
+                                   new GeneData("MT1", new String[] {"NC_012920.1"}, (byte) 26,
+                                                false, plus, 1, Integer.MAX_VALUE,
+                                                new int[][] {{1, 2}, {1, 3}}, (byte) -1, false));
+    Aggregator.writeSerializedGeneTrack(dir, genes);
+    Path binFile = dir.resolve(GeneTrackFile.FILE_NAME);
+    GeneTrackFile.write(binFile, GeneTrackFile.byChr(genes));
+
+    GeneData[][] expected = GeneTrack.load(dir.resolve("GeneTrack.ser").toString()).getGenes();
+    GeneData[][] actual = GeneTrackFile.load(binFile);
+    for (int chr = 0; chr < Math.max(expected.length, actual.length); chr++) {
+      GeneData[] expectedChr = chr < expected.length ? expected[chr] : new GeneData[0];
+      GeneData[] actualChr = chr < actual.length ? actual[chr] : new GeneData[0];
+      assertSameGenes(expectedChr, actualChr, "chr " + chr);
+      assertSameGenes(expectedChr, GeneTrackFile.load(binFile, chr), "chr " + chr + " alone");
+    }
+  }
+
+  private static void assertSameGenes(GeneData[] expected, GeneData[] actual, String chr) {
+    assertEquals(expected.length, actual.length, chr + " gene count");
+    for (int i = 0; i < expected.length; i++) {
+      assertNull(GeneTrackFile.difference(expected[i], actual[i]),
+                 chr + " gene " + i + " " + expected[i].getGeneName());
+    }
+  }
+}
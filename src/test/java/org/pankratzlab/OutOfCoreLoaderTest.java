@@ -0,0 +1,48 @@
+package org.pankratzlab;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Spilling the input to partitions and loading them one by one has to give the same gene sets,
+ * bed files and xln as parsing it all into memory, for a plain and a bgzipped input, with either
+ * parser and with room for one partition at a time or all of them
+ */
+class OutOfCoreLoaderTest {
+  private static final FeatureProjection PROJECTION = FeatureProjection.forOutputs(false, true,
+                                                                                   true, true);
+
+  @TempDir
+  Path dir;
+
+  @ParameterizedTest
+  @CsvSource({"1, false, false, 1", "4, false, false, 1024", "4, true, false, 1",
+              "4, false, true, 1", "4, true, true, 1024"})
+  void matchesInMemory(int threads, boolean fastParse, boolean bgzip, int budgetMb)
+      throws IOException {
+    Path gff = TestGff.write(dir, "small.gff", TestGff.small());
+    if (bgzip) {
+      gff = TestGff.bgzip(gff, dir.resolve("small.gff.gz"), 4096);
+    }
+    ParseOptions options = new ParseOptions().projection(PROJECTION).fastParse(fastParse)
+                                             .threads(threads);
+    OutputOptions outputs = new OutputOptions().qc(false).genesXln(true).bedAll(true)
+                                               .geneTrack(true).geneTrackBinary(true)
+                                               .threads(threads);
+
+    Path inMemoryDir = Files.createDirectories(dir.resolve("inMemory"));
+    Main.writeOutputs(new Aggregator(gff, inMemoryDir, options, null), outputs,
+                      RunMetrics.DISABLED);
+    Path outOfCoreDir = Files.createDirectories(dir.resolve("outOfCore"));
+    Main.writeOutputs(OutOfCoreLoader.load(gff, outOfCoreDir, options, (long) budgetMb << 20,
+                                           RunMetrics.DISABLED),
+                      outputs, RunMetrics.DISABLED);
+
+    TestOutputs.assertSameOutputs(inMemoryDir, outOfCoreDir);
+  }
+}
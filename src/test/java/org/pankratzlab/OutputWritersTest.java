@@ -0,0 +1,187 @@
+package org.pankratzlab;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.tribble.readers.TabixReader;
+
+/**
+ * Files written at once through {@link Main#writeOutputs} are checked against expected files
+ * checked in under pinned/expected, which the baseline code wrote from pinned/pinned.gff. The
+ * exceptions are introns.bed and exons_introns.bed: where one exon lies inside a longer one, the
+ * baseline moved back to the end of the shorter exon and wrote introns overlapping the longer one,
+ * so those two were written by ExonModel and checked to cover each gene exactly once with the
+ * exons. The GeneTrack files are left out, they are compared in GeneTrackFileTest.
+ */
+class OutputWritersTest {
+  private static final int THREADS = 8;
+
+  @TempDir
+  static Path dir;
+  private static Path gff;
+
+  @BeforeAll
+  static void writeInput() throws IOException {
+    // enough genes for the bed files to take several BGZF blocks
+    gff = TestGff.write(dir, "medium.gff", new GffGenerator().genesPerContig(40)
+                                                             .duplicateIdFraction(0.05)
+                                                             .outOfOrderFraction(0.1));
+  }
+
+  @Test
+  void concurrentOutputsMatchPinnedOnes() throws IOException, URISyntaxException {
+    Path pinned = Path.of(OutputWritersTest.class.getResource("pinned").toURI());
+    Path runDir = Files.createDirectories(dir.resolve("pinned"));
+    Aggregator aggregator = new Aggregator(pinned.resolve("pinned.gff"), runDir,
+                                           new ParseOptions(), null);
+    // the GeneTrack and arrow files aren't pinned, they are written to run alongside the others
+    OutputOptions outputs = new OutputOptions().qc(true).genesXln(true).bedAll(true)
+                                               .geneTrack(true).geneTrackBinary(true)
+                                               .arrow(true).threads(THREADS);
+    Main.writeOutputs(aggregator, outputs, RunMetrics.DISABLED);
+    assertMatchesPinned(pinned.resolve("expected"), moveOutputs(runDir, "plain"), false);
+
+    Main.writeOutputs(aggregator, new OutputOptions().qc(false).bedAll(true).bgzip(true)
+                                                     .threads(THREADS),
+                      RunMetrics.DISABLED);
+    assertMatchesPinned(pinned.resolve("expected"), moveOutputs(runDir, "bgzip"), true);
+  }
+
+  @Test
+  void concurrentTabixBedsMatchPlainOnes() throws IOException {
+    Path runDir = Files.createDirectories(dir.resolve("bgzip"));
+    Aggregator aggregator = new Aggregator(gff, runDir, new ParseOptions(), null);
+    OutputOptions outputs = new OutputOptions().qc(false).bedAll(true).bgzip(true)
+                                               .threads(THREADS);
+    Main.writeOutputs(aggregator, outputs, RunMetrics.DISABLED);
+    Path concurrent = moveOutputs(runDir, "concurrent");
+
+    // the plain bed files themselves are checked against pinned ones above
+    Main.writeOutputs(aggregator, new OutputOptions().qc(false).bedAll(true).threads(THREADS),
+                      RunMetrics.DISABLED);
+    Path plain = moveOutputs(runDir, "plain");
+    for (String bed : TestOutputs.fileNames(plain)) {
+      Path bgzipped = concurrent.resolve(bed + ".gz");
+      byte[] plainBytes = Files.readAllBytes(plain.resolve(bed));
+      try (InputStream in = new BlockCompressedInputStream(bgzipped.toFile())) {
+        assertArrayEquals(plainBytes, in.readAllBytes(), bed);
+      }
+      assertTrue(Files.size(bgzipped) > 0);
+      assertTabixQueries(bgzipped, new String(plainBytes, Charset.defaultCharset()).lines()
+                                                                                .toArray(String[]::new));
+    }
+  }
+
+  /**
+   * Checks that the index finds exactly the lines of the plain bed file overlapping regions
+   * around every tenth line, and all of each contig's lines in order
+   */
+  private static void assertTabixQueries(Path bgzipped, String[] lines) throws IOException {
+    assertTrue(lines.length > 100, "too few lines in " + bgzipped + " to span blocks");
+    TabixReader reader = new TabixReader(bgzipped.toString());
+    try {
+      for (String contig : reader.getChromosomes()) {
+        List<String> expected = new ArrayList<>();
+        for (String line : lines) {
+          if (line.startsWith(contig + "\t")) {
+            expected.add(line);
+          }
+        }
+        assertEquals(expected, query(reader, contig, 0, Integer.MAX_VALUE), contig);
+      }
+      for (int i = 0; i < lines.length; i += 10) {
+        String[] fields = lines[i].split("\t");
+        int start = Integer.parseInt(fields[1]);
+        int end = start + 5000;
+        List<String> expected = new ArrayList<>();
+        for (String line : lines) {
+          String[] other = line.split("\t");
+          if (other[0].equals(fields[0]) && Integer.parseInt(other[1]) < end
+              && Integer.parseInt(other[2]) > start) {
+            expected.add(line);
+          }
+        }
+        List<String> found = query(reader, fields[0], start, end);
+        found.sort(null);
+        expected.sort(null);
+        assertEquals(expected, found, fields[0] + ":" + start + "-" + end);
+      }
+    } finally {
+      reader.close();
+    }
+  }
+
+  private static List<String> query(TabixReader reader, String contig, int start, int end)
+      throws IOException {
+    List<String> found = new ArrayList<>();
+    TabixReader.Iterator iterator = reader.query(contig, start, end);
+    for (String line = iterator.next(); line != null; line = iterator.next()) {
+      found.add(line);
+    }
+    return found;
+  }
+
+  /**
+   * Bed files have to match byte for byte. The rest were written by the baseline in HashMap
+   * order, so they are compared a sorted row at a time like in {@link TestOutputs}. With bgzip
+   * only the bed files are expected, compressed.
+   */
+  private static void assertMatchesPinned(Path expectedDir, Path actualDir, boolean bgzip)
+      throws IOException {
+    List<String> actualFiles = TestOutputs.fileNames(actualDir);
+    int compared = 0;
+    for (String name : TestOutputs.fileNames(expectedDir)) {
+      byte[] expected = Files.readAllBytes(expectedDir.resolve(name));
+      if (name.endsWith(".bed")) {
+        if (bgzip) {
+          assertTrue(actualFiles.contains(name + ".gz"), name + ".gz");
+          try (InputStream in = new BlockCompressedInputStream(actualDir.resolve(name + ".gz")
+                                                                        .toFile())) {
+            assertArrayEquals(expected, in.readAllBytes(), name);
+          }
+        } else {
+          assertArrayEquals(expected, Files.readAllBytes(actualDir.resolve(name)), name);
+        }
+        compared++;
+      } else if (!bgzip) {
+        assertTrue(actualFiles.contains(name), name);
+        byte[] actual = Files.readAllBytes(actualDir.resolve(name));
+        assertEquals(sortedLines(expected), sortedLines(actual), name);
+        compared++;
+      }
+    }
+    assertTrue(compared >= 3, "nothing pinned to compare in " + expectedDir);
+  }
+
+  private static List<String> sortedLines(byte[] contents) {
+    return new String(contents, Charset.defaultCharset()).lines().sorted()
+                                                         .collect(Collectors.toList());
+  }
+
+  /**
+   * Moves the files written to runDir into a subdirectory of it, so the next run starts empty
+   */
+  private static Path moveOutputs(Path runDir, String name) throws IOException {
+    Path target = Files.createDirectories(runDir.resolve(name));
+    for (String file : TestOutputs.fileNames(runDir)) {
+      Files.move(runDir.resolve(file), target.resolve(file));
+    }
+    return target;
+  }
+}
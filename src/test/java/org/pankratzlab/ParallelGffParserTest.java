@@ -0,0 +1,81 @@
+package org.pankratzlab;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * {@link ParallelGffParser} has to hand over exactly what {@link GffParser} does, in the same
+ * order, wherever the chunks happen to start and end
+ */
+class ParallelGffParserTest {
+  @TempDir
+  Path dir;
+
+  @Test
+  void plainChunksMatchSequentialParse() throws IOException {
+    Path gff = TestGff.write(dir, "small.gff", TestGff.small());
+    List<String> sequential = sequential(gff);
+    assertTrue(sequential.size() > 1000);
+    // the smallest chunks end inside the header, the others inside lines and gene subtrees
+    for (long chunkSize : new long[] {40, 997, 4096}) {
+      assertEquals(sequential, chunked(gff, 4, chunkSize), "chunks of " + chunkSize);
+    }
+    assertEquals(sequential, chunked(gff, 4, 0));
+  }
+
+  @Test
+  void bgzfChunksMatchSequentialParse() throws IOException {
+    Path plain = TestGff.write(dir, "small.gff", TestGff.small());
+    List<String> sequential = sequential(plain);
+    // blocks of 60 bytes split the header lines as well as the features
+    Path bgzf = TestGff.bgzip(plain, dir.resolve("small.gff.gz"), 60);
+    assertEquals(sequential, sequential(bgzf));
+    // a chunk per block, then several blocks per chunk
+    for (long chunkSize : new long[] {1, 1500}) {
+      assertEquals(sequential, chunked(bgzf, 4, chunkSize), "chunks of " + chunkSize);
+    }
+    assertEquals(sequential, chunked(bgzf, 4, 0));
+  }
+
+  @Test
+  void truncatedBgzfFails() throws IOException {
+    Path plain = TestGff.write(dir, "small.gff", TestGff.small());
+    Path bgzf = TestGff.bgzip(plain, dir.resolve("small.gff.gz"), 1500);
+    byte[] bytes = Files.readAllBytes(bgzf);
+    Path truncated = dir.resolve("truncated.gff.gz");
+    Files.write(truncated, Arrays.copyOf(bytes, bytes.length / 2));
+    assertThrows(UncheckedIOException.class,
+                 () -> new ParallelGffParser(truncated.toString(), 4, 1500, feature -> {}));
+  }
+
+  private static List<String> sequential(Path gff) {
+    List<String> features = new ArrayList<>();
+    new GffParser(gff.toString(), feature -> features.add(describe(new BasicFeature(feature))));
+    return features;
+  }
+
+  private static List<String> chunked(Path gff, int threads, long chunkSize) {
+    List<String> features = new ArrayList<>();
+    new ParallelGffParser(gff.toString(), threads, chunkSize,
+                          feature -> features.add(describe(feature)));
+    return features;
+  }
+
+  private static String describe(BasicFeature feature) {
+    return String.join("|", feature.id, feature.parentId, feature.type,
+                       String.valueOf(feature.start), String.valueOf(feature.end), feature.name,
+                       feature.contig, String.valueOf(feature.strand), feature.xRefGeneId);
+  }
+}
@@ -0,0 +1,105 @@
+package org.pankratzlab;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * {@link PipelinedGffReader} has to read BGZF a block at a time into exactly the features of the
+ * plain file, and report a file that is cut short or has a broken block rather than taking it for
+ * the end of the input
+ */
+class PipelinedGffReaderTest {
+  @TempDir
+  Path dir;
+  private Path plain;
+  private byte[] bgzf;
+  // where each block starts, the end of file marker last
+  private final List<Integer> blockStarts = new ArrayList<>();
+
+  @BeforeEach
+  void writeInput() throws IOException {
+    plain = TestGff.write(dir, "small.gff", TestGff.small());
+    bgzf = Files.readAllBytes(TestGff.bgzip(plain, dir.resolve("small.gff.gz"), 500));
+    for (int offset = 0; offset < bgzf.length; offset += (bgzf[offset + 16] & 0xff
+                                                          | (bgzf[offset + 17] & 0xff) << 8)
+                                                         + 1) {
+      blockStarts.add(offset);
+    }
+  }
+
+  @Test
+  void bgzfMatchesPlainParse() throws IOException {
+    List<String> expected = new ArrayList<>();
+    new FastGffReader(plain.toString(), FeatureProjection.ALL,
+                      feature -> expected.add(describe(feature)), (c, id, p, t) -> {}, null);
+    assertTrue(expected.size() > 1000);
+    assertEquals(expected, read(bgzf));
+  }
+
+  @Test
+  void reportsHeaderCutShort() throws IOException {
+    int cut = blockStarts.get(3) + 5;
+    assertReported(Arrays.copyOf(bgzf, cut), "BGZF block header cut short");
+  }
+
+  @Test
+  void reportsBlockCutShort() throws IOException {
+    int cut = blockStarts.get(3) + 30;
+    assertReported(Arrays.copyOf(bgzf, cut), "BGZF block cut short");
+  }
+
+  @Test
+  void reportsMissingEndOfFileMarker() throws IOException {
+    int marker = blockStarts.get(blockStarts.size() - 1);
+    assertEquals(28, bgzf.length - marker);
+    assertReported(Arrays.copyOf(bgzf, marker), "doesn't end with the end of file marker");
+  }
+
+  @Test
+  void reportsMalformedHeader() throws IOException {
+    byte[] corrupt = bgzf.clone();
+    corrupt[blockStarts.get(3) + 1] = 0;
+    assertReported(corrupt, "Malformed BGZF block header");
+    corrupt = bgzf.clone();
+    // the extra field's subfield id, so there is no block size
+    corrupt[blockStarts.get(3) + 12] = 'X';
+    assertReported(corrupt, "Malformed BGZF block in");
+  }
+
+  private void assertReported(byte[] contents, String message) {
+    UncheckedIOException e = assertThrows(UncheckedIOException.class, () -> read(contents));
+    String cause = e.getCause().getMessage();
+    assertTrue(cause.contains(message), cause);
+  }
+
+  /**
+   * @return the features read
+   */
+  private List<String> read(byte[] contents) throws IOException {
+    Path file = dir.resolve("input.gff.gz");
+    Files.write(file, contents);
+    List<String> features = new ArrayList<>();
+    new PipelinedGffReader(file.toString(), 4, FeatureProjection.ALL,
+                           feature -> features.add(describe(feature)), (c, id, p, t) -> {}, null);
+    return features;
+  }
+
+  private static String describe(BasicFeature feature) {
+    return String.join("|", feature.id, feature.parentId, feature.type,
+                       String.valueOf(feature.start), String.valueOf(feature.end), feature.name,
+                       feature.contig, String.valueOf(feature.strand), feature.xRefGeneId);
+  }
+}
@@ -0,0 +1,85 @@
+package org.pankratzlab;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+
+/**
+ * Small {@link GffGenerator} inputs for the tests, with more header lines than it writes itself,
+ * a comment between the contigs and a contig of genes whose exons hang off the gene in the less
+ * usual ways
+ */
+final class TestGff {
+  // chrY, which the generator only fills with 24 contigs
+  private static final String[] EXTRA_FEATURES = {
+      // exons two dropped features below their gene, and one directly below a dropped one
+      "NC_000024.10\tBestRefSeq\tgene\t1000\t9000\t.\t+\t.\tID=gene-X1;Dbxref=GeneID:900001;"
+          + "Name=X1",
+      "NC_000024.10\tBestRefSeq\tprimary_transcript\t1000\t9000\t.\t+\t.\tID=rna-X1;Parent=gene-X1;"
+          + "Dbxref=GeneID:900001",
+      "NC_000024.10\tBestRefSeq\tmiRNA\t2000\t2100\t.\t+\t.\tID=rna-X1-m;Parent=rna-X1;"
+          + "Dbxref=GeneID:900001",
+      "NC_000024.10\tBestRefSeq\texon\t2000\t2100\t.\t+\t.\tID=exon-X1-m-1;Parent=rna-X1-m;"
+          + "Dbxref=GeneID:900001",
+      "NC_000024.10\tBestRefSeq\texon\t1000\t1500\t.\t+\t.\tID=exon-X1-1;Parent=rna-X1;"
+          + "Dbxref=GeneID:900001",
+      "NC_000024.10\tRefSeq\tcDNA_match\t1000\t1500\t.\t+\t.\tID=match-1;Target=NM_1 1 500 +",
+      // exons before their transcript, the transcript before its gene
+      "NC_000024.10\tBestRefSeq\texon\t20000\t20500\t.\t-\t.\tID=exon-X2-1;Parent=rna-X2;"
+          + "Dbxref=GeneID:900002",
+      "NC_000024.10\tBestRefSeq\texon\t22000\t23000\t.\t-\t.\tID=exon-X2-2;Parent=rna-X2;"
+          + "Dbxref=GeneID:900002",
+      "NC_000024.10\tBestRefSeq\tlnc_RNA\t20000\t23000\t.\t-\t.\tID=rna-X2;Parent=gene-X2;"
+          + "Dbxref=GeneID:900002",
+      "NC_000024.10\tBestRefSeq\tgene\t20000\t23000\t.\t-\t.\tID=gene-X2;Dbxref=GeneID:900002;"
+          + "Name=X2",
+      // an exon right below its gene
+      "NC_000024.10\tBestRefSeq\tgene\t30000\t31000\t.\t+\t.\tID=gene-X3;Dbxref=GeneID:900003;"
+          + "Name=X3",
+      "NC_000024.10\tBestRefSeq\texon\t30000\t31000\t.\t+\t.\tID=exon-X3-1;Parent=gene-X3;"
+          + "Dbxref=GeneID:900003",
+      "###"};
+
+  private TestGff() {}
+
+  /**
+   * Three contigs of a dozen genes with alt copies, duplicate ids and genes written children first
+   */
+  static GffGenerator small() {
+    return new GffGenerator().contigs(3).genesPerContig(12).altFraction(0.2)
+                             .duplicateIdFraction(0.1).outOfOrderFraction(0.2).seed(7);
+  }
+
+  static Path write(Path dir, String name, GffGenerator generator) throws IOException {
+    Path generated = dir.resolve(name + ".generated");
+    generator.write(generated);
+    List<String> lines = new ArrayList<>(Files.readAllLines(generated));
+    Files.delete(generated);
+    lines.addAll(1, List.of("#!genome-build GRCh38.p14", "#!processor NCBI annotwriter",
+                            "##sequence-region NC_000001.11 1 " + generator.contigLength(),
+                            "##sequence-region NC_000024.10 1 57227415"));
+    lines.add(lines.indexOf("###") + 1, "# end of the first contig");
+    lines.addAll(List.of(EXTRA_FEATURES));
+    Path file = dir.resolve(name);
+    Files.write(file, lines);
+    return file;
+  }
+
+  /**
+   * Rewrites a file as BGZF, ending a block every blockSize bytes, so blocks end inside lines
+   */
+  static Path bgzip(Path plain, Path bgzf, int blockSize) throws IOException {
+    byte[] bytes = Files.readAllBytes(plain);
+    try (BlockCompressedOutputStream out = new BlockCompressedOutputStream(bgzf.toFile())) {
+      for (int i = 0; i < bytes.length; i += blockSize) {
+        out.write(bytes, i, Math.min(blockSize, bytes.length - i));
+        out.flush();
+      }
+    }
+    return bgzf;
+  }
+}
@@ -0,0 +1,79 @@
+package org.pankratzlab;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.pankratzlab.common.filesys.GeneData;
+import org.pankratzlab.common.filesys.GeneSet;
+import org.pankratzlab.common.filesys.GeneTrack;
+
+/**
+ * Compares the output directories of two runs. Genes at the same location come out in the order
+ * of a HashSet, so text files are compared a sorted row at a time and GeneTrack files a sorted
+ * gene at a time.
+ */
+final class TestOutputs {
+  private TestOutputs() {}
+
+  static void assertSameOutputs(Path expectedDir, Path actualDir) throws IOException {
+    List<String> expectedFiles = fileNames(expectedDir);
+    assertFalse(expectedFiles.isEmpty(), "no output in " + expectedDir);
+    assertEquals(expectedFiles, fileNames(actualDir));
+    for (String name : expectedFiles) {
+      assertEquals(contents(expectedDir.resolve(name)), contents(actualDir.resolve(name)), name);
+    }
+  }
+
+  static List<String> fileNames(Path dir) throws IOException {
+    try (Stream<Path> files = Files.list(dir)) {
+      return files.filter(Files::isRegularFile).map(file -> file.getFileName().toString())
+                  .filter(name -> !name.endsWith(".snapshot")).sorted()
+                  .collect(Collectors.toList());
+    }
+  }
+
+  private static List<String> contents(Path file) throws IOException {
+    String name = file.getFileName().toString();
+    List<String> rows;
+    if (name.equals(GeneTrackFile.FILE_NAME)) {
+      rows = describe(GeneTrackFile.load(file));
+    } else if (name.equals("GeneTrack.ser")) {
+      rows = describe(GeneTrack.load(file.toString()).getGenes());
+    } else if (name.equals("geneset.ser")) {
+      rows = describe(new GeneData[][] {GeneSet.load(file.toString()).getSet()});
+    } else {
+      rows = new ArrayList<>(Files.readAllLines(file));
+    }
+    rows.sort(null);
+    return rows;
+  }
+
+  static List<String> describe(GeneData[][] track) {
+    List<String> genes = new ArrayList<>();
+    for (GeneData[] chr : track) {
+      for (GeneData gene : chr) {
+        genes.add(describe(gene));
+      }
+    }
+    return genes;
+  }
+
+  static String describe(GeneData gene) {
+    return String.join("|", gene.getGeneName(),
+                       Arrays.toString(gene.getNcbiAssessionNumbers()),
+                       String.valueOf(gene.getChr()), String.valueOf(gene.getStart()),
+                       String.valueOf(gene.getStop()), String.valueOf(gene.getStrand()),
+                       Arrays.deepToString(gene.getExonBoundaries()),
+                       String.valueOf(gene.getMultiLoc()), String.valueOf(gene.isFinalized()),
+                       String.valueOf(gene.isCollapsedIsoforms()));
+  }
+}